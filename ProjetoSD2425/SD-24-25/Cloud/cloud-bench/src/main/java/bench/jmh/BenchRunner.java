@@ -0,0 +1,65 @@
+package bench.jmh;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Corre os benchmarks selecionados uma vez por cada número de threads e junta todos os resultados
+// num só ficheiro, para comparar execuções (ex.: antes e depois de uma alteração).
+// Aceita as opções normais do JMH (ex.: "MapAccessBench.get -p keys=1000 -f 1"), mais:
+//   -Dbench.threads=1,2,4,8        números de threads a experimentar (1,4)
+//   -Dbench.result=results.json    ficheiro de resultados (jmh-results.json)
+//   -Dbench.format=json|csv        formato do ficheiro (json)
+// Com -t na linha de comando corre só com esse número de threads.
+public class BenchRunner {
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        CommandLineOptions cli;
+        try {
+            cli = new CommandLineOptions(args);
+        } catch (CommandLineOptionException e) {
+            System.err.println("Error parsing command line: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (cli.shouldHelp()) {
+            cli.showHelp();
+            return;
+        }
+        if (cli.shouldList() || cli.shouldListWithParams()) {
+            Runner runner = new Runner(cli);
+            if (cli.shouldListWithParams()) runner.listWithParams(cli);
+            else runner.list();
+            return;
+        }
+
+        String[] threadCounts = cli.getThreads().hasValue()
+                ? new String[]{cli.getThreads().get().toString()}
+                : System.getProperty("bench.threads", "1,4").split(",");
+        String resultFile = System.getProperty("bench.result", "jmh-results.json");
+        ResultFormatType format = ResultFormatType.valueOf(System.getProperty("bench.format", "json").toUpperCase());
+
+        List<RunResult> results = new ArrayList<>();
+        for (String threads : threadCounts) {
+            results.addAll(new Runner(new OptionsBuilder()
+                    .parent(cli)
+                    .threads(Integer.parseInt(threads.trim()))
+                    .build()).run());
+        }
+
+        try (PrintStream out = new PrintStream(resultFile, "UTF-8")) {
+            ResultFormatFactory.getInstance(format, out).writeOut(results);
+        }
+        System.out.println("Results (" + results.size() + " runs) written to " + resultFile);
+    }
+}
@@ -0,0 +1,151 @@
+package bench.jmh;
+
+import common.BufferPool;
+import common.CommonIdent;
+import common.MessageCodec;
+import manager.Message;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Formato das mensagens na rede: codificar e descodificar em memória, com streams
+// (CommonIdent.writeMessage/readMessage) e com o MessageCodec sobre buffers do BufferPool, e enviar e
+// receber por loopback, através de um eco noutra thread.
+// 'message': GET (só a chave), PUT de 100 B, PUT de 64 KB e MULTIPUT de 64 pares de 100 B.
+// Para a memória alocada por mensagem correr com "-prof gc" e ver gc.alloc.rate.norm (bytes/op).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dcloud.log.level=WARN"})
+public class CodecBench {
+
+    @Param({"GET", "PUT_100B", "PUT_64KB", "MULTIPUT_64x100B"})
+    public String message;
+
+    private Message sample;
+    private final ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(128 * 1024);
+    private final DataOutputStream out = new DataOutputStream(bytesOut);
+    private DataInputStream in;
+    private ByteArrayInputStream bytesIn;
+    private final MessageCodec codec = new MessageCodec(BufferPool.HEAP);
+    private ByteBuffer frame;
+
+    private ServerSocket listener;
+    private CommonIdent client;
+    private CommonIdent echo;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        sample = sample(message);
+        CommonIdent.writeMessage(out, sample);
+        out.flush();
+        bytesIn = new ByteArrayInputStream(bytesOut.toByteArray());
+        in = new DataInputStream(bytesIn);
+        frame = ByteBuffer.wrap(bytesOut.toByteArray());
+
+        // Ligação por loopback; a outra ponta devolve cada mensagem tal como a recebe
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        socket.setTcpNoDelay(true);
+        Socket accepted = listener.accept();
+        accepted.setTcpNoDelay(true);
+        client = new CommonIdent(socket);
+        echo = new CommonIdent(accepted);
+        Thread echoThread = new Thread(() -> {
+            try {
+                Message m;
+                while ((m = echo.receiveMessage()) != null) {
+                    echo.sendMessage(m);
+                }
+            } catch (IOException e) {
+                // Ligação fechada no fim do benchmark
+            }
+        }, "codec-echo");
+        echoThread.setDaemon(true);
+        echoThread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        client.close();
+        echo.close();
+        listener.close();
+    }
+
+    static Message sample(String kind) {
+        Message m;
+        switch (kind) {
+            case "GET":
+                m = new Message(Message.Type.GET);
+                m.setKey("user:000042");
+                break;
+            case "PUT_100B":
+                m = new Message(Message.Type.PUT, "user:000042", new byte[100]);
+                break;
+            case "PUT_64KB":
+                m = new Message(Message.Type.PUT, "user:000042", new byte[64 * 1024]);
+                break;
+            case "MULTIPUT_64x100B":
+                m = new Message(Message.Type.MULTIPUT);
+                Map<String, byte[]> entries = new LinkedHashMap<>();
+                for (int i = 0; i < 64; i++) {
+                    entries.put("user:" + i, new byte[100]);
+                }
+                m.setEntries(entries);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown message: " + kind);
+        }
+        m.setRequestId(42);
+        return m;
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        bytesOut.reset();
+        CommonIdent.writeMessage(out, sample);
+        return bytesOut.size();
+    }
+
+    @Benchmark
+    public Message decode() throws IOException {
+        bytesIn.reset();
+        return CommonIdent.readMessage(in);
+    }
+
+    @Benchmark
+    public int pooledEncode() throws IOException {
+        MessageCodec.Frame encoded = codec.encode(sample);
+        int size = 0;
+        for (ByteBuffer segment : encoded.segments()) {
+            size += segment.remaining();
+        }
+        encoded.release();
+        return size;
+    }
+
+    @Benchmark
+    public Message pooledDecode() throws IOException {
+        frame.rewind();
+        return codec.decode(frame);
+    }
+
+    @Benchmark
+    public Message loopbackRoundTrip() throws IOException {
+        client.sendMessage(sample);
+        return client.receiveMessage();
+    }
+}
@@ -0,0 +1,66 @@
+package bench.jmh;
+
+import manager.MapAccess;
+import manager.SlabValueStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Latência dos GET com os valores no heap e fora dele (SlabValueStore) enquanto outras threads
+// reescrevem chaves ao acaso. O MapAccess é preenchido com 'dataMB' de valores entre 1 KB e 16 KB;
+// o grupo "churn" junta 'writers' threads de put a uma de get, e o tempo de cada get é amostrado
+// (Mode.SampleTime), por isso as pausas de GC aparecem nos percentis altos. Para as pausas em si
+// correr com "-prof gc" (gc.count, gc.time). Com o BenchRunner usar -t igual ao tamanho do grupo.
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-XX:MaxDirectMemorySize=4g", "-Dcloud.log.level=WARN"})
+public class GcPauseBench {
+    private static final int MIN_VALUE = 1024;
+    private static final int MAX_VALUE = 16 * 1024;
+
+    @Param({"heap", "offheap"})
+    public String store;
+
+    @Param({"1024"})
+    public long dataMB;
+
+    private MapAccess mapAccess;
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void fill() {
+        mapAccess = new MapAccess(MapAccess.DEFAULT_SEGMENTS, "offheap".equals(store) ? new SlabValueStore() : null);
+        names = new String[(int) (dataMB * 1024 * 1024 / ((MIN_VALUE + MAX_VALUE) / 2))];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "key" + i;
+            mapAccess.put(names[i], randomValue());
+        }
+        System.gc();
+    }
+
+    private static byte[] randomValue() {
+        return new byte[ThreadLocalRandom.current().nextInt(MIN_VALUE, MAX_VALUE + 1)];
+    }
+
+    private String randomKey() {
+        return names[ThreadLocalRandom.current().nextInt(names.length)];
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(2)
+    public void put() {
+        mapAccess.put(randomKey(), randomValue());
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public byte[] get() {
+        return mapAccess.get(randomKey());
+    }
+}
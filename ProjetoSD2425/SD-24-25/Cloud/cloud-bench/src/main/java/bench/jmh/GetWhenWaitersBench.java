@@ -0,0 +1,40 @@
+package bench.jmh;
+
+import manager.MapAccess;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Custo de um put na chave de condição com 'waiters' GETWHEN à espera nela, todos com valores que o
+// put não satisfaz (os waiters continuam registados durante todo o benchmark). Com waiters=0 é a
+// referência: o que o put custa quando ninguém espera pela chave.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dcloud.log.level=WARN"})
+public class GetWhenWaitersBench {
+    private static final String KEY_COND = "cond";
+
+    @Param({"0", "10000"})
+    public int waiters;
+
+    private MapAccess mapAccess;
+    private final byte[] value = "no-match".getBytes();
+
+    @Setup(Level.Trial)
+    public void park() {
+        mapAccess = new MapAccess();
+        for (int i = 0; i < waiters; i++) {
+            CompletableFuture<byte[]> waiter = mapAccess.getWhenAsync("key", KEY_COND, ("v" + i).getBytes());
+            if (waiter.isDone()) throw new IllegalStateException("waiter " + i + " completed at setup");
+        }
+    }
+
+    @Benchmark
+    public void putNoMatch() {
+        mapAccess.put(KEY_COND, value);
+    }
+}
@@ -0,0 +1,102 @@
+package bench.jmh;
+
+import manager.MapAccess;
+import manager.SlabValueStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Operações do MapAccess sem rede: get, put, multiGet e getWhen, com chaves escolhidas ao acaso
+// entre 'keys' chaves já preenchidas com valores de 'valueSize' bytes. O número de threads vem do
+// BenchRunner (ou de -t); com várias threads todas partilham o mesmo MapAccess.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-XX:MaxDirectMemorySize=2g", "-Dcloud.log.level=WARN"})
+public class MapAccessBench {
+    private static final int BATCH = 16;
+
+    @Param({"1000", "100000"})
+    public int keys;
+
+    @Param({"16", "1024", "8192"})
+    public int valueSize;
+
+    @Param({"heap", "offheap"})
+    public String store;
+
+    @Param({"16"})
+    public int segments;
+
+    private MapAccess mapAccess;
+    private String[] names;
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void fill() {
+        mapAccess = new MapAccess(segments, "offheap".equals(store) ? new SlabValueStore() : null);
+        names = new String[keys];
+        value = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        for (int i = 0; i < keys; i++) {
+            names[i] = "key" + i;
+            mapAccess.put(names[i], value);
+        }
+    }
+
+    // Estado de cada thread: a sua chave de condição para o getWhen e um lote de chaves reutilizado
+    @State(Scope.Thread)
+    public static class PerThread {
+        private static final AtomicInteger IDS = new AtomicInteger();
+        final String condKey = "cond" + IDS.incrementAndGet();
+        final Set<String> batch = new HashSet<>();
+        long round = 0;
+    }
+
+    private String randomKey() {
+        return names[ThreadLocalRandom.current().nextInt(names.length)];
+    }
+
+    @Benchmark
+    public byte[] get() {
+        return mapAccess.get(randomKey());
+    }
+
+    @Benchmark
+    public void put() {
+        mapAccess.put(randomKey(), value);
+    }
+
+    @Benchmark
+    public Map<String, byte[]> multiGet(PerThread t) {
+        t.batch.clear();
+        while (t.batch.size() < Math.min(BATCH, keys)) {
+            t.batch.add(randomKey());
+        }
+        return mapAccess.multiGet(t.batch);
+    }
+
+    // Condição já satisfeita: o getWhen responde logo, sem registar quem espera
+    @Benchmark
+    public byte[] getWhenSatisfied() throws InterruptedException {
+        String key = randomKey();
+        return mapAccess.getWhen(key, key, value);
+    }
+
+    // Regista um GETWHEN com uma condição nova e acorda-o com o put que a satisfaz
+    @Benchmark
+    public byte[] getWhenWakeup(PerThread t) {
+        byte[] expected = Long.toString(++t.round).getBytes();
+        CompletableFuture<byte[]> future = mapAccess.getWhenAsync(randomKey(), t.condKey, expected);
+        mapAccess.put(t.condKey, expected);
+        return future.join();
+    }
+}
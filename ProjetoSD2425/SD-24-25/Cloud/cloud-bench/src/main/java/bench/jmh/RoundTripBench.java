@@ -0,0 +1,104 @@
+package bench.jmh;
+
+import common.CommonIdent;
+import common.Demux;
+import manager.Message;
+import org.openjdk.jmh.annotations.*;
+import server.Server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Pedido completo cliente -> servidor -> cliente: um Server no mesmo processo (modo 'mode') numa
+// porta livre e uma ligação autenticada com Demux, partilhada por todas as threads do benchmark
+// (o servidor só aceita 2 logins em simultâneo). Mede o tempo de cada PUT/GET até à resposta.
+// O Server não tem forma de parar: no fim a JVM do fork sai sem esperar pelas suas threads.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dcloud.log.level=WARN", "-Djmh.shutdownTimeout=1"})
+public class RoundTripBench {
+    private static final int KEYS = 10_000;
+
+    @Param({"threads", "nio"})
+    public String mode;
+
+    @Param({"100", "4096"})
+    public int valueSize;
+
+    private Demux demux;
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        // O Server lê a configuração ao carregar a classe; cada trial corre numa JVM própria
+        System.setProperty("cloud.port", Integer.toString(port));
+        System.setProperty("cloud.server.mode", mode);
+        Thread server = new Thread(() -> new Server().start(), "bench-server");
+        server.setDaemon(true);
+        server.start();
+
+        demux = new Demux(new CommonIdent(connect(port)));
+        demux.start();
+        call(new Message(Message.Type.REGISTER, "bench:bench"));
+        Message login = call(new Message(Message.Type.LOGIN, "bench:bench"));
+        if (!login.isSuccess()) {
+            throw new IllegalStateException("Login failed: " + login.getErrorMessage());
+        }
+
+        value = new byte[valueSize];
+        for (int i = 0; i < KEYS; i++) {
+            call(new Message(Message.Type.PUT, "key" + i, value));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        demux.close();
+    }
+
+    // Espera que o servidor comece a aceitar ligações
+    private static Socket connect(int port) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try {
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) throw e;
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private Message call(Message request) throws IOException, InterruptedException {
+        return demux.receive(demux.sendMessage(request));
+    }
+
+    private static String randomKey() {
+        return "key" + ThreadLocalRandom.current().nextInt(KEYS);
+    }
+
+    @Benchmark
+    public Message put() throws IOException, InterruptedException {
+        return call(new Message(Message.Type.PUT, randomKey(), value));
+    }
+
+    @Benchmark
+    public Message get() throws IOException, InterruptedException {
+        Message request = new Message(Message.Type.GET);
+        request.setKey(randomKey());
+        return call(request);
+    }
+}
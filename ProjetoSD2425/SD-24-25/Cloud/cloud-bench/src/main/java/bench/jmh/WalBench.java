@@ -0,0 +1,84 @@
+package bench.jmh;
+
+import manager.LogReplayer;
+import manager.MapAccess;
+import manager.UserManager;
+import manager.WriteAheadLog;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+// Débito de puts no MapAccess só em memória ('policy' = MEMORY) e com write-ahead log em cada
+// política de fsync. O log fica num diretório temporário (-Dbench.walDir=DIR para escolher o disco),
+// apagado no fim de cada trial. Cada thread escreve nas suas 1000 chaves.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dcloud.log.level=WARN"})
+public class WalBench {
+    private static final int KEYS_PER_THREAD = 1000;
+
+    @Param({"MEMORY", "ALWAYS", "GROUP", "ASYNC", "NONE"})
+    public String policy;
+
+    @Param({"100"})
+    public int valueSize;
+
+    private MapAccess mapAccess;
+    private WriteAheadLog wal;
+    private Path dir;
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        mapAccess = new MapAccess();
+        value = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        if ("MEMORY".equals(policy)) return;
+        String base = System.getProperty("bench.walDir");
+        dir = base != null
+                ? Files.createTempDirectory(Files.createDirectories(Paths.get(base)), "wal-bench")
+                : Files.createTempDirectory("wal-bench");
+        wal = WriteAheadLog.open(dir, WriteAheadLog.FsyncPolicy.valueOf(policy), 2, 1024 * 1024,
+                WriteAheadLog.DEFAULT_SEGMENT_BYTES, new LogReplayer(mapAccess, new UserManager()));
+        mapAccess.attachLog(wal);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        if (wal == null) return;
+        wal.close();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PerThread {
+        private static final AtomicInteger IDS = new AtomicInteger();
+        final String[] keys = new String[KEYS_PER_THREAD];
+        int next = 0;
+
+        public PerThread() {
+            String prefix = "t" + IDS.incrementAndGet() + "-";
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = prefix + i;
+            }
+        }
+    }
+
+    @Benchmark
+    public void put(PerThread t) {
+        mapAccess.put(t.keys[t.next++ % KEYS_PER_THREAD], value);
+    }
+}
@@ -0,0 +1,460 @@
+package client;
+
+import common.CommonIdent;
+import common.Demux;
+import manager.Message;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+// Cliente programático assíncrono: cada operação devolve logo um CompletableFuture e pode haver
+// muitos pedidos em curso na mesma ligação (Demux).
+//
+// Batching automático: os get/put pequenos entram numa fila por ordem de chamada. Enquanto houver
+// menos de 'maxInFlight' lotes à espera de resposta, a fila é enviada logo; quando o limite é
+// atingido as chamadas acumulam-se e, quando um lote volta, cada sequência de gets (ou de puts)
+// seguidos na fila segue num só MULTIGET (ou MULTIPUT), com até 'maxBatch' chaves. Sem concorrência
+// cada chamada vai sozinha, sem atraso extra. Os pedidos saem sempre pela ordem das chamadas.
+// Os gets seguem sempre em MULTIGET, mesmo sozinhos: o GET do servidor não distingue uma chave
+// inexistente (responde com o valor "null").
+//
+// Com enableNearCache, os gets são servidos de uma cache local (NearCache) que o servidor mantém
+// coerente enviando invalidações; as escritas deste cliente invalidam logo a chave na cache.
+// Com watch, as alterações de uma chave (ou prefixo) chegam a um listener, pela ordem em que foram
+// feitas. As subscrições e a cache não sobrevivem à ligação.
+//
+// Os futuros são completados numa thread do cliente ("cloud-client"); os callbacks não devem
+// bloquear à espera de outros pedidos deste cliente (usar a CloudClient a partir de outras threads).
+public class AsyncCloudClient implements CloudOperations {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final int DEFAULT_MAX_BATCH = 256;
+
+    private enum Kind { GET, PUT, OTHER }
+
+    // Uma chamada na fila; OTHER é um pedido já montado que segue sozinho (login, getWhen, ...)
+    private static final class Call {
+        final Kind kind;
+        final String key;
+        final byte[] value;
+        final Message message;
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        final CompletableFuture<Message> reply = new CompletableFuture<>();
+
+        Call(Kind kind, String key, byte[] value, Message message) {
+            this.kind = kind;
+            this.key = key;
+            this.value = value;
+            this.message = message;
+        }
+    }
+
+    private final Demux demux;
+    private final int maxInFlight;
+    private final int maxBatch;
+    private final ExecutorService completions;
+    private final Lock lock = new ReentrantLock();
+    private final ArrayDeque<Call> queue = new ArrayDeque<>();
+    private int inFlight = 0; // Lotes de get/put enviados sem resposta
+    private volatile boolean closed = false;
+    private volatile NearCache nearCache; // null sem cache
+    private volatile NearCache tracking;  // Recebe as invalidações desde o pedido de TRACKING
+    private final Map<String, Consumer<WatchEvent>> watches = new ConcurrentHashMap<>();
+    private final AtomicInteger nextWatchId = new AtomicInteger();
+    private volatile long maxStalenessMillis = 0; // Enviado nos gets; 0 = o limite do servidor
+    private volatile IntConsumer loginQueued; // Avisado da posição na fila de logins do servidor
+
+    public AsyncCloudClient(Socket socket, int maxInFlight, int maxBatch) throws IOException {
+        this.demux = new Demux(new CommonIdent(socket));
+        this.maxInFlight = maxInFlight;
+        this.maxBatch = maxBatch;
+        this.completions = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "cloud-client");
+            t.setDaemon(true);
+            return t;
+        });
+        demux.setPushHandler(this::onPush);
+        demux.start();
+    }
+
+    // Mensagens enviadas pelo servidor sem pedido; corre na thread de receção do Demux
+    private void onPush(Message message) {
+        if (message.getType() == Message.Type.INVALIDATE) {
+            NearCache cache = tracking;
+            if (cache != null) cache.onInvalidate(message);
+        } else if (message.getType() == Message.Type.EVENT && !closed) {
+            completions.execute(() -> deliver(message)); // Pela ordem de chegada
+        } else if (message.getType() == Message.Type.QUEUED) {
+            IntConsumer listener = loginQueued;
+            if (listener != null) listener.accept(Integer.parseInt(message.getPayload()));
+        }
+    }
+
+    // EVENT: payload "id:v1,v2,...", entries chave -> valor novo; sem entries, eventos perdidos
+    private void deliver(Message message) {
+        String payload = message.getPayload();
+        int colon = payload.indexOf(':');
+        String id = payload.substring(0, colon);
+        Consumer<WatchEvent> listener = watches.get(id);
+        if (listener == null) return; // Cancelada entretanto
+
+        Map<String, byte[]> entries = message.getEntries();
+        if (entries == null || entries.isEmpty()) {
+            listener.accept(new WatchEvent(id, null, null, 0));
+            return;
+        }
+        String[] versions = payload.substring(colon + 1).split(",");
+        int i = 0;
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            listener.accept(new WatchEvent(id, entry.getKey(), entry.getValue(), Long.parseLong(versions[i++])));
+        }
+    }
+
+    public static AsyncCloudClient connect(String host, int port) throws IOException {
+        return new AsyncCloudClient(new Socket(host, port), DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_BATCH);
+    }
+
+    public boolean isConnected() {
+        return !closed && demux.isConnected();
+    }
+
+    public CompletableFuture<Void> register(String username, String password) {
+        return expectSuccess(send(new Message(Message.Type.REGISTER, username + ":" + password)));
+    }
+
+    public CompletableFuture<Void> login(String username, String password) {
+        return login(username, password, 0, null);
+    }
+
+    // Se o servidor já tiver o máximo de sessões o login espera na fila dele: 'onQueued' (se não for
+    // null) recebe a posição, na thread de receção, e o login falha se esperar mais de timeoutMillis
+    // (0 = o limite do servidor)
+    public CompletableFuture<Void> login(String username, String password, long timeoutMillis, IntConsumer onQueued) {
+        Message message = new Message(Message.Type.LOGIN, username + ":" + password);
+        message.setTimeout(timeoutMillis);
+        loginQueued = onQueued;
+        return expectSuccess(send(message));
+    }
+
+    public CompletableFuture<Void> logout() {
+        return expectSuccess(send(new Message(Message.Type.LOGOUT)));
+    }
+
+    // Liga a cache local; só é usada depois de o servidor confirmar o TRACKING (exige login)
+    public CompletableFuture<Void> enableNearCache(int maxEntries, NearCache.Policy policy) {
+        NearCache cache = new NearCache(maxEntries, policy);
+        tracking = cache;
+        return expectSuccess(send(new Message(Message.Type.TRACKING))).thenRun(() -> nearCache = cache);
+    }
+
+    // Atraso máximo aceite nas leituras servidas por um backup (ver server.Replication); 0 usa o do servidor
+    public void setMaxStaleness(long millis) {
+        this.maxStalenessMillis = millis;
+    }
+
+    public NearCache getNearCache() {
+        return nearCache;
+    }
+
+    // Subscreve as alterações de 'key' (ou de todas as chaves começadas por 'key', com prefix); o
+    // listener corre na thread do cliente e não deve bloquear. Devolve o id para unwatch.
+    public CompletableFuture<String> watch(String key, boolean prefix, Consumer<WatchEvent> listener) {
+        if (!Message.isValidKey(key)) return invalid("Invalid key: " + key);
+        String id = Integer.toString(nextWatchId.incrementAndGet());
+        watches.put(id, listener); // Antes do pedido: o primeiro evento pode chegar antes da resposta
+        Message message = new Message(Message.Type.WATCH);
+        message.setKey(key);
+        message.setPayload(id + (prefix ? ":prefix" : ":key"));
+        return expectSuccess(send(message)).handle((v, error) -> {
+            if (error == null) return id;
+            watches.remove(id);
+            throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+        });
+    }
+
+    public CompletableFuture<Void> unwatch(String id) {
+        watches.remove(id);
+        Message message = new Message(Message.Type.UNWATCH);
+        message.setPayload(id);
+        return expectSuccess(send(message));
+    }
+
+    // Promove o servidor (um backup) a primário; 'secret' é o segredo da replicação (cloud.replication.secret)
+    public CompletableFuture<Void> promote(String secret) {
+        return expectSuccess(send(new Message(Message.Type.PROMOTE, secret)));
+    }
+
+    // Anel do cluster do servidor, "epoch;vnodes;nós" (mais " migrating" durante uma migração); falha
+    // se o servidor não estiver num cluster
+    public CompletableFuture<String> cluster() {
+        return send(new Message(Message.Type.CLUSTER)).thenApply(response -> {
+            if (!response.isSuccess()) throw failure(response);
+            return response.getPayload();
+        });
+    }
+
+    // Instala no servidor um anel novo; 'previous' é o anel que ele substitui, null se não houver (ver ClusterAdmin)
+    public CompletableFuture<Void> installRing(String secret, String ring, String previous) {
+        return expectSuccess(send(new Message(Message.Type.CLUSTER,
+                secret + "\n" + ring + (previous != null ? "\n" + previous : ""))));
+    }
+
+    @Override
+    public CompletableFuture<String> stats() {
+        return send(new Message(Message.Type.STATS)).thenApply(Message::getPayload);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String key) {
+        if (!Message.isValidKey(key)) return invalid("Invalid key: " + key);
+        NearCache cache = nearCache;
+        byte[] cached = cache != null ? cache.lookup(key) : null;
+        if (cached != null) return CompletableFuture.completedFuture(cached == NearCache.ABSENT ? null : cached);
+        Call call = getCall(cache, key);
+        enqueue(call);
+        return call.result;
+    }
+
+    // Get que vai ao servidor; com cache, a resposta fica guardada se a chave não mudou entretanto
+    private static Call getCall(NearCache cache, String key) {
+        Call call = new Call(Kind.GET, key, null, null);
+        if (cache != null) {
+            long epoch = cache.beginRead(key);
+            call.result.whenComplete((value, error) -> cache.endRead(key, epoch, value, error == null));
+        }
+        return call;
+    }
+
+    @Override
+    public CompletableFuture<Void> put(String key, byte[] value) {
+        if (!Message.isValidKey(key)) return invalid("Invalid key: " + key);
+        if (!Message.isValidValue(value)) return invalid("Invalid value for key: " + key);
+        NearCache cache = nearCache;
+        if (cache != null) cache.invalidate(key);
+        Call call = new Call(Kind.PUT, key, value, null);
+        enqueue(call);
+        return call.result.thenApply(v -> null);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> multiGet(Collection<String> keys) {
+        Set<String> unique = new LinkedHashSet<>(keys);
+        for (String key : unique) {
+            if (!Message.isValidKey(key)) return invalid("Invalid key: " + key);
+        }
+        NearCache cache = nearCache;
+        Map<String, byte[]> hits = new HashMap<>();
+        Map<String, Call> calls = new HashMap<>();
+        for (String key : unique) {
+            byte[] cached = cache != null ? cache.lookup(key) : null;
+            if (cached != null) hits.put(key, cached == NearCache.ABSENT ? null : cached);
+            else calls.put(key, getCall(cache, key));
+        }
+        enqueueAll(new ArrayList<>(calls.values()));
+        return CompletableFuture.allOf(calls.values().stream().map(c -> c.result).toArray(CompletableFuture[]::new))
+                .thenApply(v -> {
+                    Map<String, byte[]> values = new LinkedHashMap<>(unique.size() * 2);
+                    for (String key : unique) {
+                        Call call = calls.get(key);
+                        values.put(key, call != null ? call.result.join() : hits.get(key));
+                    }
+                    return values;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Void> multiPut(Map<String, byte[]> pairs) {
+        List<Call> calls = new ArrayList<>(pairs.size());
+        for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+            if (!Message.isValidKey(entry.getKey())) return invalid("Invalid key: " + entry.getKey());
+            if (!Message.isValidValue(entry.getValue())) return invalid("Invalid value for key: " + entry.getKey());
+            calls.add(new Call(Kind.PUT, entry.getKey(), entry.getValue(), null));
+        }
+        NearCache cache = nearCache;
+        if (cache != null) {
+            for (Call call : calls) {
+                cache.invalidate(call.key);
+            }
+        }
+        enqueueAll(calls);
+        return CompletableFuture.allOf(calls.stream().map(c -> c.result).toArray(CompletableFuture[]::new));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getWhen(String key, String keyCond, byte[] valueCond, long timeoutMillis) {
+        Message message = new Message(Message.Type.GETWHEN);
+        message.setKey(key);
+        message.setPayload(keyCond);
+        message.setData(valueCond);
+        message.setTimeout(timeoutMillis);
+        return send(message).thenApply(response -> {
+            if (response.isSuccess()) return response.getData();
+            if ("GetWhen timed out".equals(response.getPayload())) {
+                throw new CompletionException(new TimeoutException(response.getPayload()));
+            }
+            throw failure(response);
+        });
+    }
+
+    private static <T> CompletableFuture<T> invalid(String reason) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(new IllegalArgumentException(reason));
+        return future;
+    }
+
+    private static CompletionException failure(Message response) {
+        return new CompletionException(new IOException(response.getPayload()));
+    }
+
+    private static CompletableFuture<Void> expectSuccess(CompletableFuture<Message> reply) {
+        return reply.thenApply(response -> {
+            if (!response.isSuccess()) throw failure(response);
+            return null;
+        });
+    }
+
+    // Pedido que segue sozinho, na sua vez na fila
+    private CompletableFuture<Message> send(Message message) {
+        Call call = new Call(Kind.OTHER, null, null, message);
+        enqueue(call);
+        return call.reply;
+    }
+
+    private void enqueue(Call call) {
+        lock.lock();
+        try {
+            if (closed) {
+                call.result.completeExceptionally(new IOException("Client closed"));
+                call.reply.completeExceptionally(new IOException("Client closed"));
+                return;
+            }
+            queue.add(call);
+            drain();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueueAll(List<Call> calls) {
+        lock.lock();
+        try {
+            if (closed) {
+                calls.forEach(c -> c.result.completeExceptionally(new IOException("Client closed")));
+                return;
+            }
+            queue.addAll(calls);
+            drain();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Envia o que puder da fila, por ordem. Deve ser chamado com o lock (o envio também fica sob o
+    // lock para que a ordem na ligação seja a da fila).
+    private void drain() {
+        while (!queue.isEmpty()) {
+            Call head = queue.peek();
+            if (head.kind == Kind.OTHER) {
+                queue.poll();
+                demux.sendAsync(head.message).whenCompleteAsync((response, error) -> {
+                    if (error != null) head.reply.completeExceptionally(error);
+                    else head.reply.complete(response);
+                }, completions);
+                continue;
+            }
+            if (inFlight >= maxInFlight) return;
+
+            Kind kind = head.kind;
+            List<Call> batch = new ArrayList<>();
+            while (!queue.isEmpty() && queue.peek().kind == kind && batch.size() < maxBatch) {
+                batch.add(queue.poll());
+            }
+            inFlight++;
+            demux.sendAsync(batchMessage(kind, batch, maxStalenessMillis))
+                    .whenCompleteAsync((response, error) -> batchDone(kind, batch, response, error), completions);
+        }
+    }
+
+    private static Message batchMessage(Kind kind, List<Call> batch, long maxStalenessMillis) {
+        if (kind == Kind.PUT && batch.size() == 1) {
+            return new Message(Message.Type.PUT, batch.get(0).key, batch.get(0).value);
+        }
+        if (kind == Kind.PUT) {
+            Map<String, byte[]> entries = new LinkedHashMap<>(batch.size() * 2);
+            for (Call call : batch) {
+                entries.remove(call.key); // Fica a última escrita, na posição dela
+                entries.put(call.key, call.value);
+            }
+            Message message = new Message(Message.Type.MULTIPUT);
+            message.setEntries(entries);
+            return message;
+        }
+        Set<String> keys = new LinkedHashSet<>();
+        for (Call call : batch) {
+            keys.add(call.key);
+        }
+        Message message = new Message(Message.Type.MULTIGET);
+        message.setKeys(keys);
+        message.setTimeout(maxStalenessMillis);
+        return message;
+    }
+
+    private void batchDone(Kind kind, List<Call> batch, Message response, Throwable error) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (!closed) drain();
+        } finally {
+            lock.unlock();
+        }
+
+        for (Call call : batch) {
+            if (error != null) {
+                call.result.completeExceptionally(error);
+            } else if (response.isSuccess()) {
+                call.result.complete(kind == Kind.PUT ? null : response.getEntries().get(call.key));
+            } else {
+                call.result.completeExceptionally(new IOException(response.getPayload()));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        List<Call> pending;
+        lock.lock();
+        try {
+            closed = true;
+            pending = new ArrayList<>(queue);
+            queue.clear();
+        } finally {
+            lock.unlock();
+        }
+        IOException e = new IOException("Client closed");
+        for (Call call : pending) {
+            call.result.completeExceptionally(e);
+            call.reply.completeExceptionally(e);
+        }
+        demux.close(); // Falha os pedidos já enviados
+        completions.shutdown();
+    }
+}
@@ -6,11 +6,10 @@ import manager.Message;
 import java.io.*;
 import java.net.Socket;
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class Client {
-    private static final String SERVER_HOST = "localhost";
-    private static final int SERVER_PORT = 8080;
+    private static final String SERVER_HOST = System.getProperty("cloud.host", "localhost");
+    private static final int SERVER_PORT = Integer.getInteger("cloud.port", 8080);
 
     private Socket socket;
     private Demux demux;
@@ -78,6 +77,7 @@ public class Client {
         System.out.println("4. MultiGet values");
         System.out.println("5. GetWhen");
         System.out.println("6. Logout");
+        System.out.println("7. Server stats");
         System.out.print("Choose an option: ");
 
         String choice = scanner.nextLine();
@@ -101,6 +101,9 @@ public class Client {
                 case "6":
                     logout();
                     break;
+                case "7":
+                    stats();
+                    break;
                 default:
                     System.out.println("Invalid option");
             }
@@ -120,10 +123,10 @@ public class Client {
         registerMessage.setPayload(username + ":" + password);
 
         // Enviar mensagem
-        demux.sendMessage(registerMessage);
+        int requestId = demux.sendMessage(registerMessage);
 
         // Receber resposta
-        Message response = demux.receive(Message.Type.RESPONSE.ordinal());
+        Message response = demux.receive(requestId);
         if (response != null) {
             if (response.isSuccess()) {
                 System.out.println("Registration successful: " + response.getPayload());
@@ -145,11 +148,18 @@ public class Client {
         Message loginMessage = new Message(Message.Type.LOGIN);
         loginMessage.setPayload(username + ":" + password);
 
+        // Se o servidor estiver cheio o login fica na fila dele; a posição chega numa mensagem QUEUED
+        demux.setPushHandler(queued -> {
+            if (queued.getType() == Message.Type.QUEUED) {
+                System.out.println("Server is full, waiting in the login queue (position " + queued.getPayload() + ")...");
+            }
+        });
+
         // Envia a mensagem de login
-        demux.sendMessage(loginMessage);
+        int requestId = demux.sendMessage(loginMessage);
 
         // Recebe a resposta
-        Message response = demux.receive(Message.Type.RESPONSE.ordinal());
+        Message response = demux.receive(requestId);
         if (response != null && response.isSuccess()) {
             this.username = username; // Atualiza o nome de usuário
             isAuthenticated = true;   // Marca o cliente como autenticado
@@ -166,18 +176,23 @@ public class Client {
         String keyCond = scanner.nextLine();
         System.out.print("Enter conditional value: ");
         String valueCond = scanner.nextLine();
+        System.out.print("Timeout in ms (empty for no timeout): ");
+        String timeout = scanner.nextLine().trim();
 
         // Cria a mensagem GETWHEN
         Message getWhenMessage = new Message(Message.Type.GETWHEN);
         getWhenMessage.setKey(key);
         getWhenMessage.setPayload(keyCond);
         getWhenMessage.setData(valueCond.getBytes());
+        if (!timeout.isEmpty()) {
+            getWhenMessage.setTimeout(Long.parseLong(timeout));
+        }
 
         // Envia a mensagem para o servidor
-        demux.sendMessage(getWhenMessage);
+        int requestId = demux.sendMessage(getWhenMessage);
 
         // Recebe a resposta do servidor
-        Message response = demux.receive(Message.Type.RESPONSE.ordinal());
+        Message response = demux.receive(requestId);
         if (response != null && response.isSuccess()) {
             System.out.println("Condition met. Retrieved value: " + new String(response.getData()));
         } else {
@@ -198,10 +213,10 @@ public class Client {
         putMessage.setPayload(username); // Inclui o nome do usuário
 
         // Envia a mensagem para o servidor
-        demux.sendMessage(putMessage);
+        int requestId = demux.sendMessage(putMessage);
 
         // Recebe a resposta do servidor
-        Message response = demux.receive(Message.Type.RESPONSE.ordinal());
+        Message response = demux.receive(requestId);
         if (response.isSuccess()) {
             System.out.println("Value stored successfully: " + response.getPayload());
         } else {
@@ -209,6 +224,16 @@ public class Client {
         }
     }
 
+    private void stats() throws IOException, InterruptedException {
+        int requestId = demux.sendMessage(new Message(Message.Type.STATS));
+        Message response = demux.receive(requestId);
+        if (response != null && response.isSuccess()) {
+            System.out.print(response.getPayload());
+        } else {
+            System.out.println("Failed to retrieve stats.");
+        }
+    }
+
     private void getValue() throws IOException, InterruptedException {
         System.out.print("Enter key: ");
         String key = scanner.nextLine();
@@ -219,10 +244,10 @@ public class Client {
         getMessage.setPayload(username); // Envia o nome do usuário no payload
 
         // Envia a mensagem
-        demux.sendMessage(getMessage);
+        int requestId = demux.sendMessage(getMessage);
 
         // Recebe a resposta do servidor
-        Message response = demux.receive(Message.Type.RESPONSE.ordinal());
+        Message response = demux.receive(requestId);
         if (response != null) {
             if (response.isSuccess()) {
                 System.out.println("Value: " + new String(response.getData())); // Exibe o valor
@@ -238,31 +263,25 @@ public class Client {
         System.out.println("Enter the number of key-value pairs:");
         int n = Integer.parseInt(scanner.nextLine());
 
-        Map<String, String> pairs = new HashMap<>();
+        Map<String, byte[]> pairs = new LinkedHashMap<>();
         for (int i = 0; i < n; i++) {
             System.out.println("Key " + (i + 1) + ":");
             String key = scanner.nextLine();
             System.out.println("Value " + (i + 1) + ":");
             String value = scanner.nextLine();
-            pairs.put(key, value);
+            pairs.put(key, value.getBytes());
         }
 
-        // Serializa os pares no formato "key1=value1,key2=value2"
-        String serializedPairs = pairs.entrySet()
-                .stream()
-                .map(entry -> entry.getKey() + "=" + entry.getValue())
-                .collect(Collectors.joining(","));
-
-        // Cria a mensagem MULTIPUT
+        // Cria a mensagem MULTIPUT (os pares seguem em binário, sem separadores)
         Message message = new Message(Message.Type.MULTIPUT);
         message.setPayload(username); // Nome do usuário
-        message.setData(serializedPairs.getBytes()); // Serializa os pares como bytes
+        message.setEntries(pairs);
 
         // Envia a mensagem para o servidor
-        demux.sendMessage(message);
+        int requestId = demux.sendMessage(message);
 
         // Recebe a resposta do servidor
-        Message response = demux.receive(Message.Type.RESPONSE.ordinal());
+        Message response = demux.receive(requestId);
         if (response != null) {
             if (response.isSuccess()) {
                 System.out.println("MultiPut successful: " + response.getPayload());
@@ -278,28 +297,29 @@ public class Client {
         System.out.println("Enter the number of keys to retrieve:");
         int n = Integer.parseInt(scanner.nextLine());
 
-        Set<String> keys = new HashSet<>();
+        Set<String> keys = new LinkedHashSet<>();
         for (int i = 0; i < n; i++) {
             System.out.println("Key " + (i + 1) + ":");
             keys.add(scanner.nextLine());
         }
 
-        // Serializa as chaves no formato "key1,key2,key3,..."
-        String serializedKeys = String.join(",", keys);
-
         // Cria a mensagem MULTIGET
         Message message = new Message(Message.Type.MULTIGET);
         message.setPayload(username); // Nome do usuário
-        message.setData(serializedKeys.getBytes()); // Converte o conjunto de chaves para bytes
+        message.setKeys(keys);
 
         // Envia a mensagem para o servidor
-        demux.sendMessage(message);
+        int requestId = demux.sendMessage(message);
 
         // Recebe a resposta do servidor
-        Message response = demux.receive(Message.Type.RESPONSE.ordinal());
+        Message response = demux.receive(requestId);
         if (response != null) {
             if (response.isSuccess()) {
                 System.out.println("Values retrieved: " + response.getPayload());
+                for (Map.Entry<String, byte[]> entry : response.getEntries().entrySet()) {
+                    byte[] value = entry.getValue();
+                    System.out.println("  " + entry.getKey() + " = " + (value != null ? new String(value) : "null"));
+                }
             } else {
                 System.out.println("MultiGet failed: " + response.getPayload());
             }
@@ -316,10 +336,10 @@ public class Client {
         // Cria e envia a mensagem de logout
         Message logoutMessage = new Message(Message.Type.LOGOUT);
         logoutMessage.setPayload(username);
-        demux.sendMessage(logoutMessage);
+        int requestId = demux.sendMessage(logoutMessage);
 
         // Recebe a resposta do servidor
-        Message response = demux.receive(Message.Type.RESPONSE.ordinal());
+        Message response = demux.receive(requestId);
         if (response != null && response.isSuccess()) {
             System.out.println(response.getPayload()); // Exibe a mensagem de sucesso
             isAuthenticated = false;                  // Marca o cliente como deslogado
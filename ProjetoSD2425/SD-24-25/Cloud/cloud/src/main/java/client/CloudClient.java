@@ -0,0 +1,95 @@
+package client;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+// Fachada bloqueante sobre uma ligação (AsyncCloudClient) ou um ConnectionPool: cada método espera
+// pela resposta. Pode ser usada por várias threads ao mesmo tempo; os pedidos concorrentes continuam
+// a ser agrupados em lotes. Os erros do servidor chegam como IOException e os argumentos inválidos
+// como IllegalArgumentException. register/login/logout só existem sobre uma ligação: o pool
+// autentica as suas ligações sozinho.
+public class CloudClient implements AutoCloseable {
+    private final CloudOperations async;
+
+    public CloudClient(CloudOperations async) {
+        this.async = async;
+    }
+
+    public static CloudClient connect(String host, int port) throws IOException {
+        return new CloudClient(AsyncCloudClient.connect(host, port));
+    }
+
+    public CloudOperations async() {
+        return async;
+    }
+
+    private AsyncCloudClient connection() {
+        if (!(async instanceof AsyncCloudClient)) {
+            throw new UnsupportedOperationException("Sessions are managed by the connection pool");
+        }
+        return (AsyncCloudClient) async;
+    }
+
+    public void register(String username, String password) throws IOException, InterruptedException {
+        await(connection().register(username, password));
+    }
+
+    public void login(String username, String password) throws IOException, InterruptedException {
+        await(connection().login(username, password));
+    }
+
+    public void logout() throws IOException, InterruptedException {
+        await(connection().logout());
+    }
+
+    public String stats() throws IOException, InterruptedException {
+        return await(async.stats());
+    }
+
+    public byte[] get(String key) throws IOException, InterruptedException {
+        return await(async.get(key));
+    }
+
+    public void put(String key, byte[] value) throws IOException, InterruptedException {
+        await(async.put(key, value));
+    }
+
+    public Map<String, byte[]> multiGet(Collection<String> keys) throws IOException, InterruptedException {
+        return await(async.multiGet(keys));
+    }
+
+    public void multiPut(Map<String, byte[]> pairs) throws IOException, InterruptedException {
+        await(async.multiPut(pairs));
+    }
+
+    // Devolve null se timeoutMillis > 0 e a condição não se verificar a tempo
+    public byte[] getWhen(String key, String keyCond, byte[] valueCond, long timeoutMillis)
+            throws IOException, InterruptedException {
+        try {
+            return await(async.getWhen(key, keyCond, valueCond, timeoutMillis));
+        } catch (IOException e) {
+            if (e.getCause() instanceof TimeoutException) return null;
+            throw e;
+        }
+    }
+
+    static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public void close() {
+        async.close();
+    }
+}
@@ -0,0 +1,30 @@
+package client;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+// Operações assíncronas sobre a store, comuns a uma ligação (AsyncCloudClient) e a um pool de
+// ligações (ConnectionPool). A CloudClient dá uma versão bloqueante de qualquer uma delas.
+public interface CloudOperations extends AutoCloseable {
+
+    // Valor da chave, ou null se não existir
+    CompletableFuture<byte[]> get(String key);
+
+    CompletableFuture<Void> put(String key, byte[] value);
+
+    // Valores das chaves pela ordem pedida; as que não existem ficam a null
+    CompletableFuture<Map<String, byte[]>> multiGet(Collection<String> keys);
+
+    CompletableFuture<Void> multiPut(Map<String, byte[]> pairs);
+
+    // Valor de 'key' quando 'keyCond' tiver o valor 'valueCond'; falha com TimeoutException se
+    // timeoutMillis > 0 e a condição não se verificar a tempo
+    CompletableFuture<byte[]> getWhen(String key, String keyCond, byte[] valueCond, long timeoutMillis);
+
+    // Métricas do servidor em texto (ver ServerMetrics)
+    CompletableFuture<String> stats();
+
+    @Override
+    void close();
+}
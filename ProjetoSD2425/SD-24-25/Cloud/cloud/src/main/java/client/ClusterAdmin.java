@@ -0,0 +1,90 @@
+package client;
+
+import common.HashRing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// Administração do cluster (ver server.Cluster):
+//   ClusterAdmin host:porta show
+//   ClusterAdmin host:porta set SEGREDO nó1,nó2,... [vnodes]
+// "set" cria um anel com a epoch seguinte à do nó dado e envia-o aos nós do anel antigo e do novo,
+// primeiro aos que entram (para já o terem quando os outros começarem a responder MOVED); depois
+// espera até nenhum estar a migrar. Os nós têm de estar a correr, cada um com
+// -Dcloud.cluster.self igual ao seu nome no anel. Só uma mudança de cada vez.
+public class ClusterAdmin {
+    private static final long POLL_MILLIS = 200;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !("show".equals(args[1]) || "set".equals(args[1]) && args.length >= 4)) {
+            System.err.println("Usage: ClusterAdmin host:port show | host:port set SECRET node1,node2,... [vnodes]");
+            System.exit(1);
+        }
+        try {
+            String current = ask(args[0]);
+            if ("show".equals(args[1])) {
+                System.out.println(current != null ? current : "Not in a cluster");
+                return;
+            }
+            HashRing old = current != null ? HashRing.parse(current.split(" ")[0]) : null;
+            if (current != null && current.endsWith(" migrating")) {
+                throw new IllegalStateException("Migration in progress");
+            }
+            int vnodes = args.length > 4 ? Integer.parseInt(args[4])
+                    : old != null ? old.getVnodes() : HashRing.DEFAULT_VNODES;
+            HashRing next = new HashRing(old != null ? old.getEpoch() + 1 : 1, vnodes, Arrays.asList(args[3].split(",")));
+
+            Set<String> involved = new LinkedHashSet<>();
+            for (String node : next.getNodes()) {
+                if (old == null || !old.getNodes().contains(node)) involved.add(node);
+            }
+            involved.addAll(old != null ? old.getNodes() : Arrays.asList(args[0]));
+            for (String node : involved) {
+                try (AsyncCloudClient client = connect(node)) {
+                    CloudClient.await(client.installRing(args[2], next.toString(), old != null ? old.toString() : null));
+                } catch (IOException e) {
+                    if (!"Stale epoch".equals(e.getMessage())) throw e; // Já recebido de outro nó
+                }
+            }
+            System.out.println("Installed " + next + ", waiting for the migration");
+
+            long start = System.currentTimeMillis();
+            List<String> busy = new ArrayList<>(involved);
+            while (!busy.isEmpty()) {
+                Thread.sleep(POLL_MILLIS);
+                busy.removeIf(node -> {
+                    try {
+                        String ring = ask(node);
+                        return ring == null || !ring.endsWith(" migrating");
+                    } catch (IOException | InterruptedException e) {
+                        return false; // Ainda não responde: volta a perguntar
+                    }
+                });
+            }
+            System.out.println("Migration finished in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Anel do nó (com " migrating" durante uma migração), ou null se não estiver num cluster
+    private static String ask(String node) throws IOException, InterruptedException {
+        try (AsyncCloudClient client = connect(node)) {
+            return CloudClient.await(client.cluster());
+        } catch (IOException e) {
+            if ("Not in a cluster".equals(e.getMessage())) return null;
+            throw e;
+        }
+    }
+
+    private static AsyncCloudClient connect(String node) throws IOException {
+        int colon = node.lastIndexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("Invalid node: " + node + " (expected host:port)");
+        return AsyncCloudClient.connect(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    }
+}
@@ -0,0 +1,307 @@
+package client;
+
+import common.HashRing;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+// Cliente de um cluster de servidores (ver server.Cluster). Guarda o anel do cluster e uma ligação
+// autenticada (AsyncCloudClient) por nó, aberta quando é precisa. Cada get/put vai diretamente para
+// o dono da chave; os multiGet/multiPut são partidos num sub-lote por nó, enviados em paralelo.
+//
+// Quando um nó responde "MOVED <anel>" (o anel mudou) ou a ligação a ele falha, o cliente adota o
+// anel mais recente que conhecer (o da resposta ou o pedido a outro nó) e repete só a parte que
+// falhou, com espera crescente, até MAX_ATTEMPTS vezes. As escritas são idempotentes, por isso
+// repetir é seguro. O GETWHEN exige que as duas chaves fiquem no mesmo nó.
+//
+// Cada nó tem os seus utilizadores: register regista em todos (um nó que entra depois copia-os).
+public class ClusterClient implements CloudOperations {
+    private static final int MAX_ATTEMPTS = 10;
+    private static final long MIN_BACKOFF_MILLIS = 10;
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+
+    private final String username;
+    private final String password;
+    private volatile HashRing ring;
+    private final Map<String, AsyncCloudClient> clients = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService retries;
+    private final LongAdder redirects = new LongAdder();
+    private volatile boolean closed = false;
+
+    // Liga-se a 'host:port' (um nó qualquer) para saber o anel; um servidor fora de um cluster é
+    // tratado como um cluster de um nó
+    public ClusterClient(String host, int port, String username, String password)
+            throws IOException, InterruptedException {
+        this.username = username;
+        this.password = password;
+        this.ring = fetchRing(host, port);
+        this.retries = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cluster-client");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Regista o utilizador em todos os nós do cluster de 'host:port'
+    public static void register(String host, int port, String username, String password)
+            throws IOException, InterruptedException {
+        for (String node : fetchRing(host, port).getNodes()) {
+            try (AsyncCloudClient client = open(node)) {
+                CloudClient.await(client.register(username, password));
+            }
+        }
+    }
+
+    private static HashRing fetchRing(String host, int port) throws IOException, InterruptedException {
+        try (AsyncCloudClient client = AsyncCloudClient.connect(host, port)) {
+            return parseRing(CloudClient.await(client.cluster()));
+        } catch (IOException e) {
+            if (!"Not in a cluster".equals(e.getMessage())) throw e;
+            return new HashRing(0, 1, Collections.singletonList(host + ":" + port));
+        }
+    }
+
+    private static HashRing parseRing(String reply) {
+        int space = reply.indexOf(' '); // " migrating"
+        return HashRing.parse(space < 0 ? reply : reply.substring(0, space));
+    }
+
+    private static AsyncCloudClient open(String node) throws IOException {
+        int colon = node.lastIndexOf(':');
+        return new AsyncCloudClient(new Socket(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1))),
+                AsyncCloudClient.DEFAULT_MAX_IN_FLIGHT, AsyncCloudClient.DEFAULT_MAX_BATCH);
+    }
+
+    // Ligação autenticada ao nó, aberta se ainda não existir (ou se tiver caído)
+    private AsyncCloudClient client(String node) throws IOException, InterruptedException {
+        AsyncCloudClient client = clients.get(node);
+        if (client != null && client.isConnected()) return client;
+        synchronized (clients) {
+            client = clients.get(node);
+            if (client != null && client.isConnected()) return client;
+            if (client != null) client.close();
+            if (closed) throw new IOException("Cluster client closed");
+            client = open(node);
+            try {
+                CloudClient.await(client.login(username, password));
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                client.close();
+                throw e;
+            }
+            clients.put(node, client);
+            return client;
+        }
+    }
+
+    public HashRing getRing() {
+        return ring;
+    }
+
+    // Pedidos repetidos por causa de uma mudança do anel ou de uma ligação que falhou
+    public long getRedirects() {
+        return redirects.sum();
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String key) {
+        return getAttempt(key, 0);
+    }
+
+    private CompletableFuture<byte[]> getAttempt(String key, int attempt) {
+        return onOwner(key, attempt, c -> c.get(key), next -> getAttempt(key, next));
+    }
+
+    @Override
+    public CompletableFuture<Void> put(String key, byte[] value) {
+        return putAttempt(key, value, 0);
+    }
+
+    private CompletableFuture<Void> putAttempt(String key, byte[] value, int attempt) {
+        return onOwner(key, attempt, c -> c.put(key, value), next -> putAttempt(key, value, next));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> multiGet(Collection<String> keys) {
+        LinkedHashSet<String> unique = new LinkedHashSet<>(keys);
+        return multiGetAttempt(unique, 0).thenApply(values -> {
+            Map<String, byte[]> ordered = new LinkedHashMap<>(unique.size() * 2);
+            for (String key : unique) {
+                ordered.put(key, values.get(key));
+            }
+            return ordered;
+        });
+    }
+
+    // Um sub-lote por nó, em paralelo; cada sub-lote que falhe é repetido (e partido de novo) sozinho
+    private CompletableFuture<Map<String, byte[]>> multiGetAttempt(Collection<String> keys, int attempt) {
+        List<CompletableFuture<Map<String, byte[]>>> parts = new ArrayList<>();
+        for (Map.Entry<String, List<String>> group : byOwner(keys).entrySet()) {
+            List<String> part = group.getValue();
+            parts.add(onNode(group.getKey(), attempt, c -> c.multiGet(part), next -> multiGetAttempt(part, next)));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            Map<String, byte[]> values = new HashMap<>(keys.size() * 2);
+            for (CompletableFuture<Map<String, byte[]>> part : parts) {
+                values.putAll(part.join());
+            }
+            return values;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> multiPut(Map<String, byte[]> pairs) {
+        return multiPutAttempt(pairs, 0);
+    }
+
+    private CompletableFuture<Void> multiPutAttempt(Map<String, byte[]> pairs, int attempt) {
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (Map.Entry<String, List<String>> group : byOwner(pairs.keySet()).entrySet()) {
+            Map<String, byte[]> part = new LinkedHashMap<>(group.getValue().size() * 2);
+            for (String key : group.getValue()) {
+                part.put(key, pairs.get(key));
+            }
+            parts.add(onNode(group.getKey(), attempt, c -> c.multiPut(part), next -> multiPutAttempt(part, next)));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getWhen(String key, String keyCond, byte[] valueCond, long timeoutMillis) {
+        return getWhenAttempt(key, keyCond, valueCond, timeoutMillis, 0);
+    }
+
+    private CompletableFuture<byte[]> getWhenAttempt(String key, String keyCond, byte[] valueCond,
+                                                     long timeoutMillis, int attempt) {
+        HashRing r = ring;
+        if (!r.ownerOf(key).equals(r.ownerOf(keyCond))) {
+            CompletableFuture<byte[]> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalArgumentException(
+                    "Keys " + key + " and " + keyCond + " are on different nodes"));
+            return future;
+        }
+        return onNode(r.ownerOf(key), attempt, c -> c.getWhen(key, keyCond, valueCond, timeoutMillis),
+                next -> getWhenAttempt(key, keyCond, valueCond, timeoutMillis, next));
+    }
+
+    // Métricas de todos os nós, cada bloco precedido de "# nó"
+    @Override
+    public CompletableFuture<String> stats() {
+        List<String> nodes = ring.getNodes();
+        List<CompletableFuture<String>> parts = new ArrayList<>();
+        for (String node : nodes) {
+            parts.add(onNode(node, MAX_ATTEMPTS, AsyncCloudClient::stats, null));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            StringBuilder out = new StringBuilder();
+            for (int i = 0; i < nodes.size(); i++) {
+                out.append("# ").append(nodes.get(i)).append('\n').append(parts.get(i).join());
+            }
+            return out.toString();
+        });
+    }
+
+    private Map<String, List<String>> byOwner(Collection<String> keys) {
+        HashRing r = ring;
+        Map<String, List<String>> groups = new HashMap<>();
+        for (String key : keys) {
+            groups.computeIfAbsent(r.ownerOf(key), n -> new ArrayList<>()).add(key);
+        }
+        return groups;
+    }
+
+    private <T> CompletableFuture<T> onOwner(String key, int attempt, Function<AsyncCloudClient, CompletableFuture<T>> op,
+                                             IntFunction<CompletableFuture<T>> retry) {
+        return onNode(ring.ownerOf(key), attempt, op, retry);
+    }
+
+    // Corre 'op' no nó; se o anel mudou ou o nó falhou, atualiza o anel e chama 'retry' com a tentativa seguinte
+    private <T> CompletableFuture<T> onNode(String node, int attempt, Function<AsyncCloudClient, CompletableFuture<T>> op,
+                                            IntFunction<CompletableFuture<T>> retry) {
+        CompletableFuture<T> first;
+        try {
+            first = op.apply(client(node));
+        } catch (IOException e) {
+            first = new CompletableFuture<>();
+            first.completeExceptionally(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            first = new CompletableFuture<>();
+            first.completeExceptionally(new IOException("Interrupted"));
+        }
+        return first.thenApply(CompletableFuture::completedFuture).exceptionally(error -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            boolean moved = cause.getMessage() != null && cause.getMessage().startsWith("MOVED ");
+            AsyncCloudClient client = clients.get(node);
+            boolean lost = cause instanceof IOException && (client == null || !client.isConnected());
+            if (closed || retry == null || attempt + 1 >= MAX_ATTEMPTS || !(moved || lost)) {
+                CompletableFuture<T> failed = new CompletableFuture<>();
+                failed.completeExceptionally(cause);
+                return failed;
+            }
+            redirects.increment();
+            if (moved) adopt(parseRing(cause.getMessage().substring("MOVED ".length())));
+            else refresh(node);
+            return later(attempt).thenCompose(v -> retry.apply(attempt + 1));
+        }).thenCompose(f -> f);
+    }
+
+    private void adopt(HashRing newer) {
+        synchronized (clients) {
+            if (newer.getEpoch() > ring.getEpoch()) ring = newer;
+        }
+    }
+
+    // Pergunta o anel a um nó que não seja o que falhou (na thread de repetições: pode bloquear)
+    private void refresh(String failed) {
+        retries.execute(() -> {
+            for (String node : ring.getNodes()) {
+                if (node.equals(failed)) continue;
+                try {
+                    adopt(parseRing(CloudClient.await(client(node).cluster())));
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    // Tenta o seguinte
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    // Completa depois da espera da tentativa; a repetição corre na thread de repetições
+    private CompletableFuture<Void> later(int attempt) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        long delay = Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(attempt, 10));
+        retries.schedule(() -> future.complete(null), delay, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        retries.shutdownNow();
+        synchronized (clients) {
+            for (AsyncCloudClient client : clients.values()) {
+                client.close();
+            }
+            clients.clear();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package client;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+// Pool de ligações autenticadas ao servidor, todas com o mesmo utilizador. Cada pedido vai para a
+// ligação com menos pedidos por responder (a partir de uma posição aleatória, para desempatar).
+//
+// Os GETWHEN podem ficar à espera muito tempo: contam à parte e não pesam na escolha para os
+// pedidos curtos. Com waitConnections > 0, as últimas waitConnections ligações ficam só para
+// GETWHEN, para que uma rajada de respostas a GETWHEN nunca fique à frente de pedidos curtos.
+//
+// Quando uma ligação falha é fechada e religada (com nova autenticação) numa thread de fundo, com
+// espera crescente entre tentativas; entretanto os pedidos vão para as outras. Os pedidos que
+// estavam nela falham com IOException e não são repetidos.
+//
+// O servidor tem de aceitar 'size' sessões do utilizador (-Dcloud.sessionsPerUser, -Dcloud.maxLogins).
+public class ConnectionPool implements CloudOperations {
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private static final class Slot {
+        final AtomicReference<AsyncCloudClient> client = new AtomicReference<>(); // null enquanto religa
+        final AtomicInteger outstanding = new AtomicInteger(); // Pedidos curtos por responder
+        final AtomicInteger waiting = new AtomicInteger();     // GETWHEN por responder
+    }
+
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final int maxInFlight;
+    private final int maxBatch;
+    private final Slot[] slots;
+    private final int shortSlots; // Ligações [0, shortSlots) para os pedidos curtos
+    private final ScheduledExecutorService reconnector;
+    private final LongAdder reconnects = new LongAdder();
+    private volatile boolean closed = false;
+
+    public ConnectionPool(String host, int port, String username, String password, int size, int waitConnections)
+            throws IOException, InterruptedException {
+        this(host, port, username, password, size, waitConnections,
+                AsyncCloudClient.DEFAULT_MAX_IN_FLIGHT, AsyncCloudClient.DEFAULT_MAX_BATCH);
+    }
+
+    public ConnectionPool(String host, int port, String username, String password, int size, int waitConnections,
+                          int maxInFlight, int maxBatch) throws IOException, InterruptedException {
+        if (size < 1 || waitConnections < 0 || waitConnections >= size) {
+            throw new IllegalArgumentException("Need at least one connection for short requests");
+        }
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.maxInFlight = maxInFlight;
+        this.maxBatch = maxBatch;
+        this.slots = new Slot[size];
+        this.shortSlots = size - waitConnections;
+        this.reconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pool-reconnect");
+            t.setDaemon(true);
+            return t;
+        });
+
+        IOException firstError = null;
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            try {
+                slots[i].client.set(open());
+            } catch (IOException e) {
+                if (firstError == null) firstError = e;
+                scheduleReconnect(slots[i], MIN_BACKOFF_MILLIS);
+            }
+        }
+        if (firstError != null && available() == 0) {
+            close();
+            throw firstError;
+        }
+    }
+
+    // Nova ligação autenticada
+    private AsyncCloudClient open() throws IOException, InterruptedException {
+        AsyncCloudClient client = new AsyncCloudClient(new Socket(host, port), maxInFlight, maxBatch);
+        try {
+            CloudClient.await(client.login(username, password));
+            return client;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            client.close();
+            throw e;
+        }
+    }
+
+    private void scheduleReconnect(Slot slot, long delayMillis) {
+        if (closed) return;
+        reconnector.schedule(() -> {
+            if (closed) return;
+            try {
+                slot.client.set(open());
+                reconnects.increment();
+            } catch (IOException | RuntimeException e) {
+                scheduleReconnect(slot, Math.min(MAX_BACKOFF_MILLIS, delayMillis * 2));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Pool fechado
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // A ligação falhou: sai do pool até ser religada (só quem a retira agenda a religação)
+    private void connectionLost(Slot slot, AsyncCloudClient client) {
+        if (slot.client.compareAndSet(client, null)) {
+            client.close();
+            scheduleReconnect(slot, MIN_BACKOFF_MILLIS);
+        }
+    }
+
+    // Ligação ligada com menos carga em [from, to)
+    private Slot pick(int from, int to, boolean longWait) {
+        int n = to - from;
+        int start = ThreadLocalRandom.current().nextInt(n);
+        Slot best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            Slot slot = slots[from + (start + i) % n];
+            if (slot.client.get() == null) continue;
+            int load = longWait ? slot.waiting.get() : slot.outstanding.get();
+            if (load < bestLoad) {
+                best = slot;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    private <T> CompletableFuture<T> submit(boolean longWait, Function<AsyncCloudClient, CompletableFuture<T>> operation) {
+        if (closed) return failed(new IOException("Connection pool closed"));
+        for (int attempt = 0; attempt < slots.length; attempt++) {
+            Slot slot = longWait && shortSlots < slots.length ? pick(shortSlots, slots.length, true) : null;
+            if (slot == null) slot = pick(0, longWait ? slots.length : shortSlots, longWait);
+            if (slot == null) break;
+            AsyncCloudClient client = slot.client.get();
+            if (client == null) continue; // Falhou entretanto
+
+            AtomicInteger load = longWait ? slot.waiting : slot.outstanding;
+            load.incrementAndGet();
+            CompletableFuture<T> future = operation.apply(client);
+            Slot chosen = slot;
+            future.whenComplete((result, error) -> {
+                load.decrementAndGet();
+                if (error != null && !client.isConnected()) connectionLost(chosen, client);
+            });
+            return future;
+        }
+        return failed(new IOException("No connection available"));
+    }
+
+    private static <T> CompletableFuture<T> failed(IOException e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    // Ligações neste momento ligadas
+    public int available() {
+        int n = 0;
+        for (Slot slot : slots) {
+            if (slot != null && slot.client.get() != null) n++;
+        }
+        return n;
+    }
+
+    // Pedidos por responder em cada ligação (os GETWHEN não contam)
+    public int[] getOutstanding() {
+        int[] outstanding = new int[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            outstanding[i] = slots[i].outstanding.get();
+        }
+        return outstanding;
+    }
+
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String key) {
+        return submit(false, c -> c.get(key));
+    }
+
+    @Override
+    public CompletableFuture<Void> put(String key, byte[] value) {
+        return submit(false, c -> c.put(key, value));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> multiGet(Collection<String> keys) {
+        return submit(false, c -> c.multiGet(keys));
+    }
+
+    @Override
+    public CompletableFuture<Void> multiPut(Map<String, byte[]> pairs) {
+        return submit(false, c -> c.multiPut(pairs));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getWhen(String key, String keyCond, byte[] valueCond, long timeoutMillis) {
+        return submit(true, c -> c.getWhen(key, keyCond, valueCond, timeoutMillis));
+    }
+
+    @Override
+    public CompletableFuture<String> stats() {
+        return submit(false, AsyncCloudClient::stats);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        reconnector.shutdownNow();
+        for (Slot slot : slots) {
+            if (slot == null) continue;
+            AsyncCloudClient client = slot.client.getAndSet(null);
+            if (client != null) client.close(); // O servidor termina a sessão quando a ligação fecha
+        }
+    }
+}
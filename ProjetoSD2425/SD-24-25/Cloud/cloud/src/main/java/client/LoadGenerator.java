@@ -0,0 +1,435 @@
+package client;
+
+import common.CommonIdent;
+import common.Demux;
+import common.Histogram;
+import common.Threads;
+import manager.Message;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Gerador de carga: abre várias ligações (Demux), regista e autentica um utilizador por ligação e
+// põe 'workers' threads por ligação a fazer pedidos com a mistura de operações pedida.
+//
+// Modos:
+//   closed  cada thread faz o pedido seguinte assim que recebe a resposta (débito máximo).
+//   open    chegadas a ritmo fixo ('rate' pedidos/s no total): cada pedido tem uma hora marcada e a
+//           latência conta a partir dessa hora, não da hora a que foi enviado. Assim, quando o
+//           servidor atrasa, o tempo que os pedidos seguintes ficaram à espera também é medido
+//           (correção da "coordinated omission"). Se as threads não chegarem para o ritmo, o atraso
+//           máximo em relação ao calendário aparece no relatório ("max lag").
+// No modo closed, com expectedUs > 0, cada latência L > expectedUs é completada com os pedidos que
+// teriam sido feitos entretanto (L - E, L - 2E, ...), como o recordValueWithExpectedInterval do HdrHistogram.
+//
+// O servidor só deixa autenticar poucos utilizadores ao mesmo tempo (UserManager): com mais
+// ligações do que isso o login fica na fila do servidor e falha ao fim de 'loginTimeout' segundos.
+//
+// Uso: java client.LoadGenerator [opção=valor ...]
+//   host=localhost port=8080 mode=closed|open rate=10000 connections=2 workers=8
+//   duration=30 warmup=5 keys=100000 dist=uniform|zipf theta=0.99 valueSize=100 batch=10
+//   mix=put:20,get:70,multiput:2,multiget:5,getwhen:3 expectedUs=0 preload=true loginTimeout=5
+public class LoadGenerator {
+    private enum Op { PUT, GET, MULTIPUT, MULTIGET, GETWHEN }
+
+    private static final String USER_PREFIX = "loadgen";
+    private static final String COND_KEY = "loadgen:cond";
+    private static final byte[] COND_VALUE = "ready".getBytes();
+    private static final long GETWHEN_TIMEOUT_MILLIS = 1000;
+    private static final int PRELOAD_BATCH = 500;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 0.9999};
+    private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p99.9", "p99.99"};
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+    static {
+        DEFAULTS.put("host", "localhost");
+        DEFAULTS.put("port", "8080");
+        DEFAULTS.put("mode", "closed");
+        DEFAULTS.put("rate", "10000");
+        DEFAULTS.put("connections", "2");
+        DEFAULTS.put("workers", "8");
+        DEFAULTS.put("duration", "30");
+        DEFAULTS.put("warmup", "5");
+        DEFAULTS.put("keys", "100000");
+        DEFAULTS.put("dist", "uniform");
+        DEFAULTS.put("theta", "0.99");
+        DEFAULTS.put("valueSize", "100");
+        DEFAULTS.put("batch", "10");
+        DEFAULTS.put("mix", "put:20,get:70,multiput:2,multiget:5,getwhen:3");
+        DEFAULTS.put("expectedUs", "0");
+        DEFAULTS.put("preload", "true");
+        DEFAULTS.put("loginTimeout", "5");
+    }
+
+    // Estatísticas de um tipo de operação
+    private static final class OpStats {
+        final Histogram service = new Histogram();   // Do envio até à resposta
+        final Histogram corrected = new Histogram(); // Da hora marcada até à resposta
+        final LongAdder errors = new LongAdder();
+    }
+
+    private final Map<String, String> options;
+    private final boolean open;
+    private final int nKeys;
+    private final int batch;
+    private final byte[] value;
+    private final long expectedNanos;
+    private final KeyChooser keys;
+    private final Op[] mixOps;
+    private final int[] mixWeights; // Pesos acumulados
+    private final EnumMap<Op, OpStats> stats = new EnumMap<>(Op.class);
+    private final LongAccumulator maxLag = new LongAccumulator(Math::max, 0);
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.open = "open".equals(options.get("mode"));
+        this.nKeys = intOption("keys");
+        this.batch = Math.min(intOption("batch"), nKeys);
+        this.value = new byte[intOption("valueSize")];
+        ThreadLocalRandom.current().nextBytes(value);
+        this.expectedNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(options.get("expectedUs")));
+        this.keys = "zipf".equals(options.get("dist"))
+                ? new Zipfian(nKeys, Double.parseDouble(options.get("theta")))
+                : random -> random.nextInt(nKeys);
+
+        List<Op> ops = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        int total = 0;
+        for (String part : options.get("mix").split(",")) {
+            String[] kv = part.split(":");
+            int weight = Integer.parseInt(kv[1].trim());
+            if (weight <= 0) continue;
+            total += weight;
+            ops.add(Op.valueOf(kv[0].trim().toUpperCase()));
+            weights.add(total);
+        }
+        if (ops.isEmpty()) throw new IllegalArgumentException("Empty operation mix");
+        this.mixOps = ops.toArray(new Op[0]);
+        this.mixWeights = weights.stream().mapToInt(Integer::intValue).toArray();
+        for (Op op : Op.values()) {
+            stats.put(op, new OpStats());
+        }
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0 || !DEFAULTS.containsKey(arg.substring(0, eq))) {
+                System.err.println("Unknown option: " + arg + " (options: " + DEFAULTS.keySet() + ")");
+                System.exit(1);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        try {
+            new LoadGenerator(options).run();
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void run() throws Exception {
+        int nConnections = intOption("connections");
+        int nWorkers = intOption("workers");
+        List<Demux> connections = new ArrayList<>();
+        try {
+            for (int i = 0; i < nConnections; i++) {
+                connections.add(connect(USER_PREFIX + i));
+            }
+            Demux first = connections.get(0);
+            call(first, put(COND_KEY, COND_VALUE));
+            if (Boolean.parseBoolean(options.get("preload"))) {
+                preload(first);
+            }
+
+            long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("warmup")));
+            long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("duration")));
+            int totalWorkers = nConnections * nWorkers;
+            long intervalNanos = open ? (long) (1e9 * totalWorkers / Double.parseDouble(options.get("rate"))) : 0;
+            long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            long measureFrom = start + warmupNanos;
+            long end = measureFrom + durationNanos;
+
+            List<Thread> workers = new ArrayList<>();
+            for (int w = 0; w < totalWorkers; w++) {
+                Demux demux = connections.get(w % nConnections);
+                long firstAt = start + intervalNanos * w / totalWorkers; // Espalha as chegadas das threads
+                Thread t = Threads.newThread("loadgen-", () -> work(demux, firstAt, intervalNanos, measureFrom, end));
+                workers.add(t);
+                t.start();
+            }
+            for (Thread t : workers) {
+                t.join();
+            }
+            report(durationNanos);
+        } finally {
+            for (Demux demux : connections) {
+                try {
+                    call(demux, new Message(Message.Type.LOGOUT)); // Liberta o lugar de login no servidor
+                } catch (IOException e) {
+                    // Ligação já fechada
+                }
+                demux.close();
+            }
+        }
+    }
+
+    // Abre uma ligação e autentica-a com o utilizador dado (registado se ainda não existir)
+    private Demux connect(String username) throws Exception {
+        Demux demux = new Demux(new CommonIdent(new Socket(options.get("host"), intOption("port"))));
+        demux.start();
+        String credentials = username + ":" + username;
+        call(demux, new Message(Message.Type.REGISTER, credentials)); // Falha se já existir, não faz mal
+
+        Message request = new Message(Message.Type.LOGIN, credentials);
+        request.setTimeout(TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("loginTimeout")))); // Espera máxima na fila
+        int id = demux.sendMessage(request);
+        CompletableFuture<Message> login = CompletableFuture.supplyAsync(() -> {
+            try {
+                return demux.receive(id);
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Message reply;
+        try {
+            reply = login.get(Long.parseLong(options.get("loginTimeout")) + 1, TimeUnit.SECONDS); // O servidor desiste antes
+        } catch (TimeoutException e) {
+            demux.cancel(id); // Acorda a thread que esperava pela resposta
+            demux.close();
+            throw new IllegalStateException("Login of " + username + " timed out: the server limits simultaneous logins");
+        }
+        if (reply == null || !reply.isSuccess()) {
+            demux.close();
+            throw new IllegalStateException("Login of " + username + " failed: "
+                    + (reply != null ? reply.getPayload() : "connection closed"));
+        }
+        return demux;
+    }
+
+    private void preload(Demux demux) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        for (int from = 0; from < nKeys; from += PRELOAD_BATCH) {
+            Map<String, byte[]> entries = new LinkedHashMap<>();
+            for (int i = from; i < Math.min(nKeys, from + PRELOAD_BATCH); i++) {
+                entries.put(key(i), value);
+            }
+            Message message = new Message(Message.Type.MULTIPUT);
+            message.setEntries(entries);
+            call(demux, message);
+        }
+        System.out.printf("Preloaded %d keys in %d ms%n", nKeys, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void work(Demux demux, long firstAt, long intervalNanos, long measureFrom, long end) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long intended = firstAt;
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                if (open) {
+                    while (now < intended) { // Espera pela hora marcada
+                        LockSupport.parkNanos(intended - now);
+                        now = System.nanoTime();
+                    }
+                } else {
+                    intended = now;
+                }
+                if (intended >= end) return;
+
+                Op op = pick(random);
+                Message reply = call(demux, request(op, random));
+                long done = System.nanoTime();
+                if (reply == null) return; // Ligação fechada
+
+                if (intended >= measureFrom) {
+                    OpStats s = stats.get(op);
+                    long latency = done - intended;
+                    s.service.record(done - now);
+                    s.corrected.record(latency);
+                    if (!reply.isSuccess()) s.errors.increment();
+                    if (open) {
+                        maxLag.accumulate(now - intended);
+                    } else if (expectedNanos > 0) {
+                        for (long missed = latency - expectedNanos; missed >= expectedNanos; missed -= expectedNanos) {
+                            s.corrected.record(missed);
+                        }
+                    }
+                }
+                intended += intervalNanos;
+            }
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Worker stopped: " + e.getMessage());
+        }
+    }
+
+    private Op pick(ThreadLocalRandom random) {
+        int r = random.nextInt(mixWeights[mixWeights.length - 1]);
+        for (int i = 0; i < mixWeights.length; i++) {
+            if (r < mixWeights[i]) return mixOps[i];
+        }
+        return mixOps[mixOps.length - 1];
+    }
+
+    private static String key(int i) {
+        return "key" + i;
+    }
+
+    private Message request(Op op, ThreadLocalRandom random) {
+        switch (op) {
+            case PUT:
+                return put(key(keys.next(random)), value);
+            case GET: {
+                Message message = new Message(Message.Type.GET);
+                message.setKey(key(keys.next(random)));
+                return message;
+            }
+            case MULTIPUT: {
+                Map<String, byte[]> entries = new LinkedHashMap<>();
+                while (entries.size() < batch) {
+                    entries.put(key(keys.next(random)), value);
+                }
+                Message message = new Message(Message.Type.MULTIPUT);
+                message.setEntries(entries);
+                return message;
+            }
+            case MULTIGET: {
+                Set<String> batchKeys = new HashSet<>();
+                while (batchKeys.size() < batch) {
+                    batchKeys.add(key(keys.next(random)));
+                }
+                Message message = new Message(Message.Type.MULTIGET);
+                message.setKeys(batchKeys);
+                return message;
+            }
+            default: {
+                // Condição sempre verdadeira: mede o caminho do GETWHEN sem depender de outros pedidos
+                Message message = new Message(Message.Type.GETWHEN);
+                message.setKey(key(keys.next(random)));
+                message.setPayload(COND_KEY);
+                message.setData(COND_VALUE);
+                message.setTimeout(GETWHEN_TIMEOUT_MILLIS);
+                return message;
+            }
+        }
+    }
+
+    private static Message put(String key, byte[] data) {
+        return new Message(Message.Type.PUT, key, data);
+    }
+
+    private static Message call(Demux demux, Message request) throws IOException, InterruptedException {
+        return demux.receive(demux.sendMessage(request));
+    }
+
+    private void report(long durationNanos) {
+        long ops = 0;
+        long errors = 0;
+        for (OpStats s : stats.values()) {
+            ops += s.service.getCount();
+            errors += s.errors.sum();
+        }
+        System.out.printf("mode=%s%s connections=%s workers=%s keys=%d dist=%s value=%dB batch=%d%n",
+                options.get("mode"), open ? " rate=" + options.get("rate") + "/s" : "", options.get("connections"),
+                options.get("workers"), nKeys,
+                "zipf".equals(options.get("dist")) ? "zipf(" + options.get("theta") + ")" : "uniform",
+                value.length, batch);
+        System.out.printf(Locale.ROOT, "throughput: %.0f ops/s (%d ops, %d errors in %d s)%n",
+                ops / (durationNanos / 1e9), ops, errors, TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+        if (open) {
+            System.out.printf(Locale.ROOT, "max lag behind schedule: %.1f ms%n", maxLag.get() / 1e6);
+        }
+
+        boolean corrected = open || expectedNanos > 0;
+        System.out.printf("%-9s %-9s %9s", "latency", "(us)", "count");
+        for (String name : QUANTILE_NAMES) {
+            System.out.printf("%10s", name);
+        }
+        System.out.printf("%10s%n", "max");
+        for (Op op : Op.values()) {
+            OpStats s = stats.get(op);
+            if (s.service.getCount() == 0) continue;
+            row(op.name(), "service", s.service);
+            if (corrected) row("", "corrected", s.corrected);
+        }
+    }
+
+    private static void row(String op, String kind, Histogram histogram) {
+        System.out.printf("%-9s %-9s %9d", op, kind, histogram.getCount());
+        for (double q : QUANTILES) {
+            System.out.printf(Locale.ROOT, "%10.1f", histogram.getPercentile(q) / 1e3);
+        }
+        System.out.printf(Locale.ROOT, "%10.1f%n", histogram.getMax() / 1e3);
+    }
+
+    private interface KeyChooser {
+        int next(ThreadLocalRandom random);
+    }
+
+    // Distribuição de Zipf (Gray et al., "Quickly Generating Billion-Record Synthetic Databases", como
+    // no YCSB): a posição r é escolhida com probabilidade proporcional a 1/r^theta. As posições são
+    // espalhadas pelas chaves com um hash, para as chaves mais pedidas não ficarem todas seguidas.
+    private static final class Zipfian implements KeyChooser {
+        private final int n;
+        private final double theta;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+
+        Zipfian(int n, double theta) {
+            if (theta <= 0 || theta >= 1) throw new IllegalArgumentException("theta must be in (0, 1)");
+            this.n = n;
+            this.theta = theta;
+            this.zetaN = zeta(n, theta);
+            this.alpha = 1 / (1 - theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+        }
+
+        private static double zeta(int n, double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        @Override
+        public int next(ThreadLocalRandom random) {
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+            int rank;
+            if (uz < 1) rank = 0;
+            else if (uz < 1 + Math.pow(0.5, theta)) rank = 1;
+            else rank = Math.min(n - 1, (int) (n * Math.pow(eta * u - eta + 1, alpha)));
+            return (int) Long.remainderUnsigned(mix(rank), n);
+        }
+
+        // Finalizador do SplitMix64
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+    }
+}
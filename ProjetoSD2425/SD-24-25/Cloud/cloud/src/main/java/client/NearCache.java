@@ -0,0 +1,155 @@
+package client;
+
+import manager.Message;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Cache local dos valores lidos, mantida coerente pelo servidor (TRACKING): quando uma chave lida
+// por esta ligação muda, o servidor envia um INVALIDATE e a entrada sai da cache. Guarda também as
+// chaves inexistentes. Limitada a maxEntries, com LRU ou FIFO.
+//
+// Uma leitura que vai ao servidor só fica na cache se nenhuma invalidação da chave tiver chegado
+// enquanto estava em curso (beginRead/endRead): o valor podia já estar desatualizado.
+public class NearCache {
+    public enum Policy { LRU, FIFO }
+
+    static final byte[] ABSENT = new byte[0]; // Chave que não existe no servidor (comparada por identidade)
+
+    // Leituras da mesma chave em curso; epoch muda a cada invalidação
+    private static final class Reads {
+        int readers;
+        long epoch;
+    }
+
+    private final Lock lock = new ReentrantLock();
+    private final LinkedHashMap<String, byte[]> entries;
+    private final Map<String, Reads> reads = new HashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public NearCache(int maxEntries, Policy policy) {
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be positive");
+        this.entries = new LinkedHashMap<String, byte[]>(16, 0.75f, policy == Policy.LRU) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                if (size() <= maxEntries) return false;
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    // Cópia do valor na cache, ABSENT se a chave não existe, null se não está na cache
+    byte[] lookup(String key) {
+        byte[] value;
+        lock.lock();
+        try {
+            value = entries.get(key);
+        } finally {
+            lock.unlock();
+        }
+        if (value == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return value == ABSENT ? ABSENT : value.clone();
+    }
+
+    // Antes de pedir a chave ao servidor; o resultado é passado a endRead
+    long beginRead(String key) {
+        lock.lock();
+        try {
+            Reads r = reads.computeIfAbsent(key, k -> new Reads());
+            r.readers++;
+            return r.epoch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Fim da leitura; 'ok' falso se o pedido falhou (nada é guardado)
+    void endRead(String key, long epoch, byte[] value, boolean ok) {
+        lock.lock();
+        try {
+            Reads r = reads.get(key);
+            if (ok && r.epoch == epoch) {
+                entries.put(key, value == null ? ABSENT : value.clone());
+            }
+            if (--r.readers == 0) reads.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A chave mudou (escrita deste cliente ou INVALIDATE)
+    void invalidate(String key) {
+        lock.lock();
+        try {
+            entries.remove(key);
+            Reads r = reads.get(key);
+            if (r != null) r.epoch++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void invalidateAll() {
+        lock.lock();
+        try {
+            entries.clear();
+            for (Reads r : reads.values()) {
+                r.epoch++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Mensagem INVALIDATE do servidor: as chaves nas entries, ou tudo se não vier nenhuma
+    void onInvalidate(Message message) {
+        Map<String, byte[]> keys = message.getEntries();
+        if (keys == null || keys.isEmpty()) {
+            invalidateAll();
+            invalidations.increment();
+            return;
+        }
+        for (String key : keys.keySet()) {
+            invalidate(key);
+        }
+        invalidations.add(keys.size());
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    // Chaves invalidadas pelo servidor (uma invalidação de tudo conta como uma)
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+}
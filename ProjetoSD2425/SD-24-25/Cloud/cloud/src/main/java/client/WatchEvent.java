@@ -0,0 +1,47 @@
+package client;
+
+// Alteração de uma chave subscrita com AsyncCloudClient.watch. Se o cliente ficou para trás, as
+// alterações da mesma chave chegam juntas numa só (a mais recente). Um evento de reset (key null)
+// indica que se perderam alterações: quem precisa do estado atual tem de voltar a ler.
+public class WatchEvent {
+    private final String watchId;
+    private final String key;
+    private final byte[] value;
+    private final long version;
+
+    WatchEvent(String watchId, String key, byte[] value, long version) {
+        this.watchId = watchId;
+        this.key = key;
+        this.value = value;
+        this.version = version;
+    }
+
+    public String getWatchId() {
+        return watchId;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    // null se a chave foi removida
+    public byte[] getValue() {
+        return value;
+    }
+
+    // Cresce a cada alteração da mesma chave
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isReset() {
+        return key == null;
+    }
+
+    @Override
+    public String toString() {
+        if (isReset()) return "WatchEvent{" + watchId + ": reset}";
+        return "WatchEvent{" + watchId + ": " + key + " v" + version
+                + (value == null ? " removed" : " " + value.length + " bytes") + "}";
+    }
+}
@@ -0,0 +1,93 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Buffers reutilizáveis para ler e escrever mensagens (ver MessageCodec), em classes de tamanho
+// potências de 2 entre MIN_SIZE e MAX_SIZE. Cada classe guarda no máximo CLASS_BYTES de buffers
+// livres; pedidos maiores do que MAX_SIZE são alocados à parte e não voltam ao pool.
+// HEAP serve as ligações bloqueantes (CommonIdent escreve a partir do array); DIRECT o servidor NIO,
+// que assim lê e escreve no socket sem a cópia para um buffer direto temporário que o JDK faz.
+public final class BufferPool {
+    public static final BufferPool HEAP = new BufferPool(false);
+    public static final BufferPool DIRECT = new BufferPool(true);
+
+    static final int MIN_SIZE = 4 * 1024;
+    static final int MAX_SIZE = 4 * 1024 * 1024;
+    private static final int CLASS_BYTES = 16 * 1024 * 1024;
+
+    private final boolean direct;
+    private final ArrayDeque<ByteBuffer>[] free;
+    private final ReentrantLock[] locks;
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    private BufferPool(boolean direct) {
+        this.direct = direct;
+        int classes = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+        this.free = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[classes];
+        this.locks = new ReentrantLock[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ArrayDeque<>();
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    // Buffer limpo com pelo menos 'size' bytes de capacidade
+    public ByteBuffer acquire(int size) {
+        int index = classOf(size);
+        if (index < 0) {
+            allocated.increment();
+            return allocate(size);
+        }
+        ByteBuffer buffer;
+        locks[index].lock();
+        try {
+            buffer = free[index].pollLast();
+        } finally {
+            locks[index].unlock();
+        }
+        if (buffer == null) {
+            allocated.increment();
+            return allocate(MIN_SIZE << index);
+        }
+        reused.increment();
+        buffer.clear();
+        return buffer;
+    }
+
+    // Devolve um buffer obtido com acquire; quem o devolve deixa de o poder usar
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct) return;
+        int capacity = buffer.capacity();
+        int index = classOf(capacity);
+        if (index < 0 || MIN_SIZE << index != capacity) return; // Alocado à parte
+        locks[index].lock();
+        try {
+            if ((free[index].size() + 1) * capacity <= CLASS_BYTES) free[index].addLast(buffer);
+        } finally {
+            locks[index].unlock();
+        }
+    }
+
+    private static int classOf(int size) {
+        if (size > MAX_SIZE) return -1;
+        if (size <= MIN_SIZE) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    public long getAllocated() {
+        return allocated.sum();
+    }
+
+    public long getReused() {
+        return reused.sum();
+    }
+}
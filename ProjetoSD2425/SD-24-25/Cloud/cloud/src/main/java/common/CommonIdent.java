@@ -4,39 +4,120 @@ import manager.Message;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class CommonIdent {
-    private final DataInputStream in;
-    private final DataOutputStream out;
+// As mensagens são lidas e escritas com o MessageCodec: a receção lê do socket para um buffer do
+// BufferPool e descodifica daí; o envio escreve os campos e, à parte, os valores grandes tal como
+// estão. writeMessage/readMessage continuam a servir quem usa streams.
+// Sem setCoalescing cada mensagem enviada tem o seu flush; no servidor as respostas são agrupadas
+// entre startBatch e endBatch (ver WriteCoalescing).
+public class CommonIdent implements Connection {
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    private final InputStream in;
+    private final BufferedOutputStream out;
     private final Socket socket;
     private final ReentrantLock lock = new ReentrantLock();
     private final ReentrantLock reslock = new ReentrantLock();
+    private final MessageCodec codec = new MessageCodec(BufferPool.HEAP);
+    // Bytes recebidos entre position e limit; protegido pelo reslock
+    private ByteBuffer readBuffer = codec.getPool().acquire(INITIAL_BUFFER_SIZE);
+    // Agrupamento das respostas; protegidos pelo lock
+    private WriteCoalescing coalescing;
+    private boolean batching = false;
+    private int unflushed = 0; // Mensagens no buffer ainda por enviar
+    private long unflushedBytes = 0;
+    private long firstUnflushedNanos;
+    private boolean timerScheduled = false;
 
 
     // Construtor para inicializar a comunicação
     public CommonIdent(Socket socket) throws IOException {
         this.socket = socket;
-        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        // Cada mensagem segue logo: sem isto (Nagle) uma mensagem pequena enviada a seguir a outra
+        // ainda sem ACK, como um INVALIDATE, pode ficar retida até ~40 ms
+        socket.setTcpNoDelay(true);
+        this.in = socket.getInputStream();
+        this.out = new BufferedOutputStream(socket.getOutputStream(), WriteCoalescing.BUFFER_BYTES);
+        readBuffer.limit(0);
     }
 
     // Enviar mensagem genérica (compatível com a Message)
     public void sendMessage(Message message) throws IOException {
+        MessageCodec.Frame frame = codec.encode(message);
+        long size = frame.remaining();
         lock.lock();
         try {
-            this.out.writeInt(message.getType().ordinal());
-            this.out.writeUTF(message.getKey() != null ? message.getKey() : "");
-            if (message.getData() != null) {
-                this.out.writeInt(message.getData().length);
-                this.out.write(message.getData());
-            } else {
-                this.out.writeInt(0);
+            // A mensagem não cabe no que resta do buffer: segue primeiro o que lá está
+            if (unflushed > 0 && unflushedBytes + size > WriteCoalescing.BUFFER_BYTES) flushLocked();
+            // Os segmentos grandes passam diretamente para o socket, sem cópia para o buffer
+            for (ByteBuffer segment : frame.segments()) {
+                this.out.write(segment.array(), segment.arrayOffset() + segment.position(), segment.remaining());
+            }
+            if (unflushed++ == 0) firstUnflushedNanos = System.nanoTime();
+            unflushedBytes += size;
+            if (!batching || System.nanoTime() - firstUnflushedNanos >= coalescing.getMaxDelayNanos()) {
+                flushLocked();
+            } else if (!timerScheduled) {
+                timerScheduled = true;
+                coalescing.schedule(this::flushExpired);
             }
-            this.out.writeUTF(message.getPayload() != null ? message.getPayload() : "");
-            this.out.writeBoolean(message.isSuccess());
-            this.out.writeUTF(message.getErrorMessage() != null ? message.getErrorMessage() : "");
-            this.out.flush();
+        } finally {
+            lock.unlock();
+            frame.release();
+        }
+    }
+
+    // Servidor: conta os flushes em 'coalescing' e permite agrupar respostas com startBatch
+    public void setCoalescing(WriteCoalescing coalescing) {
+        lock.lock();
+        try {
+            this.coalescing = coalescing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // As mensagens enviadas a partir daqui ficam no buffer até endBatch, ao buffer encher ou
+    // ao atraso máximo do WriteCoalescing
+    public void startBatch() {
+        lock.lock();
+        try {
+            if (coalescing != null && coalescing.isEnabled()) batching = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void endBatch() throws IOException {
+        lock.lock();
+        try {
+            batching = false;
+            if (unflushed > 0) flushLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Deve ser chamado com o lock
+    private void flushLocked() throws IOException {
+        this.out.flush();
+        if (coalescing != null) coalescing.flushed(unflushed);
+        unflushed = 0;
+        unflushedBytes = 0;
+    }
+
+    // Timer do WriteCoalescing: envia o que ficou no buffer durante um lote demorado
+    private void flushExpired() {
+        lock.lock();
+        try {
+            timerScheduled = false;
+            if (unflushed > 0) flushLocked();
+        } catch (IOException e) {
+            // A ligação falhou: quem lê dela dá pelo erro
         } finally {
             lock.unlock();
         }
@@ -46,31 +127,180 @@ public class CommonIdent {
     public Message receiveMessage() throws IOException {
         reslock.lock();
         try {
-            Message.Type type = Message.Type.values()[this.in.readInt()];
-            String key = this.in.readUTF();
-            int dataLength = this.in.readInt();
-            byte[] data = null;
-            if (dataLength > 0) {
-                data = new byte[dataLength];
-                this.in.readFully(data); // Substituto para readNBytes
+            int length;
+            while ((length = frameLength(readBuffer)) < 0) {
+                fill();
+            }
+            int end = readBuffer.position() + length;
+            Message message = codec.decode(readBuffer);
+            if (readBuffer.position() != end) throw new IOException("Malformed message");
+            if (!readBuffer.hasRemaining()) {
+                // Tudo lido: um buffer que cresceu para uma mensagem grande volta ao pool
+                if (readBuffer.capacity() > INITIAL_BUFFER_SIZE) {
+                    codec.getPool().release(readBuffer);
+                    readBuffer = codec.getPool().acquire(INITIAL_BUFFER_SIZE);
+                }
+                readBuffer.limit(0);
             }
-            String payload = this.in.readUTF();
-            boolean success = this.in.readBoolean();
-            String errorMessage = this.in.readUTF();
-
-            Message message = new Message(type);
-            message.setKey(key.isEmpty() ? null : key);
-            message.setData(data);
-            message.setPayload(payload.isEmpty() ? null : payload);
-            message.setSuccess(success);
-            message.setErrorMessage(errorMessage.isEmpty() ? null : errorMessage);
-
             return message;
         } finally {
             reslock.unlock();
         }
     }
 
+    // Verdadeiro se já foram recebidos mais bytes (no buffer ou no socket) do que as mensagens lidas
+    public boolean hasPendingInput() throws IOException {
+        reslock.lock();
+        try {
+            return readBuffer.hasRemaining() || in.available() > 0;
+        } finally {
+            reslock.unlock();
+        }
+    }
+
+    // Lê mais bytes do socket para o fim do readBuffer, arrumando-o ou aumentando-o se estiver cheio
+    // (até MessageCodec.MAX_FRAME_SIZE, como o NioConnection)
+    private void fill() throws IOException {
+        if (readBuffer.limit() == readBuffer.capacity()) {
+            if (readBuffer.position() > 0) {
+                readBuffer.compact().flip();
+            } else {
+                if (readBuffer.capacity() >= MessageCodec.MAX_FRAME_SIZE) {
+                    throw new IOException("Message too large");
+                }
+                ByteBuffer bigger = codec.getPool().acquire(Math.min(readBuffer.capacity() * 2, MessageCodec.MAX_FRAME_SIZE));
+                bigger.put(readBuffer).flip();
+                codec.getPool().release(readBuffer);
+                readBuffer = bigger;
+            }
+        }
+        int limit = readBuffer.limit();
+        int n = in.read(readBuffer.array(), readBuffer.arrayOffset() + limit, readBuffer.capacity() - limit);
+        if (n < 0) throw new EOFException();
+        readBuffer.limit(limit + n);
+    }
+
+    // Formato de uma mensagem na rede, partilhado com o servidor NIO
+    public static void writeMessage(DataOutput out, Message message) throws IOException {
+        out.writeInt(message.getType().ordinal());
+        out.writeInt(message.getRequestId());
+        out.writeUTF(message.getKey() != null ? message.getKey() : "");
+        if (message.getData() != null) {
+            out.writeInt(message.getData().length);
+            out.write(message.getData());
+        } else {
+            out.writeInt(0);
+        }
+        out.writeUTF(message.getPayload() != null ? message.getPayload() : "");
+        out.writeBoolean(message.isSuccess());
+        out.writeUTF(message.getErrorMessage() != null ? message.getErrorMessage() : "");
+        out.writeLong(message.getTimeout());
+        writeEntries(out, message.getEntries());
+    }
+
+    // Lote de pares: número de pares (-1 se não houver lote) e, para cada um,
+    // a chave e o valor com o tamanho à frente (-1 para valor null)
+    private static void writeEntries(DataOutput out, Map<String, byte[]> entries) throws IOException {
+        if (entries == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(entries.size());
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            out.writeUTF(entry.getKey());
+            byte[] value = entry.getValue();
+            if (value != null) {
+                out.writeInt(value.length);
+                out.write(value);
+            } else {
+                out.writeInt(-1);
+            }
+        }
+    }
+
+    private static Map<String, byte[]> readEntries(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) return null;
+        Map<String, byte[]> entries = new LinkedHashMap<>(Math.max(16, (int) (count / 0.75f) + 1));
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            int length = in.readInt();
+            byte[] value = null;
+            if (length >= 0) {
+                value = new byte[length];
+                in.readFully(value);
+            }
+            entries.put(key, value);
+        }
+        return entries;
+    }
+
+    public static Message readMessage(DataInput in) throws IOException {
+        Message.Type type = Message.Type.values()[in.readInt()];
+        int requestId = in.readInt();
+        String key = in.readUTF();
+        int dataLength = in.readInt();
+        byte[] data = null;
+        if (dataLength > 0) {
+            data = new byte[dataLength];
+            in.readFully(data); // Substituto para readNBytes
+        }
+        String payload = in.readUTF();
+        boolean success = in.readBoolean();
+        String errorMessage = in.readUTF();
+        long timeout = in.readLong();
+        Map<String, byte[]> entries = readEntries(in);
+
+        Message message = new Message(type);
+        message.setRequestId(requestId);
+        message.setKey(key.isEmpty() ? null : key);
+        message.setData(data);
+        message.setPayload(payload.isEmpty() ? null : payload);
+        message.setSuccess(success);
+        message.setErrorMessage(errorMessage.isEmpty() ? null : errorMessage);
+        message.setTimeout(timeout);
+        message.setEntries(entries);
+
+        return message;
+    }
+
+    // Tamanho em bytes da mensagem que começa em buf.position(), ou -1 se ainda não
+    // chegou toda (entre position e limit). Não altera o buffer. Lança IOException logo que os
+    // tamanhos lidos passem de MessageCodec.MAX_FRAME_SIZE, sem esperar pelo resto da mensagem.
+    // As contas são em long: um tamanho perto de Integer.MAX_VALUE não pode dar a volta.
+    public static int frameLength(ByteBuffer buf) throws IOException {
+        int start = buf.position();
+        long max = start + (long) MessageCodec.MAX_FRAME_SIZE;
+        int end = buf.limit();
+        long p = start + 8; // type + requestId
+        p = skipUTF(buf, p, end); // key
+        if (p < 0 || p + 4 > end) return -1;
+        p += 4L + Math.max(buf.getInt((int) p), 0); // data
+        if (p > max) throw new IOException("Message too large");
+        p = skipUTF(buf, p, end); // payload
+        if (p < 0) return -1;
+        p += 1; // success
+        p = skipUTF(buf, p, end); // errorMessage
+        if (p < 0) return -1;
+        p += 8; // timeout
+        if (p + 4 > end) return -1;
+        int count = buf.getInt((int) p); // entries
+        p += 4;
+        for (int i = 0; i < count; i++) {
+            p = skipUTF(buf, p, end);
+            if (p < 0 || p + 4 > end) return -1;
+            p += 4L + Math.max(buf.getInt((int) p), 0);
+            if (p > max) throw new IOException("Message too large");
+        }
+        if (p > max) throw new IOException("Message too large");
+        return p <= end ? (int) (p - start) : -1;
+    }
+
+    private static long skipUTF(ByteBuffer buf, long p, int end) {
+        if (p < 0 || p + 2 > end) return -1;
+        return p + 2 + (buf.getShort((int) p) & 0xffff);
+    }
+
     // Fechar conexões
     public void cleanup() {
         try {
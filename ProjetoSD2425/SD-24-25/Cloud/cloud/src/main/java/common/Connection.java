@@ -0,0 +1,22 @@
+package common;
+
+import manager.Message;
+
+import java.io.IOException;
+import java.net.Socket;
+
+// Ligação a um cliente do ponto de vista de quem trata os pedidos:
+// implementada pelo CommonIdent (sockets bloqueantes) e pelo servidor NIO
+public interface Connection {
+    void sendMessage(Message message) throws IOException;
+
+    Socket getSocket();
+
+    // Verdadeiro se ainda há mensagens anteriores por escrever no socket (cliente a ler devagar).
+    // Numa ligação bloqueante o envio espera pelo cliente e isto é sempre falso.
+    default boolean isBackedUp() {
+        return false;
+    }
+
+    void close();
+}
@@ -4,19 +4,28 @@ import manager.Message;
 
 import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class Demux {
     private final CommonIdent conn;
     private final Lock lock = new ReentrantLock();
+    // Respostas por requestId; só há entrada para os pedidos de sendMessage ainda por receber
     private final Map<Integer, Entry> buf = new HashMap<>();
+    // Pedidos feitos com sendAsync: a resposta completa o futuro em vez de ir para o buf
+    private final Map<Integer, CompletableFuture<Message>> futures = new HashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
     private IOException exception = null;
     private volatile boolean running = true; // Para gerenciar a thread de recepção
+    private volatile Consumer<Message> pushHandler; // Mensagens do servidor sem pedido (requestId 0)
 
     public class Entry {
         final Condition cond = lock.newCondition();
@@ -36,22 +45,35 @@ public class Demux {
         this.conn = conn;
     }
 
-    // Inicia a thread para processar mensagens recebidas
+    // Inicia a thread para processar mensagens recebidas (virtual com -Dcloud.threads=virtual)
     public void start() {
-        new Thread(() -> {
+        Threads.newThread("demux-reader-", () -> {
             try {
                 while (running) {
                     Message message = conn.receiveMessage(); // Usa o método atualizado do CommonIdent
                     if (message == null) break;
 
+                    if (message.getRequestId() == 0) {
+                        Consumer<Message> push = pushHandler;
+                        if (push != null) push.accept(message); // Corre nesta thread: não pode bloquear
+                        continue; // Sem handler ninguém as lê: descartadas
+                    }
+
+                    CompletableFuture<Message> future;
                     lock.lock();
                     try {
-                        Entry e = get(message.getType().ordinal()); // Mapeia o tipo para o ID
-                        e.queue.add(message);
-                        e.cond.signal();
+                        future = futures.remove(message.getRequestId());
+                        Entry e = future == null ? buf.get(message.getRequestId()) : null;
+                        if (e != null) { // Entrega ao pedido com o mesmo ID
+                            e.queue.add(message);
+                            e.cond.signal();
+                        } else if (future == null) {
+                            Log.debug("Dropping reply to cancelled request {}", message.getRequestId());
+                        }
                     } finally {
                         lock.unlock();
                     }
+                    if (future != null) future.complete(message); // Fora do lock: corre os callbacks
                 }
             } catch (IOException e) {
                 lock.lock();
@@ -61,75 +83,145 @@ public class Demux {
                 } finally {
                     lock.unlock();
                 }
+                failPending(e);
             }
         }).start();
     }
 
-    // Enviar uma mensagem genérica
-    public void sendMessage(Message message) throws IOException {
-        conn.sendMessage(message);
+    // Falha os pedidos assíncronos ainda sem resposta
+    private void failPending(IOException e) {
+        List<CompletableFuture<Message>> pending;
+        lock.lock();
+        try {
+            pending = new ArrayList<>(futures.values());
+            futures.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (CompletableFuture<Message> future : pending) {
+            future.completeExceptionally(e);
+        }
     }
 
-    // Enviar autenticação
-    public void sendAuth(int id, String username, String password) throws IOException {
-        Message message = new Message(Message.Type.values()[id]);
-        message.setPayload(username + ":" + password);
-        sendMessage(message);
+    // Recebe as mensagens enviadas pelo servidor por iniciativa própria (INVALIDATE), por ordem de chegada
+    public void setPushHandler(Consumer<Message> handler) {
+        this.pushHandler = handler;
     }
 
-    // Enviar mensagem PUT
-    public void sendMessagePut(int id, String username, String key, String value) throws IOException {
-        Message message = new Message(Message.Type.values()[id]);
-        message.setKey(key);
-        message.setData(value.getBytes());
-        message.setPayload(username);
-        sendMessage(message);
+    // Enviar uma mensagem genérica; devolve o requestId a usar em receive() ou, se a resposta
+    // deixar de interessar, em cancel()
+    public int sendMessage(Message message) throws IOException {
+        if (message.getRequestId() == 0) {
+            message.setRequestId(newRequestId());
+        }
+        int id = message.getRequestId();
+        lock.lock();
+        try {
+            get(id); // Antes de enviar: a resposta pode chegar antes de receive()
+        } finally {
+            lock.unlock();
+        }
+        try {
+            conn.sendMessage(message);
+        } catch (IOException e) {
+            cancel(id);
+            throw e;
+        }
+        return id;
     }
 
-    // Enviar mensagem GET
-    public void sendMessageGet(int id, String username, String key) throws IOException {
-        Message message = new Message(Message.Type.values()[id]);
-        message.setKey(key);
-        message.setPayload(username);
-        sendMessage(message);
+    // Desiste da resposta ao pedido dado (sendMessage ou sendAsync); se ainda chegar, é descartada
+    public void cancel(int id) {
+        CompletableFuture<Message> future;
+        lock.lock();
+        try {
+            Entry e = buf.remove(id);
+            if (e != null) e.cond.signalAll();
+            future = futures.remove(id);
+        } finally {
+            lock.unlock();
+        }
+        if (future != null) future.cancel(false);
     }
 
-    // Receber uma mensagem específica pelo tipo
-    public Message receive(int id) throws IOException, InterruptedException {
+    // Envia o pedido sem esperar; o futuro é completado pela thread de receção quando chegar a
+    // resposta, ou falha se a ligação cair. Os callbacks síncronos correm nessa thread e não devem bloquear.
+    public CompletableFuture<Message> sendAsync(Message message) {
+        if (message.getRequestId() == 0) {
+            message.setRequestId(newRequestId());
+        }
+        int id = message.getRequestId();
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        lock.lock();
+        try {
+            if (exception != null || !running) {
+                future.completeExceptionally(exception != null ? exception : new IOException("Connection closed"));
+                return future;
+            }
+            futures.put(id, future);
+        } finally {
+            lock.unlock();
+        }
         try {
+            conn.sendMessage(message);
+        } catch (IOException e) {
             lock.lock();
+            try {
+                futures.remove(id);
+            } finally {
+                lock.unlock();
+            }
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private int newRequestId() {
+        int id;
+        do {
+            id = nextRequestId.incrementAndGet();
+        } while (id == 0); // 0 fica reservado para mensagens sem pedido associado
+        return id;
+    }
+
+    // Receber a resposta ao pedido com o requestId dado; null se a ligação fechar ou o pedido for cancelado
+    public Message receive(int id) throws IOException, InterruptedException {
+        lock.lock();
+        try {
             Entry e = get(id);
 
-            while (e.queue.isEmpty() && exception == null && running) {
+            while (e.queue.isEmpty() && exception == null && running && buf.get(id) == e) {
                 e.cond.await();
             }
 
             if (!e.queue.isEmpty()) {
-                return e.queue.poll();
+                Message message = e.queue.poll();
+                if (e.queue.isEmpty()) buf.remove(id); // Pedido respondido
+                return message;
             }
 
+            buf.remove(id, e);
             if (exception != null) {
                 throw exception;
             }
 
             return null;
+        } catch (InterruptedException ex) {
+            buf.remove(id); // Ninguém vai ler a resposta
+            throw ex;
         } finally {
             lock.unlock();
         }
     }
 
-    public void sendMessageMultiPut(int id, String username, Map<String, String> pairs) throws IOException {
-        Message message = new Message(Message.Type.values()[id]);
-        message.setPayload(username);
-        message.setData(pairs.toString().getBytes());
-        sendMessage(message);
-    }
-
-    public void sendMessageMultiGet(int id, String username, Set<String> keys) throws IOException {
-        Message message = new Message(Message.Type.values()[id]);
-        message.setPayload(username);
-        message.setData(String.join(",", keys).getBytes());
-        sendMessage(message);
+    // Falso depois de close() ou de a ligação ter falhado
+    public boolean isConnected() {
+        lock.lock();
+        try {
+            return running && exception == null;
+        } finally {
+            lock.unlock();
+        }
     }
 
     // Finalizar a conexão e encerrar a thread
@@ -141,6 +233,7 @@ public class Demux {
         } finally {
             lock.unlock();
         }
+        failPending(new IOException("Connection closed"));
 
         conn.close();
     }
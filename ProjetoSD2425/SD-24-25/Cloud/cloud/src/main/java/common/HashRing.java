@@ -0,0 +1,77 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Anel de hashing consistente: cada nó ("host:porta") ocupa 'vnodes' posições no anel e cada chave
+// pertence ao primeiro nó a seguir ao hash dela. Juntar ou retirar um nó só muda o dono das chaves
+// nas posições desse nó. É imutável; cada alteração do cluster cria um anel com uma epoch maior.
+// Representado em texto como "epoch;vnodes;nó1,nó2,...", igual no cliente e no servidor.
+public final class HashRing {
+    public static final int DEFAULT_VNODES = 128;
+
+    private final long epoch;
+    private final int vnodes;
+    private final List<String> nodes;
+    private final TreeMap<Long, String> positions = new TreeMap<>();
+
+    public HashRing(long epoch, int vnodes, List<String> nodes) {
+        if (nodes.isEmpty() || vnodes < 1) throw new IllegalArgumentException("Empty ring");
+        this.epoch = epoch;
+        this.vnodes = vnodes;
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        for (String node : nodes) {
+            for (int i = 0; i < vnodes; i++) {
+                positions.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    public static HashRing parse(String spec) {
+        String[] parts = spec.split(";");
+        if (parts.length != 3) throw new IllegalArgumentException("Invalid ring: " + spec);
+        return new HashRing(Long.parseLong(parts[0]), Integer.parseInt(parts[1]), Arrays.asList(parts[2].split(",")));
+    }
+
+    public String ownerOf(String key) {
+        Map.Entry<Long, String> entry = positions.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : positions.firstEntry().getValue();
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public int getVnodes() {
+        return vnodes;
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    // FNV-1a de 64 bits seguido da mistura final do MurmurHash3, para espalhar chaves parecidas
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return epoch + ";" + vnodes + ";" + String.join(",", nodes);
+    }
+}
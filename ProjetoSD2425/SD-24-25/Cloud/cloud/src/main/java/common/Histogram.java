@@ -0,0 +1,81 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Histograma de latências (em nanossegundos) com buckets log-lineares, à maneira do HdrHistogram:
+// cada potência de 2 está dividida em 32 sub-buckets, pelo que o erro de qualquer percentil é
+// inferior a ~3%. Registar um valor é só um incremento atómico num array, sem locks nem alocação.
+// Os valores acima de 2^40 ns (~18 min) ficam no último bucket.
+public class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    // Valores < 32 têm um bucket cada; acima disso, 32 buckets por potência de 2
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) Math.max(0, value);
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Maior valor que cai no bucket
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long lower = ((long) (SUB_BUCKETS + sub)) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    public void record(long nanos) {
+        counts.incrementAndGet(bucketOf(nanos));
+        total.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = total.sum();
+        return n == 0 ? 0 : sum.sum() / (double) n;
+    }
+
+    // Valor abaixo do qual está a fração 'p' (0..1) dos registos (limite superior do bucket)
+    public long getPercentile(double p) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(upperBoundOf(i), getMax());
+        }
+        return getMax();
+    }
+}
@@ -0,0 +1,273 @@
+package common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Log assíncrono do servidor.
+// Quem regista não formata nada: reserva uma posição num buffer circular de eventos pré-alocados
+// (CAS num contador) e guarda lá o formato e as referências dos argumentos. Uma única thread
+// ("log-writer") esvazia o buffer por ordem, formata ("{}" é substituído pelo argumento seguinte)
+// e escreve em lote para o ficheiro, que roda ao atingir o tamanho máximo. Se o buffer estiver
+// cheio o evento é descartado e contado, nunca bloqueia quem regista.
+//
+// Configuração (-D):
+//   cloud.log.level=DEBUG|INFO|WARN|ERROR|OFF (INFO)
+//   cloud.log.sample=N        regista só 1 em cada N eventos DEBUG/INFO (1)
+//   cloud.log.file=FICHEIRO   sem ficheiro escreve para a consola
+//   cloud.log.maxBytes, cloud.log.files  rotação (64 MB, 5 ficheiros)
+//   cloud.log.bufferSize      eventos no buffer (65536, potência de 2)
+public final class Log {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final Level LEVEL = Level.valueOf(System.getProperty("cloud.log.level", "INFO").toUpperCase());
+    private static final int SAMPLE = Math.max(1, Integer.getInteger("cloud.log.sample", 1));
+    private static final String FILE = System.getProperty("cloud.log.file");
+    private static final long MAX_BYTES = Long.getLong("cloud.log.maxBytes", 64L * 1024 * 1024);
+    private static final int MAX_FILES = Integer.getInteger("cloud.log.files", 5);
+    private static final int BUFFER_SIZE = Integer.highestOneBit(Math.max(2, Integer.getInteger("cloud.log.bufferSize", 65536)));
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // Posição do buffer; reutilizada depois de escrita
+    private static final class Event {
+        private volatile long sequence = -1; // Número do evento publicado nesta posição
+        private Level level;
+        private long time;
+        private String format;
+        private Object a0, a1, a2, a3, a4, a5;
+    }
+
+    private static final Event[] RING = new Event[BUFFER_SIZE];
+    private static final int MASK = BUFFER_SIZE - 1;
+    private static final AtomicLong HEAD = new AtomicLong(); // Próximo número a reservar
+    private static final AtomicLong TAIL = new AtomicLong(); // Próximo número a escrever
+    private static final AtomicLong FLUSHED = new AtomicLong(); // Eventos antes deste já saíram do processo
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final Thread WRITER;
+
+    static {
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            RING[i] = new Event();
+        }
+        if (LEVEL != Level.OFF) {
+            WRITER = new Thread(new LogWriter(), "log-writer");
+            WRITER.setDaemon(true);
+            WRITER.start();
+            // Escreve o que ficou no buffer antes de a JVM terminar
+            Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+        } else {
+            WRITER = null;
+        }
+    }
+
+    private Log() {}
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0 && level != Level.OFF;
+    }
+
+    public static void debug(String format, Object a0) {
+        log(Level.DEBUG, format, a0, null, null, null, null, null);
+    }
+
+    public static void debug(String format, Object a0, Object a1) {
+        log(Level.DEBUG, format, a0, a1, null, null, null, null);
+    }
+
+    public static void info(String format, Object a0) {
+        log(Level.INFO, format, a0, null, null, null, null, null);
+    }
+
+    public static void info(String format, Object a0, Object a1) {
+        log(Level.INFO, format, a0, a1, null, null, null, null);
+    }
+
+    public static void warn(String format, Object a0) {
+        log(Level.WARN, format, a0, null, null, null, null, null);
+    }
+
+    public static void warn(String format, Object a0, Object a1) {
+        log(Level.WARN, format, a0, a1, null, null, null, null);
+    }
+
+    public static void error(String format, Object a0) {
+        log(Level.ERROR, format, a0, null, null, null, null, null);
+    }
+
+    public static void log(Level level, String format, Object a0, Object a1, Object a2,
+                           Object a3, Object a4, Object a5) {
+        if (!isEnabled(level)) return;
+        if (SAMPLE > 1 && level.compareTo(Level.WARN) < 0 && ThreadLocalRandom.current().nextInt(SAMPLE) != 0) return;
+
+        long sequence;
+        do {
+            sequence = HEAD.get();
+            if (sequence - TAIL.get() >= BUFFER_SIZE) {
+                DROPPED.increment(); // Buffer cheio: o writer não acompanha
+                return;
+            }
+        } while (!HEAD.compareAndSet(sequence, sequence + 1));
+
+        Event event = RING[(int) sequence & MASK];
+        event.level = level;
+        event.time = System.currentTimeMillis();
+        event.format = format;
+        event.a0 = a0;
+        event.a1 = a1;
+        event.a2 = a2;
+        event.a3 = a3;
+        event.a4 = a4;
+        event.a5 = a5;
+        event.sequence = sequence; // Publica o evento para o writer
+    }
+
+    // Eventos descartados por o buffer estar cheio
+    public static long getDropped() {
+        return DROPPED.sum();
+    }
+
+    // Espera (no máximo 1 s) até o writer ter escrito tudo o que já foi registado
+    public static void flush() {
+        if (WRITER == null) return;
+        long target = HEAD.get();
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        while (FLUSHED.get() < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    private static final class LogWriter implements Runnable {
+        private final StringBuilder line = new StringBuilder(256);
+        private Writer out;
+        private long fileBytes;
+        private long reportedDrops = 0;
+        private long lastSecond = -1;
+        private String secondPrefix;
+
+        @Override
+        public void run() {
+            try {
+                open();
+                while (true) {
+                    int written = drain();
+                    long drops = DROPPED.sum();
+                    if (drops != reportedDrops) {
+                        write(Level.WARN, System.currentTimeMillis(), (drops - reportedDrops) + " log events dropped (buffer full)");
+                        reportedDrops = drops;
+                    }
+                    if (written == 0) {
+                        out.flush();
+                        FLUSHED.lazySet(TAIL.get());
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Log writer error: " + e.getMessage());
+            }
+        }
+
+        // Escreve os eventos publicados por ordem; pára no primeiro ainda por publicar
+        private int drain() throws IOException {
+            int written = 0;
+            long next = TAIL.get();
+            while (true) {
+                Event event = RING[(int) next & MASK];
+                if (event.sequence != next) break;
+
+                line.setLength(0);
+                format(event);
+                write(event.level, event.time, line);
+                event.format = null;
+                event.a0 = event.a1 = event.a2 = event.a3 = event.a4 = event.a5 = null;
+                TAIL.lazySet(++next);
+                written++;
+            }
+            return written;
+        }
+
+        private void format(Event event) {
+            String format = event.format;
+            int arg = 0;
+            int from = 0;
+            int at;
+            while ((at = format.indexOf("{}", from)) >= 0 && arg < 6) {
+                line.append(format, from, at);
+                Object value = arg(event, arg++);
+                line.append(value instanceof byte[] ? new String((byte[]) value, StandardCharsets.UTF_8) : value);
+                from = at + 2;
+            }
+            line.append(format, from, format.length());
+        }
+
+        private static Object arg(Event event, int i) {
+            switch (i) {
+                case 0: return event.a0;
+                case 1: return event.a1;
+                case 2: return event.a2;
+                case 3: return event.a3;
+                case 4: return event.a4;
+                default: return event.a5;
+            }
+        }
+
+        // "aaaa-mm-dd hh:mm:ss.mmm NIVEL mensagem"; a parte até aos segundos só é formatada uma vez por segundo
+        private void write(Level level, long time, CharSequence message) throws IOException {
+            long second = time / 1000;
+            if (second != lastSecond) {
+                secondPrefix = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()).format(TIME);
+                lastSecond = second;
+            }
+            int millis = (int) (time % 1000);
+            out.write(secondPrefix);
+            out.write(millis < 10 ? ".00" : millis < 100 ? ".0" : ".");
+            out.write(Integer.toString(millis));
+            out.write(' ');
+            out.write(level.name());
+            out.write(level.name().length() == 4 ? "  " : " ");
+            out.append(message);
+            out.write('\n');
+            if (FILE != null) {
+                fileBytes += secondPrefix.length() + 11 + message.length();
+                if (fileBytes >= MAX_BYTES) rotate();
+            }
+        }
+
+        private void open() throws IOException {
+            if (FILE == null) {
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)), 64 * 1024);
+                return;
+            }
+            Path path = Paths.get(FILE);
+            fileBytes = Files.exists(path) ? Files.size(path) : 0;
+            out = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        // cloud.log -> cloud.log.1 -> ... -> cloud.log.<files-1>; o mais antigo é apagado
+        private void rotate() throws IOException {
+            out.close();
+            Path path = Paths.get(FILE);
+            Files.deleteIfExists(Paths.get(FILE + "." + (MAX_FILES - 1)));
+            for (int i = MAX_FILES - 2; i >= 1; i--) {
+                Path from = Paths.get(FILE + "." + i);
+                if (Files.exists(from)) Files.move(from, Paths.get(FILE + "." + (i + 1)));
+            }
+            if (MAX_FILES > 1) {
+                Files.move(path, Paths.get(FILE + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(path);
+            }
+            open();
+        }
+    }
+}
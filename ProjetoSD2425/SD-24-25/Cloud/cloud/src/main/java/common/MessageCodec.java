@@ -0,0 +1,262 @@
+package common;
+
+import manager.Message;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Codifica e descodifica mensagens diretamente em ByteBuffers, no mesmo formato que
+// CommonIdent.writeMessage/readMessage, sem DataInputStream/DataOutputStream pelo meio.
+//
+// decode lê uma mensagem já completa no buffer (ver CommonIdent.frameLength): cada valor é copiado
+// uma única vez, do buffer para o array que a Message leva e que o MapAccess guarda tal como está;
+// as strings passam por um char[] reutilizado. Não é thread-safe: cada ligação tem o seu codec,
+// usado só por quem lê.
+//
+// encode escreve os campos num buffer do BufferPool e deixa os valores grandes de fora: o Frame é a
+// lista de buffers a enviar por ordem (escrita "gathering"), em que esses valores são o próprio
+// array guardado no MapAccess, sem cópias. Pode ser chamado de qualquer thread.
+public final class MessageCodec {
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    // Valores a partir deste tamanho seguem no seu próprio buffer em vez de serem copiados
+    static final int INLINE_VALUE_LIMIT = 1024;
+
+    private static final Message.Type[] TYPES = Message.Type.values();
+
+    private final BufferPool pool;
+    private char[] chars = new char[256];
+
+    public MessageCodec(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    public BufferPool getPool() {
+        return pool;
+    }
+
+    // Mensagem codificada: 'segments' por ordem; release devolve o buffer dos campos ao pool
+    public static final class Frame {
+        private final ByteBuffer[] segments;
+        private final ByteBuffer pooled;
+        private final BufferPool pool;
+
+        private Frame(ByteBuffer[] segments, ByteBuffer pooled, BufferPool pool) {
+            this.segments = segments;
+            this.pooled = pooled;
+            this.pool = pool;
+        }
+
+        public ByteBuffer[] segments() {
+            return segments;
+        }
+
+        // O último segmento pode estar vazio (lote que acaba num valor grande): vê-se um a um
+        public boolean hasRemaining() {
+            for (ByteBuffer segment : segments) {
+                if (segment.hasRemaining()) return true;
+            }
+            return false;
+        }
+
+        public long remaining() {
+            long remaining = 0;
+            for (ByteBuffer segment : segments) {
+                remaining += segment.remaining();
+            }
+            return remaining;
+        }
+
+        // Só depois de todos os segmentos terem sido escritos (ou copiados)
+        public void release() {
+            pool.release(pooled);
+        }
+    }
+
+    public Frame encode(Message message) throws IOException {
+        String key = orEmpty(message.getKey());
+        String payload = orEmpty(message.getPayload());
+        String errorMessage = orEmpty(message.getErrorMessage());
+        byte[] data = message.getData();
+        Map<String, byte[]> entries = message.getEntries();
+
+        // Tamanho dos campos que vão para o buffer e número de valores que seguem à parte
+        int size = 8 + utfLength(key) + 4 + utfLength(payload) + 1 + utfLength(errorMessage) + 8 + 4;
+        int separate = 0;
+        if (data != null) {
+            if (data.length >= INLINE_VALUE_LIMIT) separate++;
+            else size += data.length;
+        }
+        if (entries != null) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                size += utfLength(entry.getKey()) + 4;
+                byte[] value = entry.getValue();
+                if (value == null) continue;
+                if (value.length >= INLINE_VALUE_LIMIT) separate++;
+                else size += value.length;
+            }
+        }
+
+        ByteBuffer buffer = pool.acquire(size);
+        ByteBuffer[] segments = new ByteBuffer[2 * separate + 1];
+        int[] state = {0, 0}; // Segmentos já criados, início do segmento atual no buffer
+
+        buffer.putInt(message.getType().ordinal());
+        buffer.putInt(message.getRequestId());
+        putUTF(buffer, key);
+        if (data != null) {
+            putValue(buffer, data, segments, state);
+        } else {
+            buffer.putInt(0);
+        }
+        putUTF(buffer, payload);
+        buffer.put((byte) (message.isSuccess() ? 1 : 0));
+        putUTF(buffer, errorMessage);
+        buffer.putLong(message.getTimeout());
+        if (entries == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(entries.size());
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                putUTF(buffer, entry.getKey());
+                if (entry.getValue() != null) {
+                    putValue(buffer, entry.getValue(), segments, state);
+                } else {
+                    buffer.putInt(-1);
+                }
+            }
+        }
+
+        if (separate == 0) {
+            buffer.flip();
+            segments[0] = buffer;
+        } else {
+            segments[state[0]] = slice(buffer, state[1], buffer.position());
+        }
+        return new Frame(segments, buffer, pool);
+    }
+
+    private static void putValue(ByteBuffer buffer, byte[] value, ByteBuffer[] segments, int[] state) {
+        buffer.putInt(value.length);
+        if (value.length < INLINE_VALUE_LIMIT) {
+            buffer.put(value);
+            return;
+        }
+        segments[state[0]++] = slice(buffer, state[1], buffer.position());
+        segments[state[0]++] = ByteBuffer.wrap(value);
+        state[1] = buffer.position();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int from, int to) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(to);
+        slice.position(from);
+        return slice;
+    }
+
+    private static String orEmpty(String s) {
+        return s != null ? s : "";
+    }
+
+    // Bytes de writeUTF (UTF-8 modificado), incluindo os 2 do tamanho
+    private static int utfLength(String s) throws UTFDataFormatException {
+        int length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80 || c == 0) length += c >= 0x800 ? 2 : 1;
+        }
+        if (length > 65535) throw new UTFDataFormatException("Encoded string too long: " + length + " bytes");
+        return length + 2;
+    }
+
+    private static void putUTF(ByteBuffer buffer, String s) throws UTFDataFormatException {
+        buffer.putShort((short) (utfLength(s) - 2));
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c > 0 && c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    // Lê a mensagem que começa em buf.position() e avança o buffer até ao fim dela
+    public Message decode(ByteBuffer buf) throws IOException {
+        int ordinal = buf.getInt();
+        if (ordinal < 0 || ordinal >= TYPES.length) throw new IOException("Unknown message type: " + ordinal);
+        int requestId = buf.getInt();
+        String key = getUTF(buf);
+        int dataLength = buf.getInt();
+        byte[] data = null;
+        if (dataLength > 0) {
+            data = new byte[dataLength];
+            buf.get(data);
+        }
+        String payload = getUTF(buf);
+        boolean success = buf.get() != 0;
+        String errorMessage = getUTF(buf);
+        long timeout = buf.getLong();
+        Map<String, byte[]> entries = null;
+        int count = buf.getInt();
+        if (count >= 0) {
+            entries = new LinkedHashMap<>(Math.max(16, (int) (count / 0.75f) + 1));
+            for (int i = 0; i < count; i++) {
+                String entryKey = getUTF(buf);
+                int length = buf.getInt();
+                byte[] value = null;
+                if (length >= 0) {
+                    value = new byte[length];
+                    buf.get(value);
+                }
+                entries.put(entryKey, value);
+            }
+        }
+
+        Message message = new Message(TYPES[ordinal]);
+        message.setRequestId(requestId);
+        message.setKey(key.isEmpty() ? null : key);
+        message.setData(data);
+        message.setPayload(payload.isEmpty() ? null : payload);
+        message.setSuccess(success);
+        message.setErrorMessage(errorMessage.isEmpty() ? null : errorMessage);
+        message.setTimeout(timeout);
+        message.setEntries(entries);
+        return message;
+    }
+
+    // Como DataInputStream.readUTF, mas sem arrays temporários por string
+    private String getUTF(ByteBuffer buf) throws UTFDataFormatException {
+        int length = buf.getShort() & 0xffff;
+        if (length == 0) return "";
+        if (chars.length < length) chars = new char[Math.max(length, chars.length * 2)];
+        int start = buf.position();
+        int end = start + length;
+        int n = 0;
+        for (int p = start; p < end; ) {
+            int c = buf.get(p) & 0xff;
+            if (c < 0x80) {
+                chars[n++] = (char) c;
+                p++;
+            } else if ((c & 0xE0) == 0xC0 && p + 1 < end && (buf.get(p + 1) & 0xC0) == 0x80) {
+                chars[n++] = (char) (((c & 0x1F) << 6) | (buf.get(p + 1) & 0x3F));
+                p += 2;
+            } else if ((c & 0xF0) == 0xE0 && p + 2 < end
+                    && (buf.get(p + 1) & 0xC0) == 0x80 && (buf.get(p + 2) & 0xC0) == 0x80) {
+                chars[n++] = (char) (((c & 0x0F) << 12) | ((buf.get(p + 1) & 0x3F) << 6) | (buf.get(p + 2) & 0x3F));
+                p += 3;
+            } else {
+                throw new UTFDataFormatException("Malformed input around byte " + (p - start));
+            }
+        }
+        buf.position(end);
+        return new String(chars, 0, n);
+    }
+}
@@ -0,0 +1,51 @@
+package common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Criação das threads de ligação (ClientHandler no servidor, leitor do Demux no cliente).
+// Com -Dcloud.threads=virtual e o projeto compilado com o perfil jdk21, cada uma corre numa
+// virtual thread. Os caminhos bloqueantes (locks/conditions de java.util.concurrent, futures e
+// I/O de sockets) não prendem a carrier thread; não se usa synchronized nestes caminhos.
+public class Threads {
+    private static final boolean VIRTUAL_REQUESTED = "virtual".equals(System.getProperty("cloud.threads"));
+    private static final Class<?> VIRTUAL_THREADS = VIRTUAL_REQUESTED ? loadVirtualThreads() : null;
+
+    private static Class<?> loadVirtualThreads() {
+        try {
+            return Class.forName("common.VirtualThreads");
+        } catch (ClassNotFoundException | LinkageError e) {
+            System.err.println("Virtual threads not available (build with -Pjdk21 and run on Java 21+), "
+                    + "using platform threads");
+            return null;
+        }
+    }
+
+    public static boolean isVirtual() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    // Executor com uma thread por tarefa: virtual threads, ou um cached pool de platform threads
+    public static ExecutorService newConnectionExecutor(String prefix) {
+        if (isVirtual()) {
+            return (ExecutorService) invoke("newExecutor", prefix);
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    public static Thread newThread(String prefix, Runnable task) {
+        if (isVirtual()) {
+            return ((ThreadFactory) invoke("factory", prefix)).newThread(task);
+        }
+        return new Thread(task);
+    }
+
+    private static Object invoke(String method, String prefix) {
+        try {
+            return VIRTUAL_THREADS.getMethod(method, String.class).invoke(null, prefix);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create virtual threads", e);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Agrupamento das respostas de cada ligação do servidor (CommonIdent e NioConnection). Enquanto
+// houver mais pedidos da ligação recebidos por tratar, as respostas ficam no buffer da ligação e
+// seguem juntas num só flush quando essa fila esvazia, quando o buffer enche (BUFFER_BYTES) ou
+// passado maxDelayNanos desde a primeira por enviar. Um pedido sem outros atrás é respondido logo,
+// tal como sem agrupamento. Com maxDelayNanos = 0 cada mensagem tem o seu flush.
+// Conta os flushes e quantas mensagens segue cada um.
+public final class WriteCoalescing {
+    public static final int BUFFER_BYTES = 64 * 1024;
+
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "flush-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    // O flush de uma ligação bloqueante pode esperar pelo cliente: não pode parar o timer
+    private static final ExecutorService FLUSHERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "flusher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final long maxDelayNanos;
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final Histogram messagesPerFlush = new Histogram();
+
+    public WriteCoalescing(long maxDelayNanos) {
+        this.maxDelayNanos = maxDelayNanos;
+    }
+
+    public boolean isEnabled() {
+        return maxDelayNanos > 0;
+    }
+
+    public long getMaxDelayNanos() {
+        return maxDelayNanos;
+    }
+
+    // Corre 'flush' daqui a maxDelayNanos
+    public void schedule(Runnable flush) {
+        TIMER.schedule(() -> FLUSHERS.execute(flush), maxDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void flushed(int count) {
+        if (count == 0) return;
+        flushes.increment();
+        messages.add(count);
+        messagesPerFlush.record(count);
+    }
+
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    public Histogram getMessagesPerFlush() {
+        return messagesPerFlush;
+    }
+}
@@ -0,0 +1,39 @@
+package manager;
+
+import java.util.Map;
+
+// Repete o log no arranque: as escritas no MapAccess e os registos no UserManager
+public class LogReplayer implements WriteAheadLog.Replayer {
+    private final MapAccess mapAccess;
+    private final UserManager users;
+
+    public LogReplayer(MapAccess mapAccess, UserManager users) {
+        this.mapAccess = mapAccess;
+        this.users = users;
+    }
+
+    @Override
+    public void put(String key, byte[] value) {
+        mapAccess.put(key, value);
+    }
+
+    @Override
+    public void multiPut(Map<String, byte[]> pairs) {
+        mapAccess.multiPut(pairs);
+    }
+
+    @Override
+    public void remove(String key) {
+        mapAccess.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        mapAccess.clear();
+    }
+
+    @Override
+    public void register(String username, String credential) {
+        users.createUser(User.withCredential(username, credential));
+    }
+}
@@ -1,155 +1,624 @@
 package manager;
 
+import common.Histogram;
+import common.Log;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 
 public class MapAccess {
-    private final Map<String, byte[]> mapKeyValue;
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-    private final ReentrantReadWriteLock.ReadLock rl = lock.readLock();
-    private final ReentrantReadWriteLock.WriteLock wl = lock.writeLock();
-    private final Map<String, Condition> conditionMap;
+    public static final int DEFAULT_SEGMENTS = 16;
+    // Tentativas de leitura otimista do multiGet antes de recorrer aos locks
+    private static final int OPTIMISTIC_READ_ATTEMPTS = 4;
+    // Uma única thread para os timeouts de todos os GETWHEN pendentes
+    private static final ScheduledThreadPoolExecutor TIMEOUTS = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "getwhen-timeouts");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        TIMEOUTS.setRemoveOnCancelPolicy(true);
+    }
+
+    // Valor imutável guardado no mapa, com o stamp do segmento no momento da escrita.
+    // Com o SlabValueStore os bytes ficam fora do heap e a entrada guarda só o handle.
+    private static final class Versioned {
+        private final byte[] value; // null se o valor estiver fora do heap
+        private final long handle;
+        private final int length;
+        private final long version;
+
+        private Versioned(byte[] value, long handle, int length, long version) {
+            this.value = value;
+            this.handle = handle;
+            this.length = length;
+            this.version = version;
+        }
+    }
+
+    // Cada segmento guarda uma fatia das chaves com o seu próprio lock de escrita.
+    // As leituras não usam o lock: leem diretamente do ConcurrentHashMap e, quando
+    // precisam de uma visão consistente de várias chaves, validam o stamp do segmento
+    // (ímpar enquanto uma escrita está a decorrer, à semelhança de um seqlock).
+    private static class Segment {
+        private final Map<String, Versioned> mapKeyValue = new ConcurrentHashMap<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final WaiterRegistry waiters = new WaiterRegistry();
+        private volatile long stamp = 0;
+
+        // Devem ser chamados com o lock do segmento
+        private void beginWrite() {
+            stamp++;
+        }
+
+        private void endWrite() {
+            stamp++;
+        }
+    }
+
+    // Observa as escritas no mapa (invalidações das caches dos clientes, WATCH). É chamado com o
+    // lock do segmento da chave, pela ordem em que as escritas são aplicadas: não pode bloquear
+    // nem voltar a chamar o MapAccess.
+    public interface ChangeListener {
+        // value é null quando a chave foi removida
+        void changed(String key, byte[] value, long version);
+
+        void cleared();
+    }
+
+    private final Segment[] segments;
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private final SlabValueStore slabs; // null se os valores ficarem no heap
+    private volatile WriteAheadLog wal; // null se a persistência estiver desligada
+    private final LongAdder valueBytes = new LongAdder();
+    private final Histogram lockWaits = new Histogram(); // Só regista quando o lock estava ocupado
 
     public MapAccess() {
-        this.mapKeyValue = new HashMap<>();
-        this.conditionMap = new HashMap<>();
+        this(DEFAULT_SEGMENTS);
     }
 
-    public void put(String key, byte[] value) {
-        wl.lock();
-        try {
-            if (mapKeyValue.containsKey(key)) {
-                System.out.println("Key already exists. Updating value...");
-            } else {
-                System.out.println("Unknown key. Creating new entry in the map...");
+    public MapAccess(int nSegments) {
+        this(nSegments, null);
+    }
+
+    public MapAccess(int nSegments, SlabValueStore slabs) {
+        if (nSegments <= 0) {
+            throw new IllegalArgumentException("Number of segments must be positive");
+        }
+        this.slabs = slabs;
+        this.segments = new Segment[nSegments];
+        for (int i = 0; i < nSegments; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private int segmentIndex(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % segments.length;
+    }
+
+    private Segment segmentFor(String key) {
+        return segments[segmentIndex(key)];
+    }
+
+    // Índices (ordenados) dos segmentos tocados por um conjunto de chaves.
+    // Os locks são sempre adquiridos por ordem crescente para evitar deadlocks.
+    private int[] segmentsFor(Collection<String> keys) {
+        boolean[] touched = new boolean[segments.length];
+        int count = 0;
+        for (String key : keys) {
+            int i = segmentIndex(key);
+            if (!touched[i]) {
+                touched[i] = true;
+                count++;
             }
-            mapKeyValue.put(key, value);
+        }
+        int[] result = new int[count];
+        for (int i = 0, j = 0; i < touched.length; i++) {
+            if (touched[i]) result[j++] = i;
+        }
+        return result;
+    }
+
+    // Adquire o lock do segmento, medindo o tempo de espera quando há contenção
+    private void acquire(Segment segment) {
+        if (segment.lock.tryLock()) return;
+        long start = System.nanoTime();
+        segment.lock.lock();
+        lockWaits.record(System.nanoTime() - start);
+    }
+
+    private void lock(int[] indexes) {
+        for (int i : indexes) acquire(segments[i]);
+    }
+
+    private void unlock(int[] indexes) {
+        for (int i = indexes.length - 1; i >= 0; i--) segments[indexes[i]].lock.unlock();
+    }
+
+    private void beginWrite(int[] indexes) {
+        for (int i : indexes) segments[i].beginWrite();
+    }
+
+    private void endWrite(int[] indexes) {
+        for (int i : indexes) segments[i].endWrite();
+    }
+
+    private int[] allSegments() {
+        int[] all = new int[segments.length];
+        for (int i = 0; i < all.length; i++) all[i] = i;
+        return all;
+    }
+
+    private Versioned newEntry(byte[] value, long version) {
+        valueBytes.add(value.length);
+        return slabs == null
+                ? new Versioned(value, 0, value.length, version)
+                : new Versioned(null, slabs.store(value), value.length, version);
+    }
+
+    // Deve ser chamado com o lock do segmento da entrada
+    private void release(Versioned entry) {
+        if (entry == null) return;
+        valueBytes.add(-entry.length);
+        if (slabs != null) slabs.free(entry.handle);
+    }
+
+    // Bytes de uma entrada. Sem o lock do segmento, um valor fora do heap pode ter sido
+    // substituído e o bloco libertado entretanto: nesse caso devolve null.
+    private byte[] bytesOf(Versioned entry) {
+        return slabs == null ? entry.value : slabs.read(entry.handle);
+    }
+
+    // Um valor que o SlabValueStore não consegue guardar é recusado antes de ser registado no log
+    private void checkStorable(byte[] value) {
+        if (slabs != null) slabs.checkSize(value.length);
+    }
+
+    // Deve ser chamado com o lock do segmento da chave e dentro de beginWrite/endWrite
+    private void putLocked(Segment segment, String key, byte[] value, List<WaiterRegistry.Waiter> fired) {
+        release(segment.mapKeyValue.put(key, newEntry(value, segment.stamp)));
+
+        // Acorda apenas os GETWHEN que esperam exatamente por este valor
+        segment.waiters.fire(key, value, fired);
+        notifyChanged(key, value, segment.stamp);
+    }
 
-            // Alerta a condição para a chave específica caso ela exista
-            Condition condition = conditionMap.get(key);
-            if (condition != null) {
-                //  System.out.println("Vai alertar as threads que atualizacao na chave " + key + " foi feita.");
-                condition.signalAll();
+    // Deve ser chamado com o lock do segmento da chave
+    private void notifyChanged(String key, byte[] value, long version) {
+        for (ChangeListener listener : listeners) {
+            listener.changed(key, value, version);
+        }
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    // As continuações dos GETWHEN satisfeitos correm fora dos locks
+    private static void runFired(List<WaiterRegistry.Waiter> fired) {
+        for (WaiterRegistry.Waiter waiter : fired) {
+            waiter.run();
+        }
+    }
+
+    // Liga o log às escritas seguintes. O conteúdo já registado é carregado antes, pelo LogReplayer
+    // passado a WriteAheadLog.open.
+    public void attachLog(WriteAheadLog wal) {
+        this.wal = wal;
+    }
+
+    // O registo no log é feito com o lock do segmento, para que a ordem no log seja a ordem
+    // em que as escritas foram aplicadas; a espera pelo fsync é feita já sem o lock.
+    private static long log(WriteAheadLog wal, LogAction action) {
+        try {
+            return wal != null ? action.append(wal) : 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void awaitDurable(WriteAheadLog wal, long lsn) {
+        if (wal == null) return;
+        try {
+            wal.awaitDurable(lsn);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private interface LogAction {
+        long append(WriteAheadLog wal) throws IOException;
+    }
+
+    // Lança UncheckedIOException se não for possível registar a escrita no log
+    public void put(String key, byte[] value) {
+        checkStorable(value);
+        List<WaiterRegistry.Waiter> fired = new ArrayList<>();
+        WriteAheadLog wal = this.wal;
+        long lsn;
+        Segment segment = segmentFor(key);
+        acquire(segment);
+        try {
+            lsn = log(wal, w -> w.logPut(key, value));
+            segment.beginWrite();
+            try {
+                putLocked(segment, key, value, fired);
+            } finally {
+                segment.endWrite();
             }
         } finally {
-            wl.unlock();
+            segment.lock.unlock();
         }
+        awaitDurable(wal, lsn);
+        runFired(fired);
+        Log.debug("Key stored: {}", key);
     }
 
     public void multiPut(Map<String, byte[]> pairs) {
-        wl.lock();
+        for (byte[] value : pairs.values()) {
+            checkStorable(value);
+        }
+        List<WaiterRegistry.Waiter> fired = new ArrayList<>();
+        WriteAheadLog wal = this.wal;
+        long lsn;
+        int[] indexes = segmentsFor(pairs.keySet());
+        lock(indexes);
         try {
-            for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
-                String key =  entry.getKey();
-                byte[] value = entry.getValue();
-                if (mapKeyValue.containsKey(key)) {
-                    System.out.println("Key already exists. Updating value...");
-                } else {
-                    System.out.println("Unknown key. Creating new entry in the map...");
-                }
-                mapKeyValue.put(key, value);
-
-                // Alerta a condição para a chave específica caso ela exista
-                Condition condition = conditionMap.get(key);
-                if (condition != null) {
-                    //  System.out.println("Vai alertar as threads que atualizacao na chave " + key + " foi feita.");
-                    condition.signalAll();
+            lsn = log(wal, w -> w.logMultiPut(pairs));
+            // Todos os segmentos ficam "em escrita" até o lote estar completo,
+            // para que um multiGet concorrente nunca veja só parte do lote
+            beginWrite(indexes);
+            try {
+                for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+                    putLocked(segmentFor(entry.getKey()), entry.getKey(), entry.getValue(), fired);
                 }
+            } finally {
+                endWrite(indexes);
             }
         } finally {
-            wl.unlock();
+            unlock(indexes);
         }
+        awaitDurable(wal, lsn);
+        runFired(fired);
     }
 
+    // Leitura sem locks: o ConcurrentHashMap garante a visibilidade do último put concluído
     public byte[] get(String key) {
-        rl.lock();
+        byte[] value = read(key);
+        if (value != null) {
+            Log.debug("Key found: {}", key);
+            return value;
+        } else {
+            Log.debug("Key not found: {}", key);
+            return "null".getBytes();
+        }
+    }
+
+    // Valor atual da chave, ou null se não existir
+    private byte[] read(String key) {
+        Segment segment = segmentFor(key);
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+            Versioned entry = segment.mapKeyValue.get(key);
+            if (entry == null) return null;
+            byte[] value = bytesOf(entry);
+            if (value != null) return value;
+        }
+        // A chave está sempre a ser reescrita: lê com o lock (nenhum bloco é libertado sem ele)
+        acquire(segment);
         try {
-            if (mapKeyValue.containsKey(key)) {
-                System.out.println("Key found. Returning value...");
-                return mapKeyValue.get(key);
-            } else {
-                System.out.println("Key not found. Returning null...");
-                return "null".getBytes();
-            }
+            return readLocked(segment, key);
         } finally {
-            rl.unlock();
+            segment.lock.unlock();
         }
     }
 
+    // Deve ser chamado com o lock do segmento da chave
+    private byte[] readLocked(Segment segment, String key) {
+        Versioned entry = segment.mapKeyValue.get(key);
+        return entry != null ? bytesOf(entry) : null;
+    }
+
+    // Versão da entrada associada à chave (0 se a chave não existir)
+    public long getVersion(String key) {
+        Versioned entry = segmentFor(key).mapKeyValue.get(key);
+        return entry != null ? entry.version : 0;
+    }
+
     public Map<String, byte[]> multiGet(Set<String> keys) {
-        rl.lock();
-        try {
-            Map<String, byte[]> result = new HashMap<>();
-            for (String key : keys) {
-                if (mapKeyValue.containsKey(key)) {
-                    result.put(key, mapKeyValue.get(key));
-                    System.out.println("Key found: " + key + ". Adding to the result map.");
-                } else {
-                    System.out.println("Key not found: " + key + ". Skipping...");
-                }
+        String[] keyArray = keys.toArray(new String[0]);
+        byte[][] values = readConsistent(keyArray);
+
+        Map<String, byte[]> result = new HashMap<>();
+        for (int i = 0; i < keyArray.length; i++) {
+            if (values[i] != null) {
+                result.put(keyArray[i], values[i]);
             }
-            return result;
-        } finally {
-            rl.unlock();
         }
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("MultiGet found {} of {} keys", result.size(), keyArray.length);
+        }
+        return result;
     }
 
-    public byte[] getWhen(String key, String keyCond, byte[] valueCond) throws InterruptedException {
-        wl.lock();
+    // Lê várias chaves como uma fotografia consistente.
+    // Leitura otimista: lê os stamps, as chaves e volta a validar os stamps; se nenhum
+    // segmento mudou (nem estava em escrita) o resultado é consistente. Com muitas escritas
+    // concorrentes recorre aos locks dos segmentos tocados, por ordem.
+    private byte[][] readConsistent(String[] keys) {
+        int[] indexes = segmentsFor(Arrays.asList(keys));
+        long[] stamps = new long[indexes.length];
+        byte[][] values = new byte[keys.length][];
+
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+            if (!readStamps(indexes, stamps)) continue;
+            if (collect(keys, values) && validateStamps(indexes, stamps)) {
+                return values;
+            }
+        }
+
+        lock(indexes);
         try {
-            // Create a condition for keyCond if it does not exist
-            conditionMap.putIfAbsent(keyCond, wl.newCondition());
-            // System.out.println("Add " + keyCond  + " to conditionMap");
+            collect(keys, values);
+            return values;
+        } finally {
+            unlock(indexes);
+        }
+    }
+
+    private boolean readStamps(int[] indexes, long[] stamps) {
+        for (int i = 0; i < indexes.length; i++) {
+            stamps[i] = segments[indexes[i]].stamp;
+            if ((stamps[i] & 1) != 0) return false; // escrita em curso
+        }
+        return true;
+    }
+
+    private boolean validateStamps(int[] indexes, long[] stamps) {
+        for (int i = 0; i < indexes.length; i++) {
+            if (segments[indexes[i]].stamp != stamps[i]) return false;
+        }
+        return true;
+    }
+
+    // Devolve false se um valor fora do heap foi libertado durante a leitura (houve uma escrita)
+    private boolean collect(String[] keys, byte[][] values) {
+        for (int i = 0; i < keys.length; i++) {
+            Versioned entry = segmentFor(keys[i]).mapKeyValue.get(keys[i]);
+            values[i] = entry != null ? bytesOf(entry) : null;
+            if (entry != null && values[i] == null) return false;
+        }
+        return true;
+    }
+
+    private static boolean matches(byte[] value, byte[] valueCond) {
+        return value != null && Arrays.equals(value, valueCond);
+    }
+
+    // GETWHEN pendente: não ocupa nenhuma thread enquanto espera, fica apenas registado
+    // no segmento de keyCond até um put escrever o valor esperado
+    private final class PendingGetWhen implements Runnable {
+        private final String[] keys; // {key, keyCond}
+        private final byte[] valueCond;
+        private final Segment condSegment;
+        private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        private WaiterRegistry.Waiter waiter; // protegido pelo lock de condSegment
+
+        private PendingGetWhen(String key, String keyCond, byte[] valueCond) {
+            this.keys = new String[]{key, keyCond};
+            this.valueCond = valueCond;
+            this.condSegment = segmentFor(keyCond);
+        }
+
+        // Verifica a condição e completa o resultado, ou regista-se para ser acordado.
+        // É também a continuação executada pelo put que escreve o valor esperado
+        // (se entretanto a condição deixou de se verificar, volta a registar-se).
+        @Override
+        public void run() {
+            while (!result.isDone()) {
+                // Caminho rápido sem locks: se a condição já se verifica, completa logo
+                byte[][] values = readConsistent(keys);
+                if (matches(values[1], valueCond)) {
+                    Log.debug("Now {} equals to {}", keys[1], valueCond);
+                    result.complete(values[0]); // value associated with 'key'
+                    return;
+                }
 
-            Condition condition = conditionMap.get(keyCond);
+                acquire(condSegment);
+                try {
+                    if (result.isDone()) return;
+                    // Volta a verificar com o lock: um put pode ter acontecido entretanto
+                    if (matches(readLocked(condSegment, keys[1]), valueCond)) continue;
 
-            // Espera até que a condition seja satisfeita
-            while (!mapKeyValue.containsKey(keyCond) || !Arrays.equals(mapKeyValue.get(keyCond), valueCond)) {
-                condition.await();
+                    waiter = new WaiterRegistry.Waiter(keys[1], valueCond, this);
+                    condSegment.waiters.register(waiter);
+                    return;
+                } finally {
+                    condSegment.lock.unlock();
+                }
             }
-            byte[] value = mapKeyValue.get(keyCond);
-            String valueStr = new String(value);
-            String strValueCond = new String (valueCond);
+        }
 
-            System.out.println("Now " + strValueCond  + " equals to " + valueStr );
+        // O pedido terminou sem valor (timeout ou cancelado): deixa de estar registado
+        private void abandon() {
+            acquire(condSegment);
+            try {
+                if (waiter != null) condSegment.waiters.unregister(waiter);
+            } finally {
+                condSegment.lock.unlock();
+            }
+        }
+    }
 
-            return mapKeyValue.get(key); // value associated with 'key'
-        } finally {
-            wl.unlock();
+    // Devolve logo um future que é completado com o valor de 'key' quando keyCond tiver valueCond.
+    // Cancelar o future retira o pedido do registo.
+    public CompletableFuture<byte[]> getWhenAsync(String key, String keyCond, byte[] valueCond) {
+        PendingGetWhen pending = new PendingGetWhen(key, keyCond, valueCond);
+        pending.result.whenComplete((value, error) -> {
+            if (error != null) pending.abandon();
+        });
+        pending.run();
+        return pending.result;
+    }
+
+    // Como getWhenAsync, mas o future falha com TimeoutException ao fim de timeoutMillis
+    public CompletableFuture<byte[]> getWhenAsync(String key, String keyCond, byte[] valueCond, long timeoutMillis) {
+        CompletableFuture<byte[]> result = getWhenAsync(key, keyCond, valueCond);
+        if (timeoutMillis > 0 && !result.isDone()) {
+            ScheduledFuture<?> timeout = TIMEOUTS.schedule(
+                    () -> result.completeExceptionally(new TimeoutException("GetWhen timed out")),
+                    timeoutMillis, TimeUnit.MILLISECONDS);
+            result.whenComplete((value, error) -> timeout.cancel(false));
+        }
+        return result;
+    }
+
+    public byte[] getWhen(String key, String keyCond, byte[] valueCond) throws InterruptedException {
+        CompletableFuture<byte[]> result = getWhenAsync(key, keyCond, valueCond);
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // Número de pedidos GETWHEN à espera
+    public int getWaiterCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            acquire(segment);
+            try {
+                count += segment.waiters.size();
+            } finally {
+                segment.lock.unlock();
+            }
         }
+        return count;
     }
 
     public void clear() {
-        wl.lock();
+        WriteAheadLog wal = this.wal;
+        long lsn;
+        int[] indexes = allSegments();
+        lock(indexes);
         try {
-            mapKeyValue.clear();
-            conditionMap.clear();
+            lsn = log(wal, WriteAheadLog::logClear);
+            beginWrite(indexes);
+            try {
+                for (Segment segment : segments) {
+                    for (Versioned entry : segment.mapKeyValue.values()) {
+                        release(entry);
+                    }
+                    segment.mapKeyValue.clear();
+                }
+                for (ChangeListener listener : listeners) {
+                    listener.cleared();
+                }
+            } finally {
+                endWrite(indexes);
+            }
         } finally {
-            wl.unlock();
+            unlock(indexes);
         }
+        awaitDurable(wal, lsn);
     }
 
     public Set<String> keySet() {
-        rl.lock();
+        int[] indexes = allSegments();
+        lock(indexes);
         try {
-            return new HashSet<>(mapKeyValue.keySet());
+            Set<String> keys = new HashSet<>();
+            for (Segment segment : segments) {
+                keys.addAll(segment.mapKeyValue.keySet());
+            }
+            return keys;
         } finally {
-            rl.unlock();
+            unlock(indexes);
         }
     }
 
     public void remove(String key) {
-        wl.lock();
+        WriteAheadLog wal = this.wal;
+        long lsn;
+        Segment segment = segmentFor(key);
+        acquire(segment);
         try {
-            if (mapKeyValue.containsKey(key)) {
-                mapKeyValue.remove(key);
+            lsn = log(wal, w -> w.logRemove(key));
+            segment.beginWrite();
+            try {
+                Versioned removed = segment.mapKeyValue.remove(key);
+                release(removed);
+                if (removed != null) notifyChanged(key, null, segment.stamp);
+            } finally {
+                segment.endWrite();
             }
-            conditionMap.remove(key); // remove the condition associated with the 'key'
         } finally {
-            wl.unlock();
+            segment.lock.unlock();
+        }
+        awaitDurable(wal, lsn);
+    }
+
+    // Percorre todas as entradas para um snapshot, sem parar as escritas.
+    // Antes de cada segmento adquire e liberta o seu lock: qualquer escrita já registada no log até
+    // esse momento fica visível. As escritas concorrentes podem ou não aparecer, pelo que o resultado
+    // só é exato depois de repetir por cima os registos do log posteriores ao ponto de corte
+    // (ou, na replicação, as alterações recebidas por um ChangeListener registado antes).
+    public void forEachEntry(BiConsumer<String, byte[]> action) {
+        for (Segment segment : segments) {
+            acquire(segment);
+            segment.lock.unlock();
+            for (Map.Entry<String, Versioned> entry : segment.mapKeyValue.entrySet()) {
+                byte[] value = bytesOf(entry.getValue());
+                if (value == null) value = read(entry.getKey()); // Reescrito entretanto
+                if (value != null) action.accept(entry.getKey(), value);
+            }
         }
     }
 
+    // Carrega uma entrada de um snapshot no arranque (sem log, sem GETWHEN à espera)
+    void restore(String key, byte[] value) {
+        Segment segment = segmentFor(key);
+        release(segment.mapKeyValue.put(key, newEntry(value, segment.stamp)));
+    }
 
-}
\ No newline at end of file
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.mapKeyValue.size();
+        }
+        return size;
+    }
+
+    // Total de bytes dos valores guardados
+    public long getValueBytes() {
+        return valueBytes.sum();
+    }
+
+    // Esperas pelos locks dos segmentos (escritas, leituras com lock e GETWHEN)
+    public Histogram getLockWaits() {
+        return lockWaits;
+    }
+
+    // Memória fora do heap (null se os valores estiverem no heap)
+    public SlabValueStore getSlabs() {
+        return slabs;
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+}
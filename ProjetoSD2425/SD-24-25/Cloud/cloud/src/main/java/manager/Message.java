@@ -1,21 +1,38 @@
 package manager;
 
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Message implements Serializable {
     private static final long serialVersionUID = 1L;
 
     // Tipos de Mensagem
     public enum Type {
-        REGISTER, LOGIN, LOGOUT, PUT, GET, MULTIPUT, MULTIGET, GETWHEN, RESPONSE
+        REGISTER, LOGIN, LOGOUT, PUT, GET, MULTIPUT, MULTIGET, GETWHEN, RESPONSE,
+        STATS, // Métricas do servidor (não precisa de login); a resposta traz o texto no payload
+        TRACKING,  // Liga as invalidações da cache do cliente para as chaves que esta ligação ler
+        INVALIDATE, // Enviada pelo servidor (requestId 0): chaves alteradas nas entries; sem chaves, tudo
+        WATCH,   // Subscreve as alterações da key; payload "id:key" ou "id:prefix" (id escolhido pelo cliente)
+        UNWATCH, // Cancela a subscrição com o id no payload
+        EVENT,   // Enviada pelo servidor (requestId 0) para uma subscrição; ver WatchRegistry
+        REPLICATE, // Pedido de um backup ao primário; depois, as alterações enviadas ao backup (ver ReplicationSource)
+        PROMOTE,   // Promove um backup a primário: deixa de seguir o primário e passa a aceitar escritas
+        CLUSTER,   // Sem payload devolve o anel do cluster; com "segredo\nanel[\nanterior]" instala um anel novo (ver Cluster)
+        MIGRATE,   // Entre nós do cluster: operação na key, "segredo\nanel\nremetente" no payload (ver Cluster)
+        QUEUED     // Enviada pelo servidor (requestId 0): o LOGIN ficou na fila de admissão, na posição do payload
     }
 
     private Type type;            // Tipo da mensagem
+    private int requestId;        // Identificador do pedido, repetido na resposta (0 = sem id)
     private String key;           // Chave (para operações PUT/GET)
     private byte[] data;          // Valor associado à chave
     private String payload;       // Informação adicional (credenciais, notificações, etc.)
     private boolean success;      // Status da operação
     private String errorMessage;  // Mensagem de erro
+    private long timeout;         // Tempo máximo de espera em ms (GETWHEN, LOGIN), 0 = sem limite
+    private Map<String, byte[]> entries; // Lote de pares (MULTIPUT/MULTIGET); no pedido MULTIGET os valores são null
     public static final int MAX_KEY_LENGTH = 256;
     public static final int MAX_VALUE_SIZE = 1024 * 1024; // 1MB
 
@@ -50,6 +67,14 @@ public class Message implements Serializable {
         this.type = type;
     }
 
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(int requestId) {
+        this.requestId = requestId;
+    }
+
     public String getKey() {
         return key;
     }
@@ -90,6 +115,31 @@ public class Message implements Serializable {
         this.errorMessage = errorMessage;
     }
 
+    public Map<String, byte[]> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(Map<String, byte[]> entries) {
+        this.entries = entries;
+    }
+
+    // Lote só com chaves (pedido MULTIGET)
+    public void setKeys(Collection<String> keys) {
+        Map<String, byte[]> batch = new LinkedHashMap<>();
+        for (String key : keys) {
+            batch.put(key, null);
+        }
+        this.entries = batch;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
     // Validação de chave e valor
     public static boolean isValidKey(String key) {
         return key != null && !key.trim().isEmpty() && key.length() <= MAX_KEY_LENGTH;
@@ -103,11 +153,14 @@ public class Message implements Serializable {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("Message [type=").append(type);
+        if (requestId != 0) sb.append(", requestId=").append(requestId);
         if (key != null) sb.append(", key=").append(key);
         if (data != null) sb.append(", data=").append(new String(data));
         if (payload != null) sb.append(", payload=").append(payload);
         sb.append(", success=").append(success);
         if (errorMessage != null) sb.append(", errorMessage=").append(errorMessage);
+        if (timeout > 0) sb.append(", timeout=").append(timeout);
+        if (entries != null) sb.append(", entries=").append(entries.size());
         sb.append("]");
         return sb.toString();
     }
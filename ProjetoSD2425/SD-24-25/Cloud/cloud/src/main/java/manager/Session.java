@@ -0,0 +1,33 @@
+package manager;
+
+// Sessão autenticada de uma ligação. Criada pelo UserManager quando o login é admitido e guardada
+// pela própria ligação (ClientHandler), que a lê num campo em cada pedido, sem locks nem tabelas
+// partilhadas; a tabela de utilizadores só é usada no login e no logout.
+public final class Session {
+    private final User user;
+    private final long openedMillis = System.currentTimeMillis();
+    private boolean open = true; // Protegido pelo lock do UserManager
+
+    Session(User user) {
+        this.user = user;
+    }
+
+    public String getUsername() {
+        return user.getUsername();
+    }
+
+    User getUser() {
+        return user;
+    }
+
+    public long getOpenedMillis() {
+        return openedMillis;
+    }
+
+    // Fecha a sessão (com o lock do UserManager); falso se já estava fechada
+    boolean close() {
+        if (!open) return false;
+        open = false;
+        return true;
+    }
+}
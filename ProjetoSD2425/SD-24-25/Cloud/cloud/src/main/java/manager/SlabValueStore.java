@@ -0,0 +1,193 @@
+package manager;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+// Guarda os valores do MapAccess fora do heap, em slabs (ByteBuffers diretos) divididos em blocos
+// de tamanho fixo por classe de tamanho, como no memcached. O heap fica só com as chaves e com um
+// handle (long) por valor; o GC deixa de ter de percorrer e copiar os bytes dos valores.
+//
+// Cada bloco começa por [int geração][int tamanho]. Um handle indica a classe, o slab, o bloco e a
+// geração do bloco quando foi escrito. Libertar um bloco incrementa a geração e põe-no na lista de
+// livres da classe, para ser reutilizado pela próxima escrita. A memória dos slabs nunca é devolvida.
+//
+// As leituras não bloqueiam: copiam o bloco com um tryOptimisticRead do StampedLock da classe e
+// validam-no no fim. Como libertar um bloco exige o write lock, se a validação passar e a geração
+// coincidir, a cópia é a do valor do handle. Se o bloco já foi libertado, read devolve null e quem
+// chama volta a ler a entrada atual da chave.
+public class SlabValueStore {
+    private static final int HEADER = 8;
+    private static final int MIN_SLOT = 64;
+    private static final double GROWTH_FACTOR = 1.25;
+    private static final int SLAB_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_SLOTS_PER_SLAB = 1 << 16;
+    private static final int MAX_SLABS_PER_CLASS = 1 << 15;
+
+    // Handle: [8 bits classe][24 bits slab][16 bits bloco][16 bits geração]
+    private static final int GEN_MASK = 0xFFFF;
+
+    private static final class SizeClass {
+        private final int index;
+        private final int slotSize;
+        private final int slotsPerSlab;
+        private final StampedLock lock = new StampedLock();
+        private volatile ByteBuffer[] slabs = new ByteBuffer[0]; // Só cresce (com o write lock)
+        private int nextSlot = 0; // Próximo bloco nunca usado no último slab
+        private int[] free = new int[16]; // Pilha de blocos livres: (slab << 16) | bloco
+        private int freeCount = 0;
+
+        private SizeClass(int index, int slotSize) {
+            this.index = index;
+            this.slotSize = slotSize;
+            this.slotsPerSlab = Math.min(MAX_SLOTS_PER_SLAB, Math.max(1, SLAB_BYTES / slotSize));
+        }
+
+        // Deve ser chamado com o write lock
+        private int allocate() {
+            if (freeCount > 0) return free[--freeCount];
+            ByteBuffer[] current = slabs;
+            if (current.length == 0 || nextSlot == slotsPerSlab) {
+                if (current.length == MAX_SLABS_PER_CLASS) {
+                    throw new IllegalStateException("Off-heap store full for values of " + slotSize + " bytes");
+                }
+                current = Arrays.copyOf(current, current.length + 1);
+                current[current.length - 1] = ByteBuffer.allocateDirect(slotsPerSlab * slotSize);
+                slabs = current;
+                nextSlot = 0;
+            }
+            return ((current.length - 1) << 16) | nextSlot++;
+        }
+
+        // Deve ser chamado com o write lock
+        private void release(int slot) {
+            if (freeCount == free.length) free = Arrays.copyOf(free, free.length * 2);
+            free[freeCount++] = slot;
+        }
+    }
+
+    private final SizeClass[] classes;
+    private final int maxValueSize;
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    public SlabValueStore() {
+        this(Message.MAX_VALUE_SIZE);
+    }
+
+    public SlabValueStore(int maxValueSize) {
+        this.maxValueSize = maxValueSize;
+        List<Integer> sizes = new ArrayList<>();
+        for (int size = MIN_SLOT; size < maxValueSize + HEADER; size = Math.max(size + 8, (int) (size * GROWTH_FACTOR) & ~7)) {
+            sizes.add(size);
+        }
+        sizes.add(maxValueSize + HEADER);
+        this.classes = new SizeClass[sizes.size()];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(i, sizes.get(i));
+        }
+    }
+
+    private SizeClass classFor(int length) {
+        int needed = length + HEADER;
+        for (SizeClass c : classes) {
+            if (c.slotSize >= needed) return c;
+        }
+        throw new IllegalArgumentException("Value too large for the off-heap store: " + length + " bytes");
+    }
+
+    public void checkSize(int length) {
+        if (length > maxValueSize) {
+            throw new IllegalArgumentException("Value too large for the off-heap store: " + length + " bytes");
+        }
+    }
+
+    // Copia o valor para um bloco livre e devolve o seu handle
+    public long store(byte[] value) {
+        SizeClass c = classFor(value.length);
+        int slot;
+        ByteBuffer slab;
+        long stamp = c.lock.writeLock();
+        try {
+            slot = c.allocate();
+            slab = c.slabs[slot >>> 16];
+        } finally {
+            c.lock.unlockWrite(stamp);
+        }
+
+        // O bloco é só nosso até o handle ser publicado no mapa
+        ByteBuffer view = slab.duplicate();
+        int base = (slot & 0xFFFF) * c.slotSize;
+        int generation = view.getInt(base) & GEN_MASK;
+        view.putInt(base + 4, value.length);
+        view.position(base + HEADER);
+        view.put(value);
+        usedBytes.addAndGet(value.length);
+        return ((long) c.index << 56) | ((long) (slot >>> 16) << 32) | ((long) (slot & 0xFFFF) << 16) | generation;
+    }
+
+    // Devolve uma cópia do valor, ou null se o bloco já foi libertado
+    public byte[] read(long handle) {
+        SizeClass c = classes[(int) (handle >>> 56)];
+        ByteBuffer slab = c.slabs[(int) (handle >>> 32) & 0xFFFFFF];
+        int base = ((int) (handle >>> 16) & 0xFFFF) * c.slotSize;
+        int generation = (int) handle & GEN_MASK;
+
+        long stamp = c.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            byte[] value = copy(slab, base, generation, c.slotSize);
+            if (c.lock.validate(stamp)) return value;
+        }
+        // Houve libertações nesta classe durante a cópia: repete com o read lock
+        stamp = c.lock.readLock();
+        try {
+            return copy(slab, base, generation, c.slotSize);
+        } finally {
+            c.lock.unlockRead(stamp);
+        }
+    }
+
+    private static byte[] copy(ByteBuffer slab, int base, int generation, int slotSize) {
+        ByteBuffer view = slab.duplicate();
+        if ((view.getInt(base) & GEN_MASK) != generation) return null;
+        int length = view.getInt(base + 4);
+        if (length < 0 || length > slotSize - HEADER) return null; // Leitura otimista inválida
+        byte[] value = new byte[length];
+        view.position(base + HEADER);
+        view.get(value);
+        return value;
+    }
+
+    // Liberta o bloco para reutilização. Quem tiver o handle antigo passa a ler null.
+    public void free(long handle) {
+        SizeClass c = classes[(int) (handle >>> 56)];
+        int slabIndex = (int) (handle >>> 32) & 0xFFFFFF;
+        int slotIndex = (int) (handle >>> 16) & 0xFFFF;
+        int base = slotIndex * c.slotSize;
+        long stamp = c.lock.writeLock();
+        try {
+            ByteBuffer slab = c.slabs[slabIndex];
+            usedBytes.addAndGet(-slab.getInt(base + 4));
+            slab.putInt(base, slab.getInt(base) + 1);
+            c.release((slabIndex << 16) | slotIndex);
+        } finally {
+            c.lock.unlockWrite(stamp);
+        }
+    }
+
+    // Bytes de valores guardados
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    // Memória fora do heap reservada pelos slabs
+    public long getReservedBytes() {
+        long total = 0;
+        for (SizeClass c : classes) {
+            total += (long) c.slabs.length * c.slotsPerSlab * c.slotSize;
+        }
+        return total;
+    }
+}
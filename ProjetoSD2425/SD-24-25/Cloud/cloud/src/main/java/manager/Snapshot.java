@@ -0,0 +1,276 @@
+package manager;
+
+import common.Log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// Snapshots do MapAccess e da tabela de utilizadores, para o arranque não ter de repetir o log todo.
+//
+// O snapshot é escrito sem parar as escritas. Começa por um checkpoint do log, que devolve o LSN de
+// corte L (os registos seguintes ficam em segmentos novos); o conteúdo percorrido tem tudo até L e
+// talvez parte do que veio depois. No arranque carrega-se o snapshot e repetem-se por cima os registos
+// do log com LSN > L, o que dá o estado final correto.
+//
+// Ficam sempre os RETAINED snapshots mais recentes, e o log desde o mais antigo deles
+// (oldestLsn): se o último estiver estragado, o arranque usa o anterior e repete mais log.
+// Um snapshot novo só conta depois de renomeado, com fsync do diretório, e relido sem erros.
+//
+// Formato de "snapshot-<L>.snap" (inteiros big-endian, strings em UTF-8 precedidas do tamanho):
+//   [int magic][int versão][long L]
+//   [int nUtilizadores] ([nome][credencial])*   (ver User)
+//   ([int n][chave (n bytes)][int m][valor (m bytes)])*, terminado por n = -1
+//   [long nEntradas][int crc32 de tudo o que vem antes]
+public class Snapshot {
+    private static final int MAGIC = 0x53444B56; // "SDKV"
+    private static final int VERSION = 1;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+    private static final String TMP_SUFFIX = ".tmp";
+    // Tamanho de cada janela mapeada na leitura (um MappedByteBuffer não passa de 2 GB)
+    private static final long MAP_WINDOW = 256L * 1024 * 1024;
+    private static final int RETAINED = 2;
+
+    private Snapshot() {}
+
+    private static Path snapshotPath(Path dir, long lsn) {
+        return dir.resolve(String.format("%s%020d%s", PREFIX, lsn, SUFFIX));
+    }
+
+    private static long lsnOf(Path snapshot) {
+        String name = snapshot.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    // Snapshots completos em 'dir', do mais recente para o mais antigo
+    private static List<Path> list(Path dir) throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path p : stream) snapshots.add(p);
+        }
+        snapshots.sort(Comparator.comparingLong(Snapshot::lsnOf).reversed());
+        return snapshots;
+    }
+
+    // LSN de corte do snapshot mais antigo guardado (0 se não houver): o log até aí já não é preciso
+    public static long oldestLsn(Path dir) throws IOException {
+        List<Path> snapshots = list(dir);
+        return snapshots.isEmpty() ? 0 : lsnOf(snapshots.get(snapshots.size() - 1));
+    }
+
+    // ---------- Escrita ----------
+
+    // Escreve o snapshot com ponto de corte 'lsn' e apaga os que já não são precisos (ver RETAINED).
+    // Devolve o número de entradas.
+    public static long write(Path dir, long lsn, MapAccess mapAccess, UserManager users) throws IOException {
+        Path target = snapshotPath(dir, lsn);
+        Path tmp = target.resolveSibling(target.getFileName() + TMP_SUFFIX);
+        CRC32 crc = new CRC32();
+        long count;
+
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(Channels.newOutputStream(channel), crc), 1024 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(lsn);
+
+            List<User> userList = users.getUsers();
+            out.writeInt(userList.size());
+            for (User user : userList) {
+                writeBytes(out, user.getUsername().getBytes(StandardCharsets.UTF_8));
+                writeBytes(out, user.getCredential().getBytes(StandardCharsets.UTF_8));
+            }
+
+            long[] entries = {0};
+            try {
+                mapAccess.forEachEntry((key, value) -> {
+                    try {
+                        writeBytes(out, key.getBytes(StandardCharsets.UTF_8));
+                        writeBytes(out, value);
+                        entries[0]++;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            count = entries[0];
+            out.writeInt(-1);
+            out.writeLong(count);
+            out.flush(); // O crc passa a cobrir tudo o que foi escrito até aqui
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            channel.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+
+        // Só passa a contar depois de estar completo no disco
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        WriteAheadLog.syncDirectory(dir);
+        try {
+            read(target, null, null);
+        } catch (IOException e) {
+            Files.deleteIfExists(target); // Os anteriores ficam
+            throw new IOException("Snapshot " + target.getFileName() + " failed verification: " + e.getMessage(), e);
+        }
+        List<Path> snapshots = list(dir);
+        for (int i = RETAINED; i < snapshots.size(); i++) {
+            Files.deleteIfExists(snapshots.get(i));
+        }
+        return count;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // ---------- Leitura ----------
+
+    // Carrega o snapshot válido mais recente de 'dir' (mapeado em memória) e devolve o seu LSN de
+    // corte, ou 0 se não houver nenhum. Cada snapshot é verificado antes de ser carregado; um
+    // estragado é ignorado e passa-se ao anterior. Deve ser chamado com o MapAccess e o UserManager
+    // ainda vazios.
+    public static long load(Path dir, MapAccess mapAccess, UserManager users) throws IOException {
+        if (!Files.isDirectory(dir)) return 0;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX + "*" + TMP_SUFFIX)) {
+            for (Path p : stream) Files.deleteIfExists(p); // Snapshot interrompido a meio
+        }
+        List<Path> snapshots = list(dir);
+        for (Path snapshot : snapshots) {
+            try {
+                read(snapshot, null, null);
+            } catch (IOException e) {
+                Log.warn("Skipping snapshot {}: {}", snapshot.getFileName(), e.getMessage());
+                continue;
+            }
+            return read(snapshot, mapAccess, users);
+        }
+        // O log anterior ao snapshot mais antigo já foi apagado: sem nenhum válido faltam dados
+        if (!snapshots.isEmpty()) throw new IOException("No valid snapshot in " + dir);
+        return 0;
+    }
+
+    // Lê o snapshot e devolve o seu LSN de corte; com 'mapAccess' e 'users' a null só o verifica
+    private static long read(Path snapshot, MapAccess mapAccess, UserManager users) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            MappedReader in = new MappedReader(channel);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a snapshot file: " + snapshot.getFileName());
+            }
+            long lsn = in.readLong();
+
+            int nUsers = in.readInt();
+            for (int i = 0; i < nUsers; i++) {
+                String name = in.readString(in.readInt());
+                String credential = in.readString(in.readInt());
+                if (users != null) users.createUser(User.withCredential(name, credential));
+            }
+
+            long count = 0;
+            int keyLength;
+            while ((keyLength = in.readInt()) >= 0) {
+                String key = in.readString(keyLength);
+                int valueLength = in.readInt();
+                if (mapAccess != null) mapAccess.restore(key, in.readBytes(valueLength));
+                else in.skip(valueLength);
+                count++;
+            }
+            long expectedCount = in.readLong();
+            int crc = in.checksum();
+            if (expectedCount != count || in.readInt() != crc) {
+                throw new IOException("Corrupted snapshot " + snapshot.getFileName());
+            }
+            return lsn;
+        }
+    }
+
+    // Lê o ficheiro através de janelas mapeadas em memória, calculando o crc à medida que avança
+    private static class MappedReader {
+        private final FileChannel channel;
+        private final long size;
+        private final CRC32 crc = new CRC32();
+        private MappedByteBuffer window;
+        private long windowStart;
+        private int checked; // Posição na janela até onde o crc já foi calculado
+
+        MappedReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            map(0, 0);
+        }
+
+        private void map(long position, int minLength) throws IOException {
+            long length = Math.min(Math.max(MAP_WINDOW, minLength), size - position);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            windowStart = position;
+            checked = 0;
+        }
+
+        // Garante que os próximos 'n' bytes estão na janela atual, mapeando a seguinte se for preciso
+        private void require(int n) throws IOException {
+            if (n < 0) throw new IOException("Corrupted snapshot");
+            if (window.remaining() >= n) return;
+            long position = windowStart + window.position();
+            if (position + n > size) throw new EOFException("Truncated snapshot");
+            updateCrc();
+            map(position, n);
+        }
+
+        private void updateCrc() {
+            ByteBuffer consumed = window.duplicate();
+            consumed.limit(window.position());
+            consumed.position(checked);
+            crc.update(consumed);
+            checked = window.position();
+        }
+
+        int readInt() throws IOException {
+            require(4);
+            return window.getInt();
+        }
+
+        long readLong() throws IOException {
+            require(8);
+            return window.getLong();
+        }
+
+        byte[] readBytes(int n) throws IOException {
+            require(n);
+            byte[] bytes = new byte[n];
+            window.get(bytes);
+            return bytes;
+        }
+
+        void skip(int n) throws IOException {
+            require(n);
+            window.position(window.position() + n);
+        }
+
+        String readString(int n) throws IOException {
+            return new String(readBytes(n), StandardCharsets.UTF_8);
+        }
+
+        // crc32 de tudo o que foi lido até agora
+        int checksum() {
+            updateCrc();
+            return (int) crc.getValue();
+        }
+    }
+}
@@ -1,31 +1,101 @@
 package manager;
 
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 import java.io.Serializable;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
 
+// A password nunca é guardada: o utilizador guarda a credencial "pbkdf2$iterações$sal$hash"
+// (PBKDF2-HMAC-SHA256, sal aleatório), que é o que vai para o log, o snapshot e os outros nós.
 public class User implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    private static final String SCHEME = "pbkdf2";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int ITERATIONS = 10_000;
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     private final String username;
-    private final String password;
-    private boolean loggedIn; // Estado de login
+    private final String credential;
+    private int sessions; // Ligações autenticadas com este utilizador
 
+    // Novo utilizador com a password em claro (registo)
     public User(String username, String password) {
+        this(username, password, true);
+    }
+
+    private User(String username, String secret, boolean plain) {
         this.username = username;
-        this.password = password;
-        this.loggedIn = false;
+        this.credential = plain ? hash(secret) : secret;
+        this.sessions = 0;
+    }
+
+    // Utilizador com uma credencial já calculada (log, snapshot, replicação). Ficheiros antigos
+    // guardavam a password em claro: nesse caso é calculada aqui.
+    public static User withCredential(String username, String credential) {
+        return new User(username, credential, !isCredential(credential));
     }
 
     public String getUsername() {return username;}
 
+    String getCredential() {return credential;}
+
     public boolean verifyPassword(String password) {
-        return this.password.equals(password);
+        String[] parts = credential.split("\\$");
+        byte[] salt = Base64.getDecoder().decode(parts[2]);
+        byte[] expected = Base64.getDecoder().decode(parts[3]);
+        return MessageDigest.isEqual(expected, derive(password, salt, Integer.parseInt(parts[1])));
+    }
+
+    private static String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder();
+        return SCHEME + "$" + ITERATIONS + "$" + base64.encodeToString(salt) + "$"
+                + base64.encodeToString(derive(password, salt, ITERATIONS));
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " unavailable", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static boolean isCredential(String s) {
+        String[] parts = s.split("\\$");
+        if (parts.length != 4 || !SCHEME.equals(parts[0])) return false;
+        try {
+            Base64.getDecoder().decode(parts[2]);
+            Base64.getDecoder().decode(parts[3]);
+            return Integer.parseInt(parts[1]) > 0;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
     }
 
     public boolean isLoggedIn() {
-        return loggedIn;
+        return sessions > 0;
+    }
+
+    public int getSessions() {
+        return sessions;
+    }
+
+    void sessionOpened() {
+        sessions++;
     }
 
-    public void setLoggedIn(boolean loggedIn) {
-        this.loggedIn = loggedIn;
+    void sessionClosed() {
+        sessions--;
     }
-}
\ No newline at end of file
+}
@@ -1,81 +1,238 @@
 package manager;
 
-import java.net.Socket;
+import common.Histogram;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Condition;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
 
+// Utilizadores e sessões. Um login admitido devolve uma Session, que a ligação guarda e entrega no
+// logout: os pedidos normais não passam por aqui.
+// Os logins são admitidos por uma fila FIFO: enquanto houver maxLogin sessões abertas (ou outros
+// logins à espera) um login com credenciais válidas fica na fila, sem ocupar nenhuma thread, até um
+// logout libertar uma vaga, até ao seu timeout, ou até ser cancelado (a ligação fechou). Com
+// maxQueued logins na fila os seguintes são recusados logo.
 public class UserManager {
+    public static final int DEFAULT_MAX_QUEUED = 1024;
+    public static final long DEFAULT_LOGIN_TIMEOUT_MILLIS = 30000;
+
+    private static final ScheduledThreadPoolExecutor TIMEOUTS = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "login-timeouts");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        TIMEOUTS.setRemoveOnCancelPolicy(true);
+    }
+
+    // Um pedido de login: 'result' é completado com a sessão aberta ou com null (recusado), ou falha
+    // com TimeoutException (esperou demais) ou IllegalStateException (fila cheia). 'position' é a
+    // posição na fila quando o pedido entrou, 0 se não precisou de esperar.
+    public static final class LoginRequest {
+        private final String username;
+        private final CompletableFuture<Session> result = new CompletableFuture<>();
+        private final long queuedAt = System.nanoTime();
+        private int position = 0;
+
+        private LoginRequest(String username) {
+            this.username = username;
+        }
+
+        public CompletableFuture<Session> getResult() {
+            return result;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+    }
+
     private final Map<String, User> userMap; // Mapeia nomes de usuários para objetos User
-    private final Map<Socket, User> socketUserMap; // Mapeia sockets para objetos User
     private final ReentrantReadWriteLock lock;
     private final ReentrantReadWriteLock.ReadLock readLock;
     private final ReentrantReadWriteLock.WriteLock writeLock;
-    private final Condition loginCondition; // Condição para gerenciar logins
 
-    private final int maxLogin = 2; // Número máximo de logins simultâneos permitido
+    private final int maxLogin; // Número máximo de logins simultâneos permitido
+    private final int maxSessionsPerUser; // Ligações autenticadas ao mesmo tempo por utilizador
+    private final int maxQueued; // Logins à espera de vaga
+    private final long defaultTimeoutMillis; // Espera máxima na fila se o pedido não trouxer outra (0 = sem limite)
     private int currentLogins = 0; // Número atual de usuários logados
+    private final ArrayDeque<LoginRequest> loginQueue = new ArrayDeque<>(); // Protegida pelo writeLock
+    // Avisados de cada novo registo (nome, credencial), com o lock: não podem bloquear
+    private final List<BiConsumer<String, String>> listeners = new CopyOnWriteArrayList<>();
+    private final LongAdder loginsQueued = new LongAdder();
+    private final LongAdder loginTimeouts = new LongAdder();
+    private final LongAdder loginsRejected = new LongAdder();
+    private final Histogram loginWaits = new Histogram(); // Tempo na fila dos logins admitidos
+    private volatile WriteAheadLog wal; // null sem persistência ou enquanto se recupera
 
     public UserManager() {
+        this(2, 1);
+    }
+
+    public UserManager(int maxLogin, int maxSessionsPerUser) {
+        this(maxLogin, maxSessionsPerUser, DEFAULT_MAX_QUEUED, DEFAULT_LOGIN_TIMEOUT_MILLIS);
+    }
+
+    public UserManager(int maxLogin, int maxSessionsPerUser, int maxQueued, long defaultTimeoutMillis) {
+        this.maxLogin = maxLogin;
+        this.maxSessionsPerUser = maxSessionsPerUser;
+        this.maxQueued = maxQueued;
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
         this.userMap = new HashMap<>();
-        this.socketUserMap = new HashMap<>();
         this.lock = new ReentrantReadWriteLock();
         this.readLock = lock.readLock();
         this.writeLock = lock.writeLock();
-        this.loginCondition = lock.writeLock().newCondition();
     }
 
-    // Método para registrar um novo usuário
+    // Liga o log aos registos seguintes (os anteriores vêm do snapshot e da recuperação do log)
+    public void attachLog(WriteAheadLog wal) {
+        this.wal = wal;
+    }
+
+    // Método para registrar um novo usuário. Com log, só devolve depois de o registo lá estar
+    // (segundo a política de fsync); lança UncheckedIOException se não for possível registá-lo.
     public boolean createUser(User user) {
+        WriteAheadLog wal = this.wal;
+        long lsn = 0;
         writeLock.lock();
         try {
             if (userMap.containsKey(user.getUsername())) {
                 return false; // Usuário já existe
             }
+            // Registado com o lock, para que a ordem no log seja a da tabela (como no MapAccess)
+            if (wal != null) lsn = wal.logRegister(user.getUsername(), user.getCredential());
             userMap.put(user.getUsername(), user);
-            return true;
+            for (BiConsumer<String, String> listener : listeners) {
+                listener.accept(user.getUsername(), user.getCredential());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         } finally {
             writeLock.unlock();
         }
+        if (wal != null) {
+            try {
+                wal.awaitDurable(lsn);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return true;
     }
 
-    // Método para autenticar um usuário com limite de logins simultâneos
-    public boolean authUser(String username, String password, Socket socket) throws InterruptedException {
+    // Autentica o utilizador sem bloquear: as credenciais são verificadas logo e, sem vaga, o pedido
+    // fica na fila até ao fim de timeoutMillis (0 = o timeout por omissão). Cancelar o resultado
+    // retira o pedido da fila. A password é verificada antes do lock (o hash é lento de propósito).
+    public LoginRequest authUser(String username, String password, long timeoutMillis) {
+        LoginRequest request = new LoginRequest(username);
+        User user = getUser(username);
+        if (user == null || !user.verifyPassword(password)) {
+            request.result.complete(null);
+            return request;
+        }
+        Session admitted;
         writeLock.lock();
         try {
-            while (currentLogins >= maxLogin) {
-                loginCondition.await(); // Espera enquanto o limite de logins está atingido
+            if (loginQueue.isEmpty() && currentLogins < maxLogin) {
+                admitted = openSession(request);
+            } else if (loginQueue.size() >= maxQueued) {
+                loginsRejected.increment();
+                request.result.completeExceptionally(new IllegalStateException("Login queue full"));
+                return request;
+            } else {
+                loginQueue.add(request); // Atrás de quem já estava à espera, mesmo que haja vaga
+                request.position = loginQueue.size();
+                loginsQueued.increment();
+                admitted = null;
             }
+        } finally {
+            writeLock.unlock();
+        }
 
-            User user = userMap.get(username);
-            if (user != null && user.verifyPassword(password) && !user.isLoggedIn()) {
-                user.setLoggedIn(true);
-                socketUserMap.put(socket, user); // Associa o socket ao usuário
-                currentLogins++; // Incrementa o contador de logins
-                return true;
-            }
-            return false; // Falha na autenticação ou usuário já logado
+        if (request.position == 0) {
+            complete(request, admitted);
+            return request;
+        }
+        long timeout = timeoutMillis > 0 ? timeoutMillis : defaultTimeoutMillis;
+        ScheduledFuture<?> timer = timeout > 0 ? TIMEOUTS.schedule(() -> {
+            if (request.result.completeExceptionally(new TimeoutException("Login timed out"))) loginTimeouts.increment();
+        }, timeout, TimeUnit.MILLISECONDS) : null;
+        request.result.whenComplete((ok, error) -> {
+            if (timer != null) timer.cancel(false);
+            if (error != null) abandon(request);
+        });
+        return request;
+    }
+
+    // Abre a sessão do pedido (com o writeLock); null se o utilizador já tiver todas as sessões
+    private Session openSession(LoginRequest request) {
+        User user = userMap.get(request.username);
+        if (user == null || user.getSessions() >= maxSessionsPerUser) {
+            return null; // Usuário já logado
+        }
+        user.sessionOpened();
+        currentLogins++; // Incrementa o contador de logins
+        return new Session(user);
+    }
+
+    // Completa o pedido já sem o lock; se entretanto expirou ou foi cancelado, a sessão aberta é fechada
+    private void complete(LoginRequest request, Session admitted) {
+        if (!request.result.complete(admitted) && admitted != null) {
+            logoutUser(admitted);
+        }
+    }
+
+    // O pedido desistiu (timeout ou ligação fechada): sai da fila
+    private void abandon(LoginRequest request) {
+        writeLock.lock();
+        try {
+            loginQueue.remove(request);
         } finally {
             writeLock.unlock();
         }
     }
 
-    // Método para desconectar um usuário
-    public boolean logoutUser(Socket socket) {
+    // Fecha a sessão; a vaga libertada vai para o primeiro da fila. Falso se já estava fechada.
+    public boolean logoutUser(Session session) {
+        List<LoginRequest> done = new ArrayList<>();
+        List<Session> outcomes = new ArrayList<>();
         writeLock.lock();
         try {
-            User user = socketUserMap.remove(socket); // Remove a associação do socket
-            if (user != null && user.isLoggedIn()) {
-                user.setLoggedIn(false);
-                currentLogins--; // Decrementa o contador de logins
-                loginCondition.signal(); // Notifica uma thread em espera para tentar logar
-                return true;
+            if (!session.close()) {
+                return false; // Sessão já terminada
+            }
+            session.getUser().sessionClosed();
+            currentLogins--; // Decrementa o contador de logins
+            while (currentLogins < maxLogin && !loginQueue.isEmpty()) {
+                LoginRequest next = loginQueue.poll();
+                if (next.result.isDone()) continue; // Expirou ou foi cancelado
+                done.add(next);
+                outcomes.add(openSession(next));
             }
-            return false; // Usuário não estava logado ou socket não estava associado
         } finally {
             writeLock.unlock();
         }
+        long now = System.nanoTime();
+        for (int i = 0; i < done.size(); i++) {
+            loginWaits.record(now - done.get(i).queuedAt);
+            complete(done.get(i), outcomes.get(i));
+        }
+        return true;
     }
 
     // Recupera um usuário pelo nome de usuário
@@ -88,54 +245,89 @@ public class UserManager {
         }
     }
 
-    // Recupera um usuário pelo socket
-    public User getUserBySocket(Socket socket) {
+    // Remove um usuário (opcional, caso precise deletar contas)
+    public boolean removeUser(String username) {
+        writeLock.lock();
+        try {
+            return userMap.remove(username) != null;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Lista todos os usuários (apenas nomes, por exemplo)
+    public String listUsers() {
         readLock.lock();
         try {
-            return socketUserMap.get(socket);
+            return String.join(", ", userMap.keySet());
         } finally {
             readLock.unlock();
         }
     }
 
-    // Recupera o nome de usuário associado a um socket
-    public String getUsernameBySocket(Socket socket) {
+    // Cópia da tabela de utilizadores (para o snapshot)
+    List<User> getUsers() {
         readLock.lock();
         try {
-            User user = socketUserMap.get(socket);
-            return user != null ? user.getUsername() : null;
+            return new ArrayList<>(userMap.values());
         } finally {
             readLock.unlock();
         }
     }
 
-    // Remove um usuário (opcional, caso precise deletar contas)
-    public boolean removeUser(String username) {
+    // Passa a avisar 'listener' dos novos registos e devolve os utilizadores já existentes (nome ->
+    // credencial, nunca a password), atomicamente: nenhum registo fica de fora nem aparece nos dois (replicação)
+    public Map<String, String> subscribe(BiConsumer<String, String> listener) {
         writeLock.lock();
         try {
-            return userMap.remove(username) != null;
+            listeners.add(listener);
+            Map<String, String> existing = new HashMap<>(userMap.size() * 2);
+            for (User user : userMap.values()) {
+                existing.put(user.getUsername(), user.getCredential());
+            }
+            return existing;
         } finally {
             writeLock.unlock();
         }
     }
 
-    // Lista todos os usuários (apenas nomes, por exemplo)
-    public String listUsers() {
+    public void unsubscribe(BiConsumer<String, String> listener) {
+        listeners.remove(listener);
+    }
+
+    // Recupera o número atual de logins
+    public int getCurrentLogins() {
         readLock.lock();
         try {
-            return String.join(", ", userMap.keySet());
+            return currentLogins;
         } finally {
             readLock.unlock();
         }
     }
 
-    // Recupera o número atual de logins
-    public int getCurrentLogins() {
+    public int getQueuedLogins() {
         readLock.lock();
         try {
-            return currentLogins;
+            return loginQueue.size();
         } finally {
             readLock.unlock();
         }
     }
+
+    // Logins que tiveram de esperar na fila
+    public long getLoginsQueued() {
+        return loginsQueued.sum();
+    }
+
+    public long getLoginTimeouts() {
+        return loginTimeouts.sum();
+    }
+
+    public long getLoginsRejected() {
+        return loginsRejected.sum();
+    }
+
+    public Histogram getLoginWaits() {
+        return loginWaits;
+    }
 }
\ No newline at end of file
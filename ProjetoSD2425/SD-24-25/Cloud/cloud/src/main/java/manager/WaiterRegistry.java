@@ -0,0 +1,90 @@
+package manager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Registo dos pedidos GETWHEN à espera, indexado por (keyCond, hash do valor esperado).
+// Não é thread-safe: cada segmento do MapAccess tem o seu e só o usa com o lock do segmento.
+// Um waiter não é uma thread parada, é só a continuação a executar quando o valor chegar.
+class WaiterRegistry {
+
+    static class Waiter {
+        private final String keyCond;
+        private final byte[] valueCond;
+        private final int valueHash;
+        private final Runnable onSatisfied;
+
+        Waiter(String keyCond, byte[] valueCond, Runnable onSatisfied) {
+            this.keyCond = keyCond;
+            this.valueCond = valueCond;
+            this.valueHash = Arrays.hashCode(valueCond);
+            this.onSatisfied = onSatisfied;
+        }
+
+        // Deve ser chamado já sem o lock do segmento
+        void run() {
+            onSatisfied.run();
+        }
+    }
+
+    private final Map<String, Map<Integer, List<Waiter>>> waiters = new HashMap<>();
+    private int size = 0;
+
+    void register(Waiter waiter) {
+        Map<Integer, List<Waiter>> byValue = waiters.get(waiter.keyCond);
+        if (byValue == null) {
+            byValue = new HashMap<>();
+            waiters.put(waiter.keyCond, byValue);
+        }
+        List<Waiter> bucket = byValue.get(waiter.valueHash);
+        if (bucket == null) {
+            bucket = new ArrayList<>(1);
+            byValue.put(waiter.valueHash, bucket);
+        }
+        bucket.add(waiter);
+        size++;
+    }
+
+    // Remove um waiter que desistiu (ex.: interrompido), libertando as entradas vazias
+    void unregister(Waiter waiter) {
+        Map<Integer, List<Waiter>> byValue = waiters.get(waiter.keyCond);
+        if (byValue == null) return;
+        List<Waiter> bucket = byValue.get(waiter.valueHash);
+        if (bucket != null && bucket.remove(waiter)) {
+            size--;
+            if (bucket.isEmpty()) byValue.remove(waiter.valueHash);
+            if (byValue.isEmpty()) waiters.remove(waiter.keyCond);
+        }
+    }
+
+    // Retira os waiters cujo valor esperado é igual ao novo valor da chave e junta-os a 'fired'.
+    // Quem chama executa-os depois de largar o lock.
+    void fire(String key, byte[] value, List<Waiter> fired) {
+        if (waiters.isEmpty()) return;
+        Map<Integer, List<Waiter>> byValue = waiters.get(key);
+        if (byValue == null) return;
+        int hash = Arrays.hashCode(value);
+        List<Waiter> bucket = byValue.get(hash);
+        if (bucket == null) return;
+
+        Iterator<Waiter> it = bucket.iterator();
+        while (it.hasNext()) {
+            Waiter waiter = it.next();
+            if (Arrays.equals(waiter.valueCond, value)) {
+                it.remove();
+                size--;
+                fired.add(waiter);
+            }
+        }
+        if (bucket.isEmpty()) byValue.remove(hash);
+        if (byValue.isEmpty()) waiters.remove(key);
+    }
+
+    int size() {
+        return size;
+    }
+}
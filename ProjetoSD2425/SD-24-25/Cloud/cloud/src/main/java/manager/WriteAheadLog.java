@@ -0,0 +1,552 @@
+package manager;
+
+import common.Log;
+import common.MessageCodec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// Log append-only das escritas do MapAccess (put, multiPut, remove, clear) e dos registos de
+// utilizadores do UserManager.
+//
+// Os registos são acumulados em memória e escritos no ficheiro em grupo: quando várias threads
+// esperam pelo mesmo fsync, uma delas (o "líder") escreve tudo o que está pendente e faz um único
+// FileChannel.force por todas. O log está dividido em segmentos "wal-<primeiro LSN>.log".
+//
+// Formato de cada registo: [int tamanho][int crc32][corpo], corpo = [byte op][long lsn][dados].
+public class WriteAheadLog implements Closeable {
+
+    public enum FsyncPolicy {
+        ALWAYS, // Cada escrita espera pelo fsync (um só fsync para todas as escritas concorrentes)
+        GROUP,  // Uma thread faz um fsync por grupo, a cada groupMillis ou groupBytes, e cada escrita
+                // espera pelo fsync do grupo que a inclui
+        ASYNC,  // Como GROUP, mas as escritas não esperam pelo fsync: numa falha perdem-se no máximo
+                // os últimos groupMillis de escritas já confirmadas
+        NONE    // Sem fsync: os dados vão para o sistema operativo a cada groupMillis
+    }
+
+    // Recebe as operações lidas do log no arranque
+    public interface Replayer {
+        void put(String key, byte[] value);
+
+        void multiPut(Map<String, byte[]> pairs);
+
+        void remove(String key);
+
+        void clear();
+
+        void register(String username, String credential);
+    }
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_MULTIPUT = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte OP_CLEAR = 4;
+    private static final byte OP_REGISTER = 5;
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    // Nenhum registo passa disto: cada um vem de uma mensagem, que não passa de MAX_FRAME_SIZE
+    private static final int MAX_RECORD_BYTES = MessageCodec.MAX_FRAME_SIZE;
+    private static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
+
+    // ByteArrayOutputStream com acesso ao array, para escrever no canal e corrigir cabeçalhos sem cópias
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer(int size) {
+            super(size);
+        }
+
+        ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        void patchInt(int pos, int v) {
+            buf[pos] = (byte) (v >>> 24);
+            buf[pos + 1] = (byte) (v >>> 16);
+            buf[pos + 2] = (byte) (v >>> 8);
+            buf[pos + 3] = (byte) v;
+        }
+
+        int crc(int from, int to) {
+            CRC32 crc = new CRC32();
+            crc.update(buf, from, to - from);
+            return (int) crc.getValue();
+        }
+    }
+
+    private final Path dir;
+    private final FsyncPolicy policy;
+    private final long groupMillis;
+    private final int groupBytes;
+    private final long segmentBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();      // Uma escrita no ficheiro terminou
+    private final Condition flushRequested = lock.newCondition(); // Para a thread de group commit
+    private Buffer staging = new Buffer(64 * 1024);  // Registos ainda não escritos
+    private DataOutputStream stagingOut = new DataOutputStream(staging);
+    private Buffer spare = new Buffer(64 * 1024);
+    private long lastLsn = 0;      // Último LSN atribuído
+    private long writtenLsn = 0;   // Último LSN escrito no ficheiro
+    private long durableLsn = 0;   // Último LSN com fsync
+    private boolean flushing = false; // Há um líder a escrever
+    private boolean closed = false;
+    private IOException failure = null;
+
+    // Só usados por quem está a escrever (flushing == true)
+    private FileChannel channel;
+    private long segmentSize;
+
+    private Thread flusher;
+
+    private WriteAheadLog(Path dir, FsyncPolicy policy, long groupMillis, int groupBytes, long segmentBytes) {
+        this.dir = dir;
+        this.policy = policy;
+        this.groupMillis = groupMillis;
+        this.groupBytes = groupBytes;
+        this.segmentBytes = segmentBytes;
+    }
+
+    // Abre (ou cria) o log em 'dir', repete as operações já registadas em 'replayer'
+    // e fica pronto a receber novas escritas num segmento novo
+    public static WriteAheadLog open(Path dir, FsyncPolicy policy, long groupMillis, int groupBytes,
+                                     long segmentBytes, Replayer replayer) throws IOException {
+        return open(dir, policy, groupMillis, groupBytes, segmentBytes, 0, replayer);
+    }
+
+    // Como o anterior, mas só repete os registos depois de 'afterLsn' (os anteriores já vêm de um snapshot)
+    public static WriteAheadLog open(Path dir, FsyncPolicy policy, long groupMillis, int groupBytes,
+                                     long segmentBytes, long afterLsn, Replayer replayer) throws IOException {
+        Files.createDirectories(dir);
+        WriteAheadLog wal = new WriteAheadLog(dir, policy, groupMillis, groupBytes, segmentBytes);
+        wal.lastLsn = Math.max(afterLsn, wal.replay(afterLsn, replayer));
+        wal.writtenLsn = wal.durableLsn = wal.lastLsn;
+        wal.openSegment(wal.lastLsn + 1);
+        if (policy != FsyncPolicy.ALWAYS) {
+            wal.flusher = new Thread(wal::runFlusher, "wal-flusher");
+            wal.flusher.setDaemon(true);
+            wal.flusher.start();
+        }
+        return wal;
+    }
+
+    // ---------- Escrita ----------
+
+    public long logPut(String key, byte[] value) throws IOException {
+        lock.lock();
+        try {
+            int start = beginRecord(OP_PUT);
+            stagingOut.writeUTF(key);
+            stagingOut.writeInt(value.length);
+            stagingOut.write(value);
+            return endRecord(start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long logMultiPut(Map<String, byte[]> pairs) throws IOException {
+        lock.lock();
+        try {
+            int start = beginRecord(OP_MULTIPUT);
+            stagingOut.writeInt(pairs.size());
+            for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+                stagingOut.writeUTF(entry.getKey());
+                stagingOut.writeInt(entry.getValue().length);
+                stagingOut.write(entry.getValue());
+            }
+            return endRecord(start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long logRemove(String key) throws IOException {
+        lock.lock();
+        try {
+            int start = beginRecord(OP_REMOVE);
+            stagingOut.writeUTF(key);
+            return endRecord(start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long logClear() throws IOException {
+        lock.lock();
+        try {
+            return endRecord(beginRecord(OP_CLEAR));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long logRegister(String username, String credential) throws IOException {
+        lock.lock();
+        try {
+            int start = beginRecord(OP_REGISTER);
+            stagingOut.writeUTF(username);
+            stagingOut.writeUTF(credential);
+            return endRecord(start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Devem ser chamados com o lock
+    private int beginRecord(byte op) throws IOException {
+        if (failure != null) throw failure;
+        if (closed) throw new IOException("Write-ahead log closed");
+        int start = staging.size();
+        stagingOut.writeInt(0); // tamanho, preenchido em endRecord
+        stagingOut.writeInt(0); // crc
+        stagingOut.writeByte(op);
+        stagingOut.writeLong(lastLsn + 1);
+        return start;
+    }
+
+    private long endRecord(int start) {
+        int end = staging.size();
+        staging.patchInt(start, end - start - 8);
+        staging.patchInt(start + 4, staging.crc(start + 8, end));
+        if (policy != FsyncPolicy.ALWAYS && end >= groupBytes) {
+            flushRequested.signal();
+        }
+        return ++lastLsn;
+    }
+
+    // ALWAYS: espera até o registo 'lsn' estar no disco (esta thread pode ser a que faz o fsync).
+    // GROUP: espera pelo fsync do grupo que inclui 'lsn', feito pela thread de group commit.
+    // ASYNC/NONE: só espera se houver demasiados registos por escrever (limita a memória usada).
+    public void awaitDurable(long lsn) throws IOException {
+        if (policy == FsyncPolicy.GROUP) {
+            lock.lock();
+            try {
+                while (durableLsn < lsn) {
+                    if (failure != null) throw failure;
+                    flushed.awaitUninterruptibly();
+                }
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+        if (policy != FsyncPolicy.ALWAYS) {
+            lock.lock();
+            try {
+                while (staging.size() >= 4 * groupBytes && failure == null && !closed) {
+                    flushRequested.signal();
+                    flushed.awaitUninterruptibly();
+                }
+                if (failure != null) throw failure;
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+
+        while (true) {
+            lock.lock();
+            try {
+                while (true) {
+                    if (failure != null) throw failure;
+                    if (durableLsn >= lsn) return;
+                    // Se ninguém está a escrever, esta thread passa a líder do próximo grupo
+                    if (!flushing) break;
+                    flushed.awaitUninterruptibly();
+                }
+            } finally {
+                lock.unlock();
+            }
+            flush(true, false);
+        }
+    }
+
+    // Ponto de corte para um snapshot: escreve e faz fsync de tudo o que está pendente e passa para
+    // um segmento novo. Devolve o último LSN dos segmentos anteriores; os registos seguintes ficam
+    // todos nos segmentos novos.
+    public long checkpoint() throws IOException {
+        while (true) {
+            lock.lock();
+            try {
+                while (flushing) {
+                    flushed.awaitUninterruptibly();
+                }
+                if (failure != null) throw failure;
+                if (closed) throw new IOException("Write-ahead log closed");
+            } finally {
+                lock.unlock();
+            }
+            long upTo = flush(true, true);
+            if (upTo >= 0) return upTo;
+        }
+    }
+
+    // Apaga os segmentos cujos registos são todos anteriores ou iguais a 'lsn' (já cobertos por um snapshot).
+    // O segmento atual nunca é apagado.
+    public int truncateBefore(long lsn) throws IOException {
+        syncDirectory(dir); // O snapshot e o segmento atual têm de estar no diretório antes de apagar
+        List<Path> segments = listSegments(dir);
+        int deleted = 0;
+        for (int i = 0; i < segments.size() - 1; i++) {
+            if (firstLsnOf(segments.get(i + 1)) - 1 <= lsn) {
+                Files.deleteIfExists(segments.get(i));
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    // Escreve tudo o que está pendente (e faz fsync se 'force', muda de segmento se 'roll').
+    // Só uma thread escreve de cada vez; se já houver outra a escrever, não faz nada e devolve -1.
+    // Caso contrário devolve o último LSN escrito.
+    private long flush(boolean force, boolean roll) throws IOException {
+        Buffer batch;
+        long upTo;
+        lock.lock();
+        try {
+            if (flushing || failure != null) return -1;
+            if (!roll && staging.size() == 0 && (!force || durableLsn == writtenLsn)) return -1;
+            flushing = true;
+            batch = staging;
+            staging = spare;
+            stagingOut = new DataOutputStream(staging);
+            spare = null;
+            upTo = lastLsn;
+        } finally {
+            lock.unlock();
+        }
+
+        IOException error = null;
+        try {
+            ByteBuffer bytes = batch.asByteBuffer();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            segmentSize += batch.size();
+            if (force) channel.force(false);
+            if (roll || segmentSize >= segmentBytes) {
+                rollSegment(upTo + 1);
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+
+        lock.lock();
+        try {
+            batch.reset();
+            spare = batch;
+            if (error == null) {
+                writtenLsn = upTo;
+                if (force) durableLsn = upTo;
+            } else {
+                failure = error; // O log fica inutilizável: as próximas escritas falham
+            }
+            flushing = false;
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (error != null) throw error;
+        return upTo;
+    }
+
+    // Thread de group commit (políticas GROUP, ASYNC e NONE)
+    private void runFlusher() {
+        boolean force = policy != FsyncPolicy.NONE;
+        while (true) {
+            lock.lock();
+            try {
+                if (closed) return;
+                if (staging.size() < groupBytes) {
+                    flushRequested.await(groupMillis, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                flush(force, false);
+            } catch (IOException e) {
+                Log.error("Write-ahead log error: {}", e.getMessage());
+                return;
+            }
+        }
+    }
+
+    // ---------- Segmentos ----------
+
+    private static Path segmentPath(Path dir, long firstLsn) {
+        return dir.resolve(String.format("%s%020d%s", PREFIX, firstLsn, SUFFIX));
+    }
+
+    private static long firstLsnOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    // Segmentos existentes, por ordem de LSN
+    private static List<Path> listSegments(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path p : stream) segments.add(p);
+        }
+        segments.sort(Comparator.comparingLong(WriteAheadLog::firstLsnOf));
+        return segments;
+    }
+
+    // O fsync do diretório torna o ficheiro novo durável; o dos registos só cobre o conteúdo
+    private void openSegment(long firstLsn) throws IOException {
+        channel = FileChannel.open(segmentPath(dir, firstLsn),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentSize = channel.size();
+        syncDirectory(dir);
+    }
+
+    // fsync do diretório: torna duráveis os ficheiros criados, renomeados e apagados nele
+    static void syncDirectory(Path dir) throws IOException {
+        if (WINDOWS) return; // Não deixa abrir diretórios; o NTFS já regista estas alterações no seu journal
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private void rollSegment(long nextLsn) throws IOException {
+        channel.force(false);
+        channel.close();
+        openSegment(nextLsn);
+    }
+
+    // ---------- Recuperação ----------
+
+    // Repete os registos posteriores a 'afterLsn' e devolve o último LSN encontrado.
+    // Um registo incompleto ou corrompido no fim do último segmento (escrita interrompida) é descartado.
+    private long replay(long afterLsn, Replayer replayer) throws IOException {
+        long last = 0;
+        List<Path> segments = listSegments(dir);
+        for (int i = 0; i < segments.size(); i++) {
+            Path segment = segments.get(i);
+            boolean lastSegment = i == segments.size() - 1;
+            // Segmento inteiramente coberto pelo snapshot (sobrou de uma truncagem interrompida)
+            if (!lastSegment && firstLsnOf(segments.get(i + 1)) - 1 <= afterLsn) continue;
+
+            long validBytes = 0;
+            long size = Files.size(segment);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+                while (true) {
+                    byte[] body = readRecord(in, size - validBytes - 8);
+                    if (body == null) break;
+                    last = apply(body, afterLsn, replayer);
+                    validBytes += 8 + body.length;
+                }
+            }
+            if (validBytes < size) {
+                if (!lastSegment) {
+                    throw new IOException("Corrupted write-ahead log segment " + segment.getFileName());
+                }
+                System.err.println("Discarding " + (size - validBytes) + " bytes of incomplete log records");
+                try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                    ch.truncate(validBytes);
+                }
+            }
+        }
+        return last;
+    }
+
+    // Lê o corpo do próximo registo, ou null se acabou ou o registo não está completo/válido.
+    // 'available' são os bytes do segmento depois do cabeçalho: um tamanho maior do que isso (ou do
+    // que qualquer registo) vem de uma escrita interrompida e não chega a ser alocado.
+    private static byte[] readRecord(DataInputStream in, long available) throws IOException {
+        int length;
+        int crc;
+        try {
+            length = in.readInt();
+            crc = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length <= 0 || length > MAX_RECORD_BYTES || length > available) return null;
+        byte[] body = new byte[length];
+        try {
+            in.readFully(body);
+        } catch (EOFException e) {
+            return null;
+        }
+        CRC32 check = new CRC32();
+        check.update(body, 0, length);
+        return (int) check.getValue() == crc ? body : null;
+    }
+
+    private static long apply(byte[] body, long afterLsn, Replayer replayer) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte op = in.readByte();
+        long lsn = in.readLong();
+        if (lsn <= afterLsn) return lsn;
+        switch (op) {
+            case OP_PUT: {
+                String key = in.readUTF();
+                replayer.put(key, readValue(in));
+                break;
+            }
+            case OP_MULTIPUT: {
+                int n = in.readInt();
+                Map<String, byte[]> pairs = new LinkedHashMap<>();
+                for (int i = 0; i < n; i++) {
+                    String key = in.readUTF();
+                    pairs.put(key, readValue(in));
+                }
+                replayer.multiPut(pairs);
+                break;
+            }
+            case OP_REMOVE:
+                replayer.remove(in.readUTF());
+                break;
+            case OP_CLEAR:
+                replayer.clear();
+                break;
+            case OP_REGISTER: {
+                String username = in.readUTF();
+                replayer.register(username, in.readUTF());
+                break;
+            }
+            default:
+                throw new IOException("Unknown log record type " + op);
+        }
+        return lsn;
+    }
+
+    private static byte[] readValue(DataInputStream in) throws IOException {
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        return value;
+    }
+
+    // Escreve o que falta, faz fsync e fecha o segmento atual
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            flushRequested.signalAll();
+            while (flushing) {
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+        flush(true, false);
+        channel.close();
+    }
+
+    public FsyncPolicy getPolicy() {
+        return policy;
+    }
+}
@@ -3,26 +3,58 @@ package server;
 import common.*;
 import manager.MapAccess;
 import manager.Message;
+import manager.Session;
 import manager.User;
 import manager.UserManager;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
 
 public class ClientHandler implements Runnable {
     private final Socket clientSocket;
     private final UserManager users;
     private final MapAccess mapAccess;
-
-    public ClientHandler(Socket clientSocket, UserManager users, MapAccess mapAccess) {
+    private final Executor asyncExecutor; // Envia as respostas dos GETWHEN quando a condição se verifica
+    private final Set<CompletableFuture<byte[]>> pendingGetWhens = ConcurrentHashMap.newKeySet();
+    private volatile Session session; // null até ao login; lida em cada pedido, sem locks
+    private volatile CompletableFuture<Session> pendingLogin; // LOGIN na fila de admissão
+    private volatile boolean closed = false;
+    private final SocketAddress remoteAddress;
+    private final ServerMetrics metrics;
+    private final InvalidationRegistry invalidations;
+    private volatile InvalidationRegistry.Tracker tracker; // Não null depois de um TRACKING
+    private final WatchRegistry watches;
+    private WatchRegistry.Subscriber subscriber; // Criado no primeiro WATCH
+    private final Replication replication;
+    private final Cluster cluster;
+
+    public ClientHandler(Socket clientSocket, UserManager users, MapAccess mapAccess, Executor asyncExecutor,
+                         ServerMetrics metrics, InvalidationRegistry invalidations, WatchRegistry watches,
+                         Replication replication, Cluster cluster) {
         this.clientSocket = clientSocket;
         this.users = users;
         this.mapAccess = mapAccess;
+        this.asyncExecutor = asyncExecutor;
+        this.remoteAddress = clientSocket.getRemoteSocketAddress();
+        this.metrics = metrics;
+        this.invalidations = invalidations;
+        this.watches = watches;
+        this.replication = replication;
+        this.cluster = cluster;
+        metrics.connectionOpened();
     }
 
     @Override
@@ -30,81 +62,157 @@ public class ClientHandler implements Runnable {
         CommonIdent commonIdent = null;
         try {
             commonIdent = new CommonIdent(clientSocket);
+            commonIdent.setCoalescing(metrics.getWrites());
             while (true) {
                 Message message = commonIdent.receiveMessage();
+                // Com mais pedidos já recebidos, a resposta espera pelas dos seguintes (ver WriteCoalescing)
+                if (commonIdent.hasPendingInput()) commonIdent.startBatch();
                 handleMessage(message, commonIdent);
+                if (!commonIdent.hasPendingInput()) commonIdent.endBatch();
             }
         } catch (Exception e) {
-            System.err.println("Client handler error: " + e.getMessage());
+            Log.warn("Client handler error: {}", e.getMessage());
         } finally {
             if (commonIdent != null) {
-                try {
-                    handleLogout(commonIdent); // Garante logout ao desconectar
-                } catch (IOException ignored) {}
+                disconnected(commonIdent);
                 commonIdent.cleanup();
             }
         }
     }
 
-    private void handleMessage(Message message, CommonIdent commonIdent) throws IOException {
-        String username = users.getUsernameBySocket(commonIdent.getSocket()); // Recupera o user pelo socket
+    // Chamado quando a ligação termina, depois do último pedido tratado
+    void disconnected(Connection connection) {
+        metrics.connectionClosed();
+        closed = true; // Um login admitido a partir daqui é logo fechado
+        // Os GETWHEN ainda pendentes deixam de ter a quem responder
+        for (CompletableFuture<byte[]> pending : pendingGetWhens) {
+            pending.cancel(false);
+        }
+        CompletableFuture<Session> login = pendingLogin;
+        if (login != null) login.cancel(false); // Sai da fila de admissão
+        if (tracker != null) {
+            invalidations.unregister(tracker);
+        }
+        if (subscriber != null) {
+            watches.unregister(subscriber);
+        }
+        replication.getSource().detach(connection);
+        try {
+            handleLogout(null, connection); // Garante logout ao desconectar
+        } catch (IOException ignored) {}
+    }
+
+    void handleMessage(Message message, Connection connection) throws IOException {
+        long start = System.nanoTime();
+        try {
+            dispatch(message, connection);
+        } finally {
+            // O GETWHEN é medido quando a resposta é enviada
+            if (message.getType() != Message.Type.GETWHEN) {
+                metrics.record(message.getType(), System.nanoTime() - start);
+            }
+        }
+    }
+
+    private void dispatch(Message message, Connection connection) throws IOException {
+        Session current = session;
+        String username = current != null ? current.getUsername() : null;
 
         switch (message.getType()) {
             case REGISTER:
-                handleRegister(message, commonIdent);
+                handleRegister(message, connection);
                 break;
             case LOGIN:
-                handleLogin(message, commonIdent);
+                handleLogin(message, connection);
                 break;
             case LOGOUT:
-                handleLogout(commonIdent);
+                handleLogout(message, connection);
                 break;
             case PUT:
-                handlePut(message, commonIdent, username);
+                handlePut(message, connection, username);
                 break;
             case GET:
-                handleGet(message, commonIdent, username);
+                handleGet(message, connection, username);
                 break;
             case MULTIPUT:
-                handleMultiPut(message, commonIdent, username);
+                handleMultiPut(message, connection, username);
                 break;
             case MULTIGET:
-                handleMultiGet(message, commonIdent, username);
+                handleMultiGet(message, connection, username);
                 break;
             case GETWHEN:
-                handleGetWhen(message, commonIdent, username);
+                handleGetWhen(message, connection, username);
+                break;
+            case STATS:
+                handleStats(message, connection, username);
+                break;
+            case TRACKING:
+                handleTracking(message, connection, username);
+                break;
+            case WATCH:
+                handleWatch(message, connection, username);
+                break;
+            case UNWATCH:
+                handleUnwatch(message, connection, username);
+                break;
+            case REPLICATE:
+                handleReplicate(message, connection, username);
+                break;
+            case PROMOTE:
+                handlePromote(message, connection, username);
+                break;
+            case CLUSTER:
+                handleCluster(message, connection, username);
+                break;
+            case MIGRATE:
+                handleMigrate(message, connection);
                 break;
             default:
                 logAction("INVALID MESSAGE TYPE", username, "FAILED", null);
-                commonIdent.sendMessage(new Message(Message.Type.RESPONSE, false, "Invalid message type"));
+                Message invalid = response(message);
+                invalid.setErrorMessage("Invalid message type");
+                connection.sendMessage(invalid);
         }
     }
 
-    private void handleRegister(Message message, CommonIdent commonIdent) throws IOException {
+    private void handleRegister(Message message, Connection connection) throws IOException {
         String[] credentials = message.getPayload().split(":");
         if (credentials.length != 2) {
-            sendResponse(commonIdent, false, "Invalid registration format");
+            sendResponse(connection, message, false, "Invalid registration format");
             logAction("REGISTER", "UNKNOWN", "FAILED", "Invalid registration format");
             return;
         }
 
+        if (replication.isReadOnly()) { // Os utilizadores vêm do primário
+            sendResponse(connection, message, false, "Read-only replica");
+            logAction("REGISTER", credentials[0], "FAILED", "Read-only replica");
+            return;
+        }
+
         String username = credentials[0];
         String password = credentials[1];
-        boolean userCreated = users.createUser(new User(username, password));
+        boolean userCreated;
+        try {
+            userCreated = users.createUser(new User(username, password));
+        } catch (UncheckedIOException e) {
+            sendResponse(connection, message, false, "Storage error");
+            logAction("REGISTER", username, "FAILED", "Storage error: ", e.getMessage());
+            return;
+        }
 
         if (userCreated) {
-            sendResponse(commonIdent, true, "Registration successful");
+            sendResponse(connection, message, true, "Registration successful");
             logAction("REGISTER", username, "SUCCESS", "User registered");
         } else {
-            sendResponse(commonIdent, false, "Username already exists");
+            sendResponse(connection, message, false, "Username already exists");
             logAction("REGISTER", username, "FAILED", "Username already exists");
         }
     }
 
-    private void handleLogin(Message message, CommonIdent commonIdent) throws IOException {
+    private void handleLogin(Message message, Connection connection) throws IOException {
         String[] credentials = message.getPayload().split(":");
         if (credentials.length != 2) {
-            sendResponse(commonIdent, false, "Invalid login format");
+            sendResponse(connection, message, false, "Invalid login format");
             logAction("LOGIN", "UNKNOWN", "FAILED", "Invalid login format");
             return;
         }
@@ -112,142 +220,248 @@ public class ClientHandler implements Runnable {
         String username = credentials[0];
         String password = credentials[1];
 
-        boolean authenticated = false;
-        try {
-            authenticated = users.authUser(username, password, commonIdent.getSocket());
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt(); // Restabelece o estado de interrupção da thread
-            sendResponse(commonIdent, false, "Login interrupted");
-            logAction("LOGIN", username, "FAILED", "Login interrupted");
+        if (session != null || pendingLogin != null) { // Uma sessão por ligação
+            sendResponse(connection, message, false, "Authentication failed");
+            logAction("LOGIN", username, "FAILED", "Connection already logged in");
             return;
         }
 
-        if (authenticated) {
-            sendResponse(commonIdent, true, "Login successful");
+        // Não bloqueia a thread: sem vaga o pedido fica na fila e a resposta segue quando for admitido
+        UserManager.LoginRequest request = users.authUser(username, password, message.getTimeout());
+        CompletableFuture<Session> result = request.getResult();
+        if (result.isDone()) { // Admitido ou recusado logo: a sessão fica ativa antes do pedido seguinte
+            Session admitted = null;
+            Throwable error = null;
+            try {
+                admitted = result.join();
+            } catch (CompletionException e) { // Fila cheia
+                error = e.getCause();
+            }
+            finishLogin(message, connection, username, admitted, error);
+            return;
+        }
+        pendingLogin = result;
+        Message queued = new Message(Message.Type.QUEUED, Integer.toString(request.getPosition()));
+        connection.sendMessage(queued); // Antes da resposta, que só é enviada depois de isto
+        logAction("LOGIN", username, "QUEUED", "Position: ", request.getPosition());
+        result.whenCompleteAsync((admitted, error) -> {
+            try {
+                finishLogin(message, connection, username, admitted, error);
+            } catch (IOException e) {
+                Log.warn("Failed to deliver LOGIN response: {}", e.getMessage());
+            } finally {
+                pendingLogin = null; // Só depois de a sessão estar ativa: entretanto um 2.º LOGIN é recusado
+            }
+        }, asyncExecutor);
+    }
+
+    private void finishLogin(Message message, Connection connection, String username, Session admitted,
+                             Throwable error) throws IOException {
+        if (admitted != null) {
+            session = admitted;
+            if (closed) { // A ligação fechou entretanto
+                users.logoutUser(admitted);
+                return;
+            }
+            sendResponse(connection, message, true, "Login successful");
             logAction("LOGIN", username, "SUCCESS", "User logged in");
-        } else {
-            sendResponse(commonIdent, false, "Authentication failed");
+        } else if (error == null) {
+            sendResponse(connection, message, false, "Authentication failed");
             logAction("LOGIN", username, "FAILED", "Invalid credentials or already logged in");
+        } else if (!(error instanceof CancellationException)) {
+            sendResponse(connection, message, false, error.getMessage());
+            logAction("LOGIN", username, "FAILED", error.getMessage());
         }
     }
 
-    private void handleLogout(CommonIdent commonIdent) throws IOException {
-        boolean loggedOut = users.logoutUser(commonIdent.getSocket());
-        String username = users.getUsernameBySocket(commonIdent.getSocket());
+    private void handleLogout(Message message, Connection connection) throws IOException {
+        Session current = session;
+        session = null;
+        boolean loggedOut = current != null && users.logoutUser(current);
+        String username = current != null ? current.getUsername() : null;
 
         if (loggedOut) {
-            sendResponse(commonIdent, true, "Logged out successfully");
+            sendResponse(connection, message, true, "Logged out successfully");
             logAction("LOGOUT", username, "SUCCESS", "User logged out");
         } else {
-            sendResponse(commonIdent, false, "User not logged in");
+            sendResponse(connection, message, false, "User not logged in");
             logAction("LOGOUT", username != null ? username : "UNKNOWN", "FAILED", "User not logged in");
         }
     }
 
-    private void handlePut(Message message, CommonIdent commonIdent, String username) throws IOException {
+    private void handlePut(Message message, Connection connection, String username) throws IOException {
         if (username == null) {
-            sendResponse(commonIdent, false, "User not logged in");
+            sendResponse(connection, message, false, "User not logged in");
             logAction("PUT", "UNKNOWN", "FAILED", "User not logged in");
             return;
         }
 
         if (!Message.isValidKey(message.getKey())) {
-            sendResponse(commonIdent, false, "Invalid key format");
+            sendResponse(connection, message, false, "Invalid key format");
             logAction("PUT", username, "FAILED", "Invalid key format");
             return;
         }
 
         if (!Message.isValidValue(message.getData())) {
-            sendResponse(commonIdent, false, "Invalid value format or size");
+            sendResponse(connection, message, false, "Invalid value format or size");
             logAction("PUT", username, "FAILED", "Invalid value format or size");
             return;
         }
 
-        mapAccess.put(message.getKey(), message.getData());
-        sendResponse(commonIdent, true, "Value stored successfully");
-        logAction("PUT", username, "SUCCESS", "Key stored: " + message.getKey());
+        if (replication.isReadOnly()) {
+            sendResponse(connection, message, false, "Read-only replica");
+            logAction("PUT", username, "FAILED", "Read-only replica");
+            return;
+        }
+
+        try {
+            if (!cluster.write(Collections.singleton(message.getKey()),
+                    () -> mapAccess.put(message.getKey(), message.getData()))) {
+                sendMoved(connection, message, "PUT", username);
+                return;
+            }
+        } catch (UncheckedIOException e) {
+            sendResponse(connection, message, false, "Storage error");
+            logAction("PUT", username, "FAILED", "Storage error: ", e.getMessage());
+            return;
+        }
+        sendResponse(connection, message, true, "Value stored successfully");
+        logAction("PUT", username, "SUCCESS", "Key stored: ", message.getKey());
     }
 
-    private void handleGet(Message message, CommonIdent commonIdent, String username) throws IOException {
+    private void handleGet(Message message, Connection connection, String username) throws IOException {
         if (username == null) {
-            sendResponse(commonIdent, false, "User not logged in");
+            sendResponse(connection, message, false, "User not logged in");
             logAction("GET", "UNKNOWN", "FAILED", "User not logged in");
             return;
         }
 
         if (!Message.isValidKey(message.getKey())) {
-            sendResponse(commonIdent, false, "Invalid key format");
+            sendResponse(connection, message, false, "Invalid key format");
             logAction("GET", username, "FAILED", "Invalid key format");
             return;
         }
 
+        if (!replication.canRead(message.getTimeout())) {
+            sendResponse(connection, message, false, "Replica too stale");
+            logAction("GET", username, "FAILED", "Replica too stale");
+            return;
+        }
+
+        if (!cluster.read(Collections.singleton(message.getKey()))) {
+            sendMoved(connection, message, "GET", username);
+            return;
+        }
+
+        track(message.getKey());
         byte[] value = mapAccess.get(message.getKey());
         if (value != null) {
-            Message response = new Message(Message.Type.RESPONSE);
+            Message response = response(message);
             response.setData(value);
             response.setSuccess(true);
-            commonIdent.sendMessage(response);
+            connection.sendMessage(response);
 
-            logAction("GET", username, "SUCCESS", "Key retrieved: " + message.getKey());
+            logAction("GET", username, "SUCCESS", "Key retrieved: ", message.getKey());
         } else {
-            sendResponse(commonIdent, false, "Key not found");
-            logAction("GET", username, "FAILED", "Key not found: " + message.getKey());
+            sendResponse(connection, message, false, "Key not found");
+            logAction("GET", username, "FAILED", "Key not found: ", message.getKey());
         }
     }
 
-    private void handleMultiPut(Message message, CommonIdent commonIdent, String username) throws IOException {
+    private void handleMultiPut(Message message, Connection connection, String username) throws IOException {
         if (username == null) {
-            sendResponse(commonIdent, false, "User not logged in");
+            sendResponse(connection, message, false, "User not logged in");
             logAction("MULTIPUT", "UNKNOWN", "FAILED", "User not logged in");
             return;
         }
 
-        if (message.getData() == null || message.getData().length == 0) {
-            sendResponse(commonIdent, false, "Invalid data for MultiPut");
+        Map<String, byte[]> pairs = message.getEntries();
+        if (pairs == null || pairs.isEmpty()) {
+            sendResponse(connection, message, false, "Invalid data for MultiPut");
             logAction("MULTIPUT", username, "FAILED", "Invalid data");
             return;
         }
 
-        String data = new String(message.getData());
-        Map<String, String> pairs = Arrays.stream(data.split(","))
-                .map(pair -> pair.split("="))
-                .collect(Collectors.toMap(a -> a[0].trim(), a -> a[1].trim()));
+        for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+            if (!Message.isValidKey(entry.getKey()) || !Message.isValidValue(entry.getValue())) {
+                sendResponse(connection, message, false, "Invalid key or value in MultiPut");
+                logAction("MULTIPUT", username, "FAILED", "Invalid key or value: ", entry.getKey());
+                return;
+            }
+        }
 
-        for (Map.Entry<String, String> entry : pairs.entrySet()) {
-            mapAccess.put(entry.getKey(), entry.getValue().getBytes());
+        if (replication.isReadOnly()) {
+            sendResponse(connection, message, false, "Read-only replica");
+            logAction("MULTIPUT", username, "FAILED", "Read-only replica");
+            return;
         }
 
-        String storedKeys = String.join(", ", pairs.keySet());
-        sendResponse(commonIdent, true, "MultiPut completed");
-        logAction("MULTIPUT", username, "SUCCESS", "Stored " + pairs.size() + " pairs (" + storedKeys + ")");
+        try {
+            if (!cluster.write(pairs.keySet(), () -> mapAccess.multiPut(pairs))) {
+                sendMoved(connection, message, "MULTIPUT", username);
+                return;
+            }
+        } catch (UncheckedIOException e) {
+            sendResponse(connection, message, false, "Storage error");
+            logAction("MULTIPUT", username, "FAILED", "Storage error: ", e.getMessage());
+            return;
+        }
+
+        sendResponse(connection, message, true, "MultiPut completed");
+        logAction("MULTIPUT", username, "SUCCESS", "Pairs stored: ", pairs.size());
     }
 
-    
-    private void handleMultiGet(Message message, CommonIdent commonIdent, String username) throws IOException {
-        String data = new String(message.getData());
-        Set<String> keys = new HashSet<>(Arrays.asList(data.split(",")));
-        
-         // Busca os valores para as chaves
-        Map<String, byte[]> values = mapAccess.multiGet(keys);
-    
-       
-        if (!keys.isEmpty()) {
-            String responsePayload = keys.stream()
-                    .map(key -> "(" + key + "," + (values.containsKey(key) && values.get(key) != null ? new String(values.get(key)) : "null") + ")")
-                    .collect(Collectors.joining(", "));
-    
-            sendResponse(commonIdent, true, responsePayload);
-            logAction("MULTIGET", username, "SUCCESS", "Retrieved " + values.size() + " values");
-        } else {
-            sendResponse(commonIdent, false, "No matching keys found");
+    private void handleMultiGet(Message message, Connection connection, String username) throws IOException {
+        if (username == null) {
+            sendResponse(connection, message, false, "User not logged in");
+            logAction("MULTIGET", "UNKNOWN", "FAILED", "User not logged in");
+            return;
+        }
+
+        Map<String, byte[]> requested = message.getEntries();
+        if (requested == null || requested.isEmpty()) {
+            sendResponse(connection, message, false, "No matching keys found");
             logAction("MULTIGET", username, "FAILED", "No matching keys");
+            return;
+        }
+
+        if (!replication.canRead(message.getTimeout())) {
+            sendResponse(connection, message, false, "Replica too stale");
+            logAction("MULTIGET", username, "FAILED", "Replica too stale");
+            return;
+        }
+
+        if (!cluster.read(requested.keySet())) {
+            sendMoved(connection, message, "MULTIGET", username);
+            return;
+        }
+
+        for (String key : requested.keySet()) {
+            track(key);
         }
+        // Busca os valores para as chaves
+        Map<String, byte[]> values = mapAccess.multiGet(requested.keySet());
+
+        // Responde com todas as chaves pedidas, pela mesma ordem; as que não existem vão a null
+        Map<String, byte[]> result = new LinkedHashMap<>(requested.size() * 2);
+        for (String key : requested.keySet()) {
+            result.put(key, values.get(key));
+        }
+
+        Message response = response(message);
+        response.setSuccess(true);
+        response.setEntries(result);
+        response.setPayload("Retrieved " + values.size() + " values");
+        connection.sendMessage(response);
+        logAction("MULTIGET", username, "SUCCESS", "Values retrieved: ", values.size());
     }
 
-    private void handleGetWhen(Message message, CommonIdent commonIdent, String username) throws IOException {
+    private void handleGetWhen(Message message, Connection connection, String username) throws IOException {
+        long received = System.nanoTime();
         if (username == null) {
-            sendResponse(commonIdent, false, "User not logged in");
+            sendResponse(connection, message, false, "User not logged in");
             logAction("GETWHEN", "UNKNOWN", "FAILED", "User not logged in");
+            metrics.record(Message.Type.GETWHEN, System.nanoTime() - received);
             return;
         }
 
@@ -256,46 +470,239 @@ public class ClientHandler implements Runnable {
         byte[] valueCond = message.getData();  // Usa o data para passar o valueCond
 
         if (!Message.isValidKey(key) || !Message.isValidKey(keyCond) || !Message.isValidValue(valueCond)) {
-            sendResponse(commonIdent, false, "Invalid key or value format");
+            sendResponse(connection, message, false, "Invalid key or value format");
             logAction("GETWHEN", username, "FAILED", "Invalid key or value format");
+            metrics.record(Message.Type.GETWHEN, System.nanoTime() - received);
             return;
         }
 
-        byte[] result;
-        try {
-            result = mapAccess.getWhen(key, keyCond, valueCond);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt(); // Marca a thread como interrompida
-            sendResponse(commonIdent, false, "Operation interrupted");
-            logAction("GETWHEN", username, "FAILED", "Operation interrupted");
+        if (!cluster.read(Arrays.asList(key, keyCond))) { // As duas chaves têm de estar neste nó
+            sendMoved(connection, message, "GETWHEN", username);
+            metrics.record(Message.Type.GETWHEN, System.nanoTime() - received);
             return;
         }
 
-        if (result != null) {
-            Message response = new Message(Message.Type.RESPONSE);
-            response.setSuccess(true);
-            response.setData(result);
-            commonIdent.sendMessage(response);
-            logAction("GETWHEN", username, "SUCCESS", "Key retrieved: " + key);
-            
+        // Não bloqueia a thread: a resposta é enviada quando um put satisfizer a condição
+        CompletableFuture<byte[]> pending = mapAccess.getWhenAsync(key, keyCond, valueCond, message.getTimeout());
+        pendingGetWhens.add(pending);
+        pending.whenCompleteAsync((result, error) -> {
+            pendingGetWhens.remove(pending);
+            try {
+                if (error == null) {
+                    Message response = response(message);
+                    response.setSuccess(true);
+                    response.setData(result != null ? result : "null".getBytes());
+                    connection.sendMessage(response);
+                    logAction("GETWHEN", username, "SUCCESS", "Key retrieved: ", key);
+                } else if (error instanceof TimeoutException) {
+                    sendResponse(connection, message, false, "GetWhen timed out");
+                    logAction("GETWHEN", username, "FAILED", "Timed out waiting for ", keyCond);
+                } else if (!(error instanceof CancellationException)) {
+                    sendResponse(connection, message, false, "Operation failed");
+                    logAction("GETWHEN", username, "FAILED", error.getMessage());
+                }
+            } catch (IOException e) {
+                Log.warn("Failed to deliver GETWHEN response: {}", e.getMessage());
+            }
+            if (!(error instanceof CancellationException)) {
+                metrics.record(Message.Type.GETWHEN, System.nanoTime() - received);
+            }
+        }, asyncExecutor);
+    }
+
+    private void handleStats(Message message, Connection connection, String username) throws IOException {
+        Message response = response(message);
+        response.setSuccess(true);
+        response.setPayload(metrics.render());
+        connection.sendMessage(response);
+        logAction("STATS", username, "SUCCESS", "Metrics sent");
+    }
+
+    // A partir daqui o cliente é avisado (INVALIDATE) quando mudar uma chave que tenha lido
+    private void handleTracking(Message message, Connection connection, String username) throws IOException {
+        if (username == null) {
+            sendResponse(connection, message, false, "User not logged in");
+            logAction("TRACKING", "UNKNOWN", "FAILED", "User not logged in");
+            return;
+        }
+        if (tracker == null) {
+            tracker = invalidations.register(connection, asyncExecutor);
+        }
+        sendResponse(connection, message, true, "Tracking enabled");
+        logAction("TRACKING", username, "SUCCESS", "Tracking enabled");
+    }
+
+    private void handleWatch(Message message, Connection connection, String username) throws IOException {
+        if (username == null) {
+            sendResponse(connection, message, false, "User not logged in");
+            logAction("WATCH", "UNKNOWN", "FAILED", "User not logged in");
+            return;
+        }
+
+        String[] parts = message.getPayload() != null ? message.getPayload().split(":", 2) : new String[0];
+        if (parts.length != 2 || parts[0].isEmpty() || !("key".equals(parts[1]) || "prefix".equals(parts[1]))
+                || !Message.isValidKey(message.getKey())) {
+            sendResponse(connection, message, false, "Invalid watch format");
+            logAction("WATCH", username, "FAILED", "Invalid watch format");
+            return;
+        }
+
+        if (subscriber == null) {
+            subscriber = watches.register(connection, asyncExecutor);
+        }
+        if (watches.watch(subscriber, parts[0], message.getKey(), "prefix".equals(parts[1]))) {
+            sendResponse(connection, message, true, "Watch registered");
+            logAction("WATCH", username, "SUCCESS", "Watching: ", message.getKey());
         } else {
-            Message response = new Message(Message.Type.RESPONSE);
-            response.setSuccess(true);
-            response.setData("null".getBytes());
-            commonIdent.sendMessage(response);
-            logAction("GETWHEN", username, "SUCCESS", "Key retrieved: " + key);           
+            sendResponse(connection, message, false, "Watch id already in use");
+            logAction("WATCH", username, "FAILED", "Watch id already in use: ", parts[0]);
+        }
+    }
+
+    private void handleUnwatch(Message message, Connection connection, String username) throws IOException {
+        if (username == null) {
+            sendResponse(connection, message, false, "User not logged in");
+            logAction("UNWATCH", "UNKNOWN", "FAILED", "User not logged in");
+            return;
+        }
+
+        if (subscriber != null && watches.unwatch(subscriber, message.getPayload())) {
+            sendResponse(connection, message, true, "Watch removed");
+            logAction("UNWATCH", username, "SUCCESS", "Watch removed: ", message.getPayload());
+        } else {
+            sendResponse(connection, message, false, "Unknown watch id");
+            logAction("UNWATCH", username, "FAILED", "Unknown watch id: ", message.getPayload());
         }
     }
 
-    private void sendResponse(CommonIdent commonIdent, boolean success, String message) throws IOException {
+    // Um backup pede para seguir este servidor (payload = segredo da replicação): a partir daqui a
+    // ligação só recebe a replicação
+    private void handleReplicate(Message message, Connection connection, String username) throws IOException {
+        if (username == null) username = "UNKNOWN";
+        if (!replication.checkSecret(message.getPayload())) {
+            String reason = replication.isEnabled() ? "Invalid replication secret" : "Replication disabled";
+            sendResponse(connection, message, false, reason);
+            logAction("REPLICATE", username, "FAILED", reason);
+            return;
+        }
+        sendResponse(connection, message, true, "Replication started");
+        replication.getSource().attach(connection);
+        logAction("REPLICATE", username, "SUCCESS", "Backup attached");
+    }
+
+    // payload = segredo da replicação
+    private void handlePromote(Message message, Connection connection, String username) throws IOException {
+        if (username == null) username = "UNKNOWN";
+        if (!replication.checkSecret(message.getPayload())) {
+            String reason = replication.isEnabled() ? "Invalid replication secret" : "Replication disabled";
+            sendResponse(connection, message, false, reason);
+            logAction("PROMOTE", username, "FAILED", reason);
+            return;
+        }
+        if (!replication.isReadOnly()) {
+            sendResponse(connection, message, false, "Not a replica");
+            logAction("PROMOTE", username, "FAILED", "Not a replica");
+            return;
+        }
+        replication.getReplica().promote();
+        sendResponse(connection, message, true, "Promoted to primary");
+        logAction("PROMOTE", username, "SUCCESS", "Promoted to primary");
+    }
+
+    // Sem payload devolve o anel do cluster; com "segredo\nanel[\nanel anterior]" instala um anel novo (ClusterAdmin)
+    private void handleCluster(Message message, Connection connection, String username) throws IOException {
+        String payload = message.getPayload();
+        if (payload == null || payload.isEmpty()) {
+            HashRing ring = cluster.getRing();
+            if (ring == null) {
+                sendResponse(connection, message, false, "Not in a cluster");
+            } else {
+                sendResponse(connection, message, true, ring + (cluster.isMigrating() ? " migrating" : ""));
+            }
+            logAction("CLUSTER", username, "SUCCESS", "Ring sent");
+            return;
+        }
+
+        String[] parts = payload.split("\n", 3);
+        if (parts.length < 2 || !cluster.checkSecret(parts[0])) {
+            String reason = cluster.isEnabled() ? "Invalid cluster secret" : "Cluster mode disabled";
+            sendResponse(connection, message, false, reason);
+            logAction("CLUSTER", username, "FAILED", reason);
+            return;
+        }
+        try {
+            if (cluster.install(HashRing.parse(parts[1]), parts.length == 3 ? HashRing.parse(parts[2]) : null)) {
+                sendResponse(connection, message, true, "Ring installed");
+                logAction("CLUSTER", username, "SUCCESS", "Ring installed: ", parts[1]);
+            } else {
+                sendResponse(connection, message, false, "Stale epoch");
+                logAction("CLUSTER", username, "FAILED", "Stale epoch: ", parts[1]);
+            }
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            sendResponse(connection, message, false, e.getMessage());
+            logAction("CLUSTER", username, "FAILED", e.getMessage());
+        }
+    }
+
+    // Pedido de outro nó do cluster durante uma migração (ver Cluster)
+    private void handleMigrate(Message message, Connection connection) throws IOException {
+        String[] parts = message.getPayload() != null ? message.getPayload().split("\n", 4) : new String[0];
+        if (parts.length != 4 || !cluster.checkSecret(parts[0])) {
+            String reason = cluster.isEnabled() ? "Invalid cluster secret" : "Cluster mode disabled";
+            sendResponse(connection, message, false, reason);
+            logAction("MIGRATE", "UNKNOWN", "FAILED", reason);
+            return;
+        }
+        Map<String, byte[]> entries;
+        try {
+            entries = cluster.handleMigrate(message.getKey(), parts, message.getEntries());
+        } catch (IllegalArgumentException | IllegalStateException | UncheckedIOException e) {
+            sendResponse(connection, message, false, e.getMessage());
+            logAction("MIGRATE", parts[2], "FAILED", e.getMessage());
+            return;
+        }
+        Message response = response(message);
+        response.setSuccess(true);
+        response.setEntries(entries);
+        connection.sendMessage(response);
+        logAction("MIGRATE", parts[2], "SUCCESS", message.getKey());
+    }
+
+    // A chave é de outro nó: a resposta leva o anel atual para o cliente voltar a encaminhar
+    private void sendMoved(Connection connection, Message request, String action, String username) throws IOException {
+        sendResponse(connection, request, false, "MOVED " + cluster.getRing());
+        logAction(action, username, "FAILED", "Key owned by another node");
+    }
+
+    // Regista a leitura antes de ler o valor: uma escrita concorrente gera sempre uma invalidação
+    private void track(String key) {
+        InvalidationRegistry.Tracker t = tracker;
+        if (t != null) t.track(key);
+    }
+
+    // Resposta a um pedido, com o mesmo requestId para o cliente a poder associar
+    private Message response(Message request) {
         Message response = new Message(Message.Type.RESPONSE);
+        if (request != null) {
+            response.setRequestId(request.getRequestId());
+        }
+        return response;
+    }
+
+    private void sendResponse(Connection connection, Message request, boolean success, String message) throws IOException {
+        Message response = response(request);
         response.setSuccess(success);
         response.setPayload(message);
-        commonIdent.sendMessage(response);
+        connection.sendMessage(response);
     }
 
+    // Registo de auditoria assíncrono: nada é formatado nesta thread ('details' e 'arg' são juntos pelo writer)
     private void logAction(String action, String username, String status, String details) {
-        System.out.printf("SOCKET [%s] - USER [%s] - ACTION [%s - %s] - DETAILS [%s]%n",
-                clientSocket.getRemoteSocketAddress(), username, action, status, details);
+        logAction(action, username, status, details, "");
+    }
+
+    private void logAction(String action, String username, String status, String details, Object arg) {
+        Log.log(Log.Level.INFO, "SOCKET [{}] - USER [{}] - ACTION [{} - {}] - DETAILS [{}{}]",
+                remoteAddress, username, action, status, details, arg);
     }
 }
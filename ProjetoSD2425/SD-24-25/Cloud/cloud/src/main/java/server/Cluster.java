@@ -0,0 +1,466 @@
+package server;
+
+import common.CommonIdent;
+import common.Demux;
+import common.HashRing;
+import common.Log;
+import common.Threads;
+import manager.MapAccess;
+import manager.Message;
+import manager.User;
+import manager.UserManager;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+// Modo cluster: as chaves são repartidas pelos nós com um HashRing e cada nó só aceita pedidos
+// das chaves que são suas; às outras responde "MOVED <anel>" e o cliente (ClusterClient) volta a
+// encaminhar. Sem anel instalado o nó é independente e todas as chaves são suas.
+//
+// Mudar o anel (CLUSTER com o anel novo, enviado a todos os nós pelo ClusterAdmin) não para o
+// serviço. Cada nó instala o anel (as mensagens entre nós levam o anel e instalam-no se for mais
+// recente) e, numa thread própria, envia aos novos donos as chaves que deixou de ter (MIGRATE push)
+// e apaga-as; no fim, com todas entregues, avisa todos os nós (MIGRATE done). Um nó que recebeu
+// chaves novas e ainda não tem o "done" de todos os nós do anel anterior está a importar: antes de
+// servir uma dessas chaves vai buscá-la ao dono anterior (MIGRATE pull), a não ser que já a tenha
+// recebido ou escrito.
+// Assim só mudam de nó as chaves das posições afetadas e nenhuma escrita se perde: o dono anterior
+// já não aceita escritas dessas chaves, e o que chega depois de uma escrita no dono novo é ignorado.
+//
+// As mensagens entre nós não precisam de login mas levam o segredo do cluster (-Dcloud.cluster.secret);
+// sem segredo o modo cluster fica desligado e CLUSTER (instalar anel) e MIGRATE são recusados.
+// MIGRATE: key = operação, payload = "segredo\nanel\nremetente\nanel anterior" ("-" se não houver),
+// entries com chaves/valores. O anel anterior permite a um nó acabado de arrancar saber de onde importar.
+public class Cluster {
+    private static final int STRIPES = 64;
+    private static final int PUSH_BATCH = 256;
+    private static final long PEER_TIMEOUT_MILLIS = 10000;
+    private static final long MIN_RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 5000;
+
+    // Ligação a outro nó, aberta quando é precisa
+    private final class Peer {
+        final String node;
+        private Demux demux;
+
+        Peer(String node) {
+            this.node = node;
+        }
+
+        private synchronized Demux connect() throws IOException {
+            if (demux == null || !demux.isConnected()) {
+                int colon = node.lastIndexOf(':');
+                demux = new Demux(new CommonIdent(new Socket(node.substring(0, colon),
+                        Integer.parseInt(node.substring(colon + 1)))));
+                demux.start();
+            }
+            return demux;
+        }
+
+        Message call(String op, HashRing ring, Map<String, byte[]> entries) throws IOException {
+            Message message = new Message(Message.Type.MIGRATE);
+            message.setKey(op);
+            message.setPayload(secret + "\n" + ring + "\n" + self + "\n" + (prior != null ? prior : "-"));
+            message.setEntries(entries);
+            Demux demux = connect();
+            try {
+                Message response = demux.sendAsync(message).get(PEER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (!response.isSuccess()) throw new IOException(node + ": " + response.getPayload());
+                return response;
+            } catch (ExecutionException e) {
+                throw new IOException(node + ": " + e.getCause().getMessage(), e.getCause());
+            } catch (TimeoutException e) {
+                demux.cancel(message.getRequestId()); // Uma resposta tardia é descartada
+                throw new IOException(node + ": no answer to " + op);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+
+    private final String self; // "host:porta" deste nó, como aparece no anel
+    private final String secret;
+    private final byte[] secretBytes;
+    private final MapAccess mapAccess;
+    private final UserManager users;
+    // Lido por quem verifica o dono e escreve; escrito ao instalar um anel
+    private final ReentrantReadWriteLock ringLock = new ReentrantReadWriteLock();
+    private volatile HashRing ring;     // null: nó independente
+    private volatile HashRing prior;    // O anel antes do atual
+    private volatile HashRing previous; // Anel anterior, enquanto houver chaves a importar
+    private final Set<String> pendingSources = new HashSet<>(); // Nós que ainda não enviaram "done" (ringLock)
+    private final Set<String> settled = ConcurrentHashMap.newKeySet(); // Chaves a importar já resolvidas
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private volatile boolean pushing = false;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final LongAdder moved = new LongAdder();
+    private final LongAdder pushed = new LongAdder();
+    private final LongAdder pulled = new LongAdder();
+
+    public Cluster(String self, String secret, MapAccess mapAccess, UserManager users) {
+        this.self = self;
+        this.secret = secret;
+        this.secretBytes = secret.getBytes(StandardCharsets.UTF_8);
+        this.mapAccess = mapAccess;
+        this.users = users;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public HashRing getRing() {
+        return ring;
+    }
+
+    public HashRing getPrior() {
+        return prior;
+    }
+
+    public int getImportSources() {
+        ringLock.readLock().lock();
+        try {
+            return pendingSources.size();
+        } finally {
+            ringLock.readLock().unlock();
+        }
+    }
+
+    public boolean isMigrating() {
+        return previous != null || pushing;
+    }
+
+    public boolean isEnabled() {
+        return secretBytes.length > 0;
+    }
+
+    // Comparação em tempo constante, para o tempo da resposta não revelar o segredo
+    public boolean checkSecret(String given) {
+        return isEnabled() && given != null && MessageDigest.isEqual(secretBytes, given.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private boolean owns(String key) {
+        HashRing r = ring;
+        return r == null || r.ownerOf(key).equals(self);
+    }
+
+    // Leitura: falso (responder MOVED) se alguma chave não é deste nó. As chaves ainda por importar
+    // são trazidas do dono anterior antes de serem lidas.
+    public boolean read(Collection<String> keys) {
+        ringLock.readLock().lock();
+        try {
+            for (String key : keys) {
+                if (!owns(key)) {
+                    moved.increment();
+                    return false;
+                }
+            }
+        } finally {
+            ringLock.readLock().unlock();
+        }
+        HashRing from = previous;
+        if (from == null) return true;
+        try {
+            importKeys(from, keys);
+            return true;
+        } catch (IOException e) {
+            Log.warn("Could not fetch keys from their previous owner: {}", e.getMessage());
+            moved.increment();
+            return false; // O cliente volta a tentar
+        }
+    }
+
+    // Escrita: falso (responder MOVED) se alguma chave não é deste nó; senão corre 'write' sem que o
+    // anel mude e marca as chaves como resolvidas (o que chegar do dono anterior já não conta)
+    public boolean write(Collection<String> keys, Runnable write) {
+        ringLock.readLock().lock();
+        try {
+            for (String key : keys) {
+                if (!owns(key)) {
+                    moved.increment();
+                    return false;
+                }
+            }
+            if (previous == null) {
+                write.run();
+                return true;
+            }
+            int[] locked = lockStripes(keys);
+            try {
+                write.run();
+                settled.addAll(keys); // Só depois de escrito: quem lê uma chave resolvida lê o mapa local
+            } finally {
+                unlockStripes(locked);
+            }
+            return true;
+        } finally {
+            ringLock.readLock().unlock();
+        }
+    }
+
+    // Traz do dono anterior as chaves ainda não resolvidas, num pedido por nó
+    private void importKeys(HashRing from, Collection<String> keys) throws IOException {
+        Map<String, List<String>> bySource = new HashMap<>();
+        for (String key : keys) {
+            String source = from.ownerOf(key);
+            if (!source.equals(self) && !settled.contains(key)) {
+                bySource.computeIfAbsent(source, s -> new ArrayList<>()).add(key);
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : bySource.entrySet()) {
+            int[] locked = lockStripes(entry.getValue());
+            try {
+                Map<String, byte[]> request = new LinkedHashMap<>();
+                for (String key : entry.getValue()) {
+                    if (!settled.contains(key)) request.put(key, null);
+                }
+                if (request.isEmpty()) continue;
+                Map<String, byte[]> values = peer(entry.getKey()).call("pull", ring, request).getEntries();
+                Map<String, byte[]> found = new HashMap<>();
+                if (values != null) {
+                    values.forEach((k, v) -> {
+                        if (v != null) found.put(k, v);
+                    });
+                }
+                if (!found.isEmpty()) mapAccess.multiPut(found);
+                settled.addAll(request.keySet());
+                pulled.add(found.size());
+            } finally {
+                unlockStripes(locked);
+            }
+        }
+    }
+
+    // Locks das chaves, por ordem (como os segmentos do MapAccess)
+    private int[] lockStripes(Collection<String> keys) {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        for (String key : keys) {
+            indexes.add((key.hashCode() & 0x7fffffff) % STRIPES);
+        }
+        int[] locked = new int[indexes.size()];
+        int i = 0;
+        for (int index : indexes) {
+            stripes[index].lock();
+            locked[i++] = index;
+        }
+        return locked;
+    }
+
+    private void unlockStripes(int[] locked) {
+        for (int i = locked.length - 1; i >= 0; i--) {
+            stripes[locked[i]].unlock();
+        }
+    }
+
+    private Peer peer(String node) {
+        return peers.computeIfAbsent(node, Peer::new);
+    }
+
+    // Instala um anel mais recente do que o atual (falso se não for) e começa a migração.
+    // 'before' é o anel anterior segundo quem o enviou, usado se este nó ainda não tinha nenhum.
+    public boolean install(HashRing next, HashRing before) {
+        HashRing current;
+        ringLock.writeLock().lock();
+        try {
+            if (ring != null && next.getEpoch() <= ring.getEpoch()) return false;
+            if (ring != null && isMigrating()) {
+                throw new IllegalStateException("Migration in progress");
+            }
+            current = ring != null ? ring : before;
+            prior = current;
+            ring = next;
+            settled.clear();
+            pendingSources.clear();
+            if (current != null && next.getNodes().contains(self)) {
+                for (String node : current.getNodes()) {
+                    if (!node.equals(self)) pendingSources.add(node);
+                }
+            }
+            previous = pendingSources.isEmpty() ? null : current;
+            pushing = true;
+        } finally {
+            ringLock.writeLock().unlock();
+        }
+        Log.info("Installed cluster ring {} (was {})", next, current);
+        boolean joined = current == null || !current.getNodes().contains(self);
+        Threads.newThread("cluster-migration-", () -> migrate(next, joined)).start();
+        return true;
+    }
+
+    // Envia aos novos donos as chaves que deixaram de ser deste nó e avisa todos os nós no fim
+    // O "done" só segue quando todas as chaves tiverem saído: recebido o "done", o novo dono deixa de
+    // as ir buscar aqui, e este nó já responde MOVED para elas. Os envios que falham são repetidos,
+    // com espera crescente, até passarem (a migração continua em curso entretanto).
+    private void migrate(HashRing next, boolean joined) {
+        try {
+            if (joined) copyUsers(next);
+            Set<String> failed = pushAll(next);
+            long backoff = MIN_RETRY_MILLIS;
+            while (!failed.isEmpty()) {
+                Log.warn("Some keys could not be moved to {}; retrying in {} ms", failed, backoff);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Log.warn("Migration to ring epoch {} interrupted; keys still here are served through pulls",
+                            next.getEpoch());
+                    return;
+                }
+                backoff = Math.min(MAX_RETRY_MILLIS, backoff * 2);
+                failed = pushAll(next); // Só restam as chaves dos envios que falharam
+            }
+            for (String node : next.getNodes()) {
+                if (node.equals(self)) continue;
+                try {
+                    peer(node).call("done", next, null);
+                } catch (IOException e) {
+                    Log.warn("Could not notify {} of the end of migration: {}", node, e.getMessage());
+                }
+            }
+        } finally {
+            pushing = false;
+        }
+        Log.info("Migration to ring epoch {} sent: {} keys moved so far", next.getEpoch(), pushed.sum());
+    }
+
+    // Envia aos novos donos todas as chaves que já não são deste nó; devolve os donos a quem algum
+    // lote falhou (essas chaves continuam aqui)
+    private Set<String> pushAll(HashRing next) {
+        Map<String, Map<String, byte[]>> batches = new HashMap<>();
+        Set<String> failed = new HashSet<>();
+        mapAccess.forEachEntry((key, value) -> {
+            String owner = next.ownerOf(key);
+            if (owner.equals(self)) return;
+            Map<String, byte[]> batch = batches.computeIfAbsent(owner, o -> new LinkedHashMap<>());
+            batch.put(key, value);
+            if (batch.size() >= PUSH_BATCH && !push(next, owner, batch)) failed.add(owner);
+        });
+        for (Map.Entry<String, Map<String, byte[]>> entry : batches.entrySet()) {
+            if (!entry.getValue().isEmpty() && !push(next, entry.getKey(), entry.getValue())) {
+                failed.add(entry.getKey());
+            }
+        }
+        return failed;
+    }
+
+    // Envia um lote ao novo dono e, confirmado, apaga as chaves daqui; esvazia o lote
+    private boolean push(HashRing next, String owner, Map<String, byte[]> batch) {
+        try {
+            peer(owner).call("push", next, batch);
+            for (String key : batch.keySet()) {
+                mapAccess.remove(key);
+            }
+            pushed.add(batch.size());
+            return true;
+        } catch (IOException e) {
+            Log.warn("Could not move keys to {}: {}", owner, e.getMessage());
+            return false;
+        } finally {
+            batch.clear();
+        }
+    }
+
+    // Um nó novo recebe os utilizadores de um dos outros
+    private void copyUsers(HashRing next) {
+        for (String node : next.getNodes()) {
+            if (node.equals(self)) continue;
+            try {
+                Map<String, byte[]> list = peer(node).call("users", next, null).getEntries();
+                if (list != null) {
+                    list.forEach((user, credential) ->
+                            users.createUser(User.withCredential(user, new String(credential, StandardCharsets.UTF_8))));
+                }
+                return;
+            } catch (IOException e) {
+                Log.warn("Could not copy users from {}: {}", node, e.getMessage());
+            }
+        }
+    }
+
+    // Pedido MIGRATE de outro nó; devolve as entries da resposta
+    public Map<String, byte[]> handleMigrate(String op, String[] payload, Map<String, byte[]> entries) {
+        HashRing theirs = HashRing.parse(payload[1]);
+        String sender = payload[2];
+        HashRing current = ring;
+        if (current == null || theirs.getEpoch() > current.getEpoch()) {
+            install(theirs, "-".equals(payload[3]) ? null : HashRing.parse(payload[3]));
+        }
+        switch (op) {
+            case "pull": // Valores atuais; as chaves só são apagadas daqui quando o push for confirmado
+                return entries == null ? null : mapAccess.multiGet(entries.keySet());
+            case "push":
+                if (entries != null) acceptPushed(entries);
+                return null;
+            case "done":
+                ringLock.writeLock().lock();
+                try {
+                    if (theirs.getEpoch() == ring.getEpoch() && pendingSources.remove(sender)
+                            && pendingSources.isEmpty()) {
+                        previous = null;
+                        settled.clear();
+                        Log.info("Import finished for ring epoch {}", ring.getEpoch());
+                    }
+                } finally {
+                    ringLock.writeLock().unlock();
+                }
+                return null;
+            case "users":
+                BiConsumer<String, String> none = (u, p) -> {};
+                Map<String, byte[]> list = new HashMap<>();
+                users.subscribe(none).forEach((u, p) -> list.put(u, p.getBytes(StandardCharsets.UTF_8)));
+                users.unsubscribe(none);
+                return list;
+            default:
+                throw new IllegalArgumentException("Unknown cluster operation: " + op);
+        }
+    }
+
+    // Chaves enviadas pelo dono anterior: só ficam as que ainda não foram lidas nem escritas aqui
+    private void acceptPushed(Map<String, byte[]> entries) {
+        int[] locked = lockStripes(entries.keySet());
+        try {
+            Map<String, byte[]> fresh = new HashMap<>();
+            boolean importing = previous != null;
+            Set<String> existing = importing ? null : mapAccess.multiGet(entries.keySet()).keySet();
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                String key = entry.getKey();
+                boolean keep = importing ? !settled.contains(key) : !existing.contains(key);
+                if (keep) fresh.put(key, entry.getValue());
+            }
+            if (!fresh.isEmpty()) mapAccess.multiPut(fresh);
+            if (importing) settled.addAll(fresh.keySet());
+        } finally {
+            unlockStripes(locked);
+        }
+    }
+
+    public long getMoved() {
+        return moved.sum();
+    }
+
+    public long getPushed() {
+        return pushed.sum();
+    }
+
+    public long getPulled() {
+        return pulled.sum();
+    }
+}
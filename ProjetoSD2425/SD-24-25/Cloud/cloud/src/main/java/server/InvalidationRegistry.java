@@ -0,0 +1,164 @@
+package server;
+
+import common.Connection;
+import common.Log;
+import manager.MapAccess;
+import manager.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+// Invalidações das caches dos clientes (TRACKING). Cada ligação com TRACKING tem um Tracker com as
+// chaves que leu desde a última invalidação. Quando uma dessas chaves muda, o servidor envia-lhe
+// uma mensagem INVALIDATE e esquece a chave (o cliente volta a registá-la ao lê-la de novo).
+//
+// A chave é registada antes de ser lida: uma escrita concorrente ou é vista pela leitura ou gera
+// uma invalidação. As invalidações são acumuladas por ligação e enviadas pelo executor da ligação,
+// nunca por quem escreve (uma escrita nunca espera por um cliente lento).
+// Uma ligação com mais de maxKeys chaves registadas recebe uma invalidação de tudo e recomeça.
+public class InvalidationRegistry implements MapAccess.ChangeListener {
+
+    public final class Tracker {
+        private final Connection connection;
+        private final Executor executor;
+        private final Set<String> keys = ConcurrentHashMap.newKeySet();
+        private Set<String> pending = new LinkedHashSet<>(); // Protegido por this
+        private boolean clearAll = false;
+        private boolean scheduled = false;
+        private volatile boolean closed = false;
+
+        private Tracker(Connection connection, Executor executor) {
+            this.connection = connection;
+            this.executor = executor;
+        }
+
+        // Deve ser chamado antes de ler o valor da chave
+        public void track(String key) {
+            if (keys.contains(key)) return;
+            readers.compute(key, (k, trackers) -> {
+                if (trackers == null) trackers = ConcurrentHashMap.newKeySet();
+                trackers.add(this);
+                keys.add(k);
+                return trackers;
+            });
+            if (keys.size() > maxKeys) {
+                untrackAll(this);
+                invalidate(null);
+            }
+        }
+
+        // key == null invalida tudo
+        private void invalidate(String key) {
+            if (closed) return;
+            synchronized (this) {
+                if (key == null) {
+                    clearAll = true;
+                    pending.clear();
+                } else if (!clearAll) {
+                    pending.add(key);
+                }
+                if (scheduled) return;
+                scheduled = true;
+            }
+            executor.execute(this::flush);
+        }
+
+        // Envia numa só mensagem tudo o que foi invalidado até agora
+        private void flush() {
+            Set<String> batch;
+            boolean all;
+            synchronized (this) {
+                batch = pending;
+                all = clearAll;
+                pending = new LinkedHashSet<>();
+                clearAll = false;
+                scheduled = false;
+            }
+            if (closed) return;
+            Message message = new Message(Message.Type.INVALIDATE);
+            message.setKeys(all ? new ArrayList<>() : batch);
+            try {
+                connection.sendMessage(message);
+                sent.add(all ? 1 : batch.size());
+            } catch (IOException e) {
+                Log.debug("Could not send invalidation: {}", e.getMessage());
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, Set<Tracker>> readers = new ConcurrentHashMap<>();
+    private final Set<Tracker> trackers = ConcurrentHashMap.newKeySet();
+    private final int maxKeys;
+    private final LongAdder sent = new LongAdder();
+
+    public InvalidationRegistry(MapAccess mapAccess, int maxKeys) {
+        this.maxKeys = maxKeys;
+        mapAccess.addChangeListener(this);
+    }
+
+    public Tracker register(Connection connection, Executor executor) {
+        Tracker tracker = new Tracker(connection, executor);
+        trackers.add(tracker);
+        return tracker;
+    }
+
+    // A ligação terminou
+    public void unregister(Tracker tracker) {
+        tracker.closed = true;
+        trackers.remove(tracker);
+        untrackAll(tracker);
+    }
+
+    private void untrackAll(Tracker tracker) {
+        for (String key : tracker.keys) {
+            readers.computeIfPresent(key, (k, set) -> {
+                set.remove(tracker);
+                tracker.keys.remove(k);
+                return set.isEmpty() ? null : set;
+            });
+        }
+    }
+
+    @Override
+    public void changed(String key, byte[] value, long version) {
+        if (trackers.isEmpty()) return;
+        List<Tracker> toNotify = new ArrayList<>();
+        readers.computeIfPresent(key, (k, set) -> {
+            for (Tracker tracker : set) {
+                tracker.keys.remove(k);
+                toNotify.add(tracker);
+            }
+            return null;
+        });
+        for (Tracker tracker : toNotify) {
+            tracker.invalidate(key);
+        }
+    }
+
+    @Override
+    public void cleared() {
+        for (Tracker tracker : trackers) {
+            untrackAll(tracker);
+            tracker.invalidate(null);
+        }
+    }
+
+    public int getTrackingConnections() {
+        return trackers.size();
+    }
+
+    public int getTrackedKeys() {
+        return readers.size();
+    }
+
+    // Chaves invalidadas enviadas (uma invalidação de tudo conta como uma)
+    public long getInvalidationsSent() {
+        return sent.sum();
+    }
+}
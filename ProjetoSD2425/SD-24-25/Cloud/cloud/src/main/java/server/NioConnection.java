@@ -0,0 +1,336 @@
+package server;
+
+import common.BufferPool;
+import common.CommonIdent;
+import common.Connection;
+import common.Log;
+import common.MessageCodec;
+import common.WriteCoalescing;
+import manager.Message;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Ligação de um cliente no servidor NIO.
+// A leitura e a descodificação são feitas pelo ciclo de I/O; os pedidos de cada ligação são
+// tratados por ordem, um de cada vez, num worker. As respostas podem ser enviadas de qualquer thread.
+// Os buffers de leitura e de escrita são diretos e vêm do BufferPool (ver MessageCodec).
+// As respostas aos pedidos de um lote do worker seguem juntas numa só escrita (ver WriteCoalescing).
+class NioConnection implements Connection {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    // Pedidos por tratar a partir dos quais se deixa de ler da ligação
+    private static final int MAX_PENDING_REQUESTS = 1024;
+    // Bytes por escrever a partir dos quais se deixa de tratar pedidos da ligação (e, com a fila de
+    // pedidos cheia, de ler dela) até o cliente ler metade
+    private static final long MAX_QUEUED_BYTES = 16 * 1024 * 1024;
+    // Pedidos tratados de seguida antes de dar a vez a outras ligações
+    private static final int DRAIN_BATCH = 64;
+    // Marca o fim da ligação na fila de pedidos
+    private static final Message CLOSED = new Message(Message.Type.LOGOUT);
+
+    private final SocketChannel channel;
+    private final NioServer.IoLoop loop;
+    private final ClientHandler handler;
+    private final Executor workers;
+    private final WriteCoalescing coalescing;
+    private volatile SelectionKey key; // Interesses só alterados pelo ciclo de I/O
+
+    private final MessageCodec codec = new MessageCodec(BufferPool.DIRECT);
+    // Só usado pelo ciclo de I/O; não volta ao pool quando a ligação fecha
+    private ByteBuffer readBuffer = codec.getPool().acquire(INITIAL_BUFFER_SIZE);
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ArrayDeque<MessageCodec.Frame> writeQueue = new ArrayDeque<>();
+    // Protegidos pelo writeLock
+    private boolean writeBlocked = false; // Socket cheio: o resto da fila é escrito por onWritable
+    private boolean batching = false;
+    private int unflushed = 0; // Mensagens na fila ainda por escrever
+    private long unflushedBytes = 0;
+    private long firstUnflushedNanos;
+    private boolean timerScheduled = false;
+    private long queuedBytes = 0; // Bytes na writeQueue
+    private volatile boolean writesBackedUp = false;
+
+    private final ConcurrentLinkedQueue<Message> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile boolean readsSuspended = false;
+
+    NioConnection(SocketChannel channel, NioServer.IoLoop loop, ClientHandler handler, Executor workers,
+                  WriteCoalescing coalescing) {
+        this.channel = channel;
+        this.loop = loop;
+        this.handler = handler;
+        this.workers = workers;
+        this.coalescing = coalescing;
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    // Ciclo de I/O: lê o que houver e entrega as mensagens completas. Devolve false no fim da ligação.
+    boolean onReadable() throws IOException {
+        if (channel.read(readBuffer) < 0) return false;
+
+        readBuffer.flip();
+        int length;
+        while ((length = CommonIdent.frameLength(readBuffer)) >= 0) {
+            int end = readBuffer.position() + length;
+            dispatch(codec.decode(readBuffer));
+            if (readBuffer.position() != end) throw new IOException("Malformed message");
+        }
+        readBuffer.compact();
+
+        if (!readBuffer.hasRemaining()) {
+            // Uma mensagem maior do que o buffer: troca-o por um maior até ao limite
+            if (readBuffer.capacity() >= MessageCodec.MAX_FRAME_SIZE) {
+                throw new IOException("Message too large");
+            }
+            ByteBuffer bigger = codec.getPool().acquire(Math.min(readBuffer.capacity() * 2, MessageCodec.MAX_FRAME_SIZE));
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            codec.getPool().release(readBuffer);
+            readBuffer = bigger;
+        } else if (readBuffer.position() == 0 && readBuffer.capacity() > INITIAL_BUFFER_SIZE) {
+            // Já não há nada por ler: o buffer grande volta ao pool
+            codec.getPool().release(readBuffer);
+            readBuffer = codec.getPool().acquire(INITIAL_BUFFER_SIZE);
+        }
+        return true;
+    }
+
+    // Ciclo de I/O: escreve o que ficou pendente
+    void onWritable() throws IOException {
+        writeLock.lock();
+        try {
+            boolean done = writeQueued();
+            resumeIfDrained();
+            if (!done) return; // O socket voltou a encher
+            writeBlocked = false;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            coalescing.flushed(unflushed);
+            unflushed = 0;
+            unflushedBytes = 0;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Escreve as mensagens da fila numa só escrita (gathering). Devolve false se ficou alguma por
+    // escrever. Deve ser chamado com o writeLock.
+    private boolean writeQueued() throws IOException {
+        while (!writeQueue.isEmpty()) {
+            ByteBuffer[] segments;
+            if (writeQueue.size() == 1) {
+                segments = writeQueue.peek().segments();
+            } else {
+                int count = 0;
+                for (MessageCodec.Frame frame : writeQueue) count += frame.segments().length;
+                segments = new ByteBuffer[count];
+                count = 0;
+                for (MessageCodec.Frame frame : writeQueue) {
+                    for (ByteBuffer segment : frame.segments()) segments[count++] = segment;
+                }
+            }
+            long written = channel.write(segments);
+            queuedBytes -= written;
+            while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining()) {
+                writeQueue.poll().release();
+            }
+            if (written == 0 && !writeQueue.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    // Escreve já a fila; o que não couber no socket fica para quando tiver espaço.
+    // Deve ser chamado com o writeLock.
+    private void flushLocked() throws IOException {
+        boolean done = writeQueued();
+        resumeIfDrained();
+        if (done) {
+            coalescing.flushed(unflushed);
+            unflushed = 0;
+            unflushedBytes = 0;
+            return;
+        }
+        writeBlocked = true;
+        loop.execute(() -> {
+            if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        });
+    }
+
+    // O cliente já leu o suficiente: volta a tratar os pedidos. Deve ser chamado com o writeLock.
+    private void resumeIfDrained() {
+        if (writesBackedUp && queuedBytes < MAX_QUEUED_BYTES / 2) {
+            writesBackedUp = false;
+            schedule();
+        }
+    }
+
+    // As respostas enviadas a partir daqui ficam na fila até endBatch, à fila ter BUFFER_BYTES ou
+    // ao atraso máximo do WriteCoalescing
+    private void startBatch() {
+        if (!coalescing.isEnabled()) return;
+        writeLock.lock();
+        try {
+            batching = true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void endBatch() throws IOException {
+        writeLock.lock();
+        try {
+            batching = false;
+            if (unflushed > 0 && !writeBlocked) flushLocked();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Timer do WriteCoalescing: escreve o que ficou na fila durante um lote demorado
+    private void flushExpired() {
+        writeLock.lock();
+        try {
+            timerScheduled = false;
+            if (unflushed > 0 && !writeBlocked && !closed.get()) flushLocked();
+        } catch (IOException e) {
+            close();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void dispatch(Message message) {
+        inbound.add(message);
+        if (pending.incrementAndGet() >= MAX_PENDING_REQUESTS && !readsSuspended) {
+            // O cliente envia mais depressa do que conseguimos tratar: pára de ler até a fila baixar
+            readsSuspended = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            workers.execute(this::drain);
+        }
+    }
+
+    // Worker: trata os pedidos da ligação por ordem
+    private void drain() {
+        for (int i = 0; i < DRAIN_BATCH; i++) {
+            if (writesBackedUp) break; // O cliente não lê as respostas: espera por onWritable
+            Message message = inbound.poll();
+            if (message == null) break;
+            if (message == CLOSED) {
+                handler.disconnected(this);
+                continue;
+            }
+            pending.decrementAndGet();
+            try {
+                // Com mais pedidos na fila, a resposta espera pelas dos seguintes
+                if (!inbound.isEmpty()) startBatch();
+                handler.handleMessage(message, this);
+            } catch (Exception e) {
+                Log.warn("Client handler error: {}", e.getMessage());
+                close();
+            }
+        }
+        try {
+            endBatch();
+        } catch (IOException e) {
+            Log.warn("Client handler error: {}", e.getMessage());
+            close();
+        }
+
+        if (readsSuspended && pending.get() < MAX_PENDING_REQUESTS / 2) {
+            readsSuspended = false;
+            loop.execute(() -> {
+                if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            });
+        }
+
+        scheduled.set(false);
+        if (!inbound.isEmpty() && !writesBackedUp) schedule();
+    }
+
+    @Override
+    public void sendMessage(Message message) throws IOException {
+        if (closed.get()) throw new IOException("Connection closed");
+
+        MessageCodec.Frame frame = codec.encode(message);
+
+        writeLock.lock();
+        try {
+            writeQueue.add(frame);
+            queuedBytes += frame.remaining();
+            if (queuedBytes >= MAX_QUEUED_BYTES) writesBackedUp = true;
+            if (unflushed++ == 0) firstUnflushedNanos = System.nanoTime();
+            unflushedBytes += frame.remaining();
+            if (writeBlocked) return; // Escrita por onWritable quando o socket tiver espaço
+            if (!batching || unflushedBytes >= WriteCoalescing.BUFFER_BYTES
+                    || System.nanoTime() - firstUnflushedNanos >= coalescing.getMaxDelayNanos()) {
+                flushLocked();
+            } else if (!timerScheduled) {
+                timerScheduled = true;
+                coalescing.schedule(this::flushExpired);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isBackedUp() {
+        writeLock.lock();
+        try {
+            return writeBlocked;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Socket getSocket() {
+        return channel.socket();
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Error closing socket: {}", e.getMessage());
+        }
+        writeLock.lock();
+        try {
+            while (!writeQueue.isEmpty()) writeQueue.poll().release();
+            queuedBytes = 0;
+            writesBackedUp = false; // Os pedidos que faltam são tratados até ao logout
+        } finally {
+            writeLock.unlock();
+        }
+        // O logout acontece depois dos pedidos que já estavam na fila
+        inbound.add(CLOSED);
+        schedule();
+    }
+}
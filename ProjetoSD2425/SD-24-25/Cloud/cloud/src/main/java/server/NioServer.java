@@ -0,0 +1,145 @@
+package server;
+
+import common.Log;
+import manager.MapAccess;
+import manager.UserManager;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Servidor alternativo ao thread-per-connection: poucos ciclos de I/O com um Selector cada
+// leem as mensagens (no mesmo formato do CommonIdent) e entregam-nas a um pool fixo de workers,
+// que as tratam com o mesmo ClientHandler do servidor bloqueante.
+public class NioServer {
+    private final int port;
+    private final UserManager users;
+    private final MapAccess mapAccess;
+    private final ServerMetrics metrics;
+    private final InvalidationRegistry invalidations;
+    private final WatchRegistry watches;
+    private final Replication replication;
+    private final Cluster cluster;
+    private final IoLoop[] loops;
+    private final ExecutorService workers;
+
+    public NioServer(int port, UserManager users, MapAccess mapAccess, ServerMetrics metrics,
+                     InvalidationRegistry invalidations, WatchRegistry watches, Replication replication, Cluster cluster,
+                     int nLoops, int nWorkers) throws IOException {
+        this.port = port;
+        this.users = users;
+        this.mapAccess = mapAccess;
+        this.metrics = metrics;
+        this.invalidations = invalidations;
+        this.watches = watches;
+        this.replication = replication;
+        this.cluster = cluster;
+        this.loops = new IoLoop[nLoops];
+        for (int i = 0; i < nLoops; i++) {
+            loops[i] = new IoLoop("nio-loop-" + i);
+        }
+        this.workers = Executors.newFixedThreadPool(nWorkers);
+    }
+
+    public void start() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            for (IoLoop loop : loops) {
+                loop.start();
+            }
+            System.out.println("Server (nio, " + loops.length + " I/O loops) started on port " + port
+                    + " (" + mapAccess.getSegmentCount() + " segments"
+                    + (mapAccess.getSlabs() != null ? ", off-heap values" : "") + ")");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept(); // Aceita em modo bloqueante nesta thread
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true); // Como no CommonIdent
+                IoLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                ClientHandler handler = new ClientHandler(channel.socket(), users, mapAccess, workers, metrics,
+                        invalidations, watches, replication, cluster);
+                loop.register(new NioConnection(channel, loop, handler, workers, metrics.getWrites()));
+            }
+        } catch (IOException e) {
+            System.err.println("Server error: " + e.getMessage());
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    // Ciclo de I/O: só ele mexe no seu Selector; as outras threads pedem-lhe tarefas com execute()
+    static class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        IoLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(NioConnection connection) {
+            execute(() -> {
+                try {
+                    connection.setKey(connection.channel().register(selector, SelectionKey.OP_READ, connection));
+                } catch (IOException e) {
+                    connection.close();
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    selector.select();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable() && !connection.onReadable()) {
+                                connection.close();
+                                continue;
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException e) {
+                            Log.warn("Client connection error: {}", e.getMessage());
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                System.err.println("I/O loop error: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package server;
+
+import common.CommonIdent;
+import common.Log;
+import common.Threads;
+import manager.MapAccess;
+import manager.Message;
+import manager.User;
+import manager.UserManager;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lado do backup na replicação: liga-se ao primário e pede REPLICATE com o segredo, limpa o
+// mapa local e aplica tudo o que recebe (ver ReplicationSource). Se a ligação cair volta a ligar,
+// com espera crescente, e recomeça com uma cópia nova. Depois de promote() deixa de seguir o primário.
+//
+// O atraso é medido com a hora do primário em que o backup tinha recebido todas as alterações
+// (assume relógios sincronizados; no mesmo computador são o mesmo).
+public class Replica {
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final String host;
+    private final int port;
+    private final String secret; // Segredo da replicação, igual ao do primário
+    private final MapAccess mapAccess;
+    private final UserManager users;
+    private volatile boolean promoted = false;
+    private volatile long caughtUpMillis = 0; // 0 enquanto a cópia inicial não terminou
+    private volatile CommonIdent connection;
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder resyncs = new LongAdder();
+
+    public Replica(String host, int port, String secret, MapAccess mapAccess, UserManager users) {
+        this.host = host;
+        this.port = port;
+        this.secret = secret;
+        this.mapAccess = mapAccess;
+        this.users = users;
+    }
+
+    public void start() {
+        Threads.newThread("replica-", this::follow).start();
+    }
+
+    private void follow() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (!promoted) {
+            try {
+                CommonIdent conn = new CommonIdent(new Socket(host, port));
+                connection = conn;
+                try {
+                    if (promoted) return;
+                    request(conn, new Message(Message.Type.REPLICATE, secret), 1);
+                    caughtUpMillis = 0;
+                    mapAccess.clear(); // A cópia do primário substitui tudo
+                    resyncs.increment();
+                    Log.info("Following primary {}:{}", host, port);
+                    backoff = MIN_BACKOFF_MILLIS;
+                    while (!promoted) {
+                        Message message = conn.receiveMessage();
+                        if (message == null) throw new IOException("Primary closed the connection");
+                        apply(message);
+                    }
+                } finally {
+                    conn.close();
+                }
+            } catch (IOException e) {
+                if (promoted) return;
+                Log.warn("Replication from primary failed: {}", e.getMessage());
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+        }
+    }
+
+    private static void request(CommonIdent conn, Message message, int requestId) throws IOException {
+        message.setRequestId(requestId);
+        conn.sendMessage(message);
+        Message response = conn.receiveMessage();
+        if (!response.isSuccess()) {
+            throw new IOException(message.getType() + " refused: " + response.getPayload());
+        }
+    }
+
+    private void apply(Message message) throws IOException {
+        if (message.getType() != Message.Type.REPLICATE) {
+            throw new IOException("Unexpected message from primary: " + message.getType());
+        }
+        Map<String, byte[]> entries = message.getEntries();
+        switch (message.getPayload()) {
+            case "users":
+                if (entries == null) break;
+                for (Map.Entry<String, byte[]> user : entries.entrySet()) {
+                    users.createUser(User.withCredential(user.getKey(), new String(user.getValue(), StandardCharsets.UTF_8)));
+                }
+                break;
+            case "sync":
+            case "data":
+                if (entries != null && !entries.isEmpty()) {
+                    Map<String, byte[]> puts = new HashMap<>(entries.size() * 2);
+                    for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                        if (entry.getValue() != null) puts.put(entry.getKey(), entry.getValue());
+                        else mapAccess.remove(entry.getKey());
+                    }
+                    if (!puts.isEmpty()) mapAccess.multiPut(puts);
+                    applied.add(entries.size());
+                }
+                if (message.getTimeout() > 0) caughtUpMillis = message.getTimeout();
+                break;
+            case "clear":
+                mapAccess.clear();
+                break;
+            default:
+                throw new IOException("Unknown replication message: " + message.getPayload());
+        }
+    }
+
+    // Deixa de seguir o primário e passa a aceitar escritas; os dados ficam como estão
+    public void promote() {
+        promoted = true;
+        CommonIdent conn = connection;
+        if (conn != null) {
+            try {
+                conn.getSocket().close(); // Acorda a thread que está a ler do primário
+            } catch (IOException ignored) {}
+        }
+        Log.info("Promoted to primary (was following {}:{})", host, port);
+    }
+
+    public boolean isPromoted() {
+        return promoted;
+    }
+
+    // Há quanto tempo o backup pode estar desatualizado; Long.MAX_VALUE sem cópia completa
+    public long getStalenessMillis() {
+        if (promoted) return 0;
+        long caughtUp = caughtUpMillis;
+        return caughtUp == 0 ? Long.MAX_VALUE : Math.max(0, System.currentTimeMillis() - caughtUp);
+    }
+
+    public long getApplied() {
+        return applied.sum();
+    }
+
+    public long getResyncs() {
+        return resyncs.sum();
+    }
+}
@@ -0,0 +1,54 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+// Papel do servidor na replicação. Todos os servidores aceitam backups (ReplicationSource); um
+// servidor arrancado com -Dcloud.replicaOf é um backup (Replica): só aceita leituras, e só enquanto
+// o seu atraso não passar de maxStalenessMillis (ou do limite pedido na leitura, no timeout da
+// mensagem), até ser promovido.
+// REPLICATE e PROMOTE levam no payload o segredo da replicação; sem segredo configurado são recusados.
+public class Replication {
+    private final ReplicationSource source;
+    private final Replica replica; // null no primário
+    private final byte[] secret;
+    private final long maxStalenessMillis; // 0 = sem limite
+
+    public Replication(ReplicationSource source, Replica replica, String secret, long maxStalenessMillis) {
+        this.source = source;
+        this.replica = replica;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.maxStalenessMillis = maxStalenessMillis;
+    }
+
+    public boolean isEnabled() {
+        return secret.length > 0;
+    }
+
+    // Comparação em tempo constante, para o tempo da resposta não revelar o segredo
+    public boolean checkSecret(String given) {
+        return isEnabled() && given != null && MessageDigest.isEqual(secret, given.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public ReplicationSource getSource() {
+        return source;
+    }
+
+    public Replica getReplica() {
+        return replica;
+    }
+
+    // Backup ainda não promovido: recusa escritas e registos
+    public boolean isReadOnly() {
+        return replica != null && !replica.isPromoted();
+    }
+
+    // Se uma leitura pode ser servida com o atraso atual; 'requestedMillis' > 0 é o limite pedido pelo cliente
+    public boolean canRead(long requestedMillis) {
+        if (!isReadOnly()) return true;
+        long staleness = replica.getStalenessMillis();
+        if (staleness == Long.MAX_VALUE) return false; // Cópia inicial por terminar
+        long limit = requestedMillis > 0 ? requestedMillis : maxStalenessMillis;
+        return limit == 0 || staleness <= limit;
+    }
+}
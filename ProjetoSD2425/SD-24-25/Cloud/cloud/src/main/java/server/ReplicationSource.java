@@ -0,0 +1,242 @@
+package server;
+
+import common.Connection;
+import common.Log;
+import common.Threads;
+import manager.MapAccess;
+import manager.Message;
+import manager.UserManager;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+// Lado do primário na replicação primário-backup. Um backup liga-se como um cliente e envia
+// REPLICATE; a partir daí a ligação só recebe mensagens REPLICATE (requestId 0), enviadas por uma
+// thread própria, pela ordem em que as escritas foram aplicadas ao MapAccess:
+//   "users"  - entries nome -> credencial (os utilizadores existentes e depois cada novo registo;
+//              só o hash com sal, ver User, nunca a password)
+//   "sync"   - entries com parte do conteúdo atual do mapa (cópia inicial)
+//   "data"   - entries com as alterações seguintes (null = chave removida); sem entries é só um
+//              sinal de vida, enviado a cada HEARTBEAT_MILLIS
+//   "clear"  - o mapa foi limpo
+// Em "data" o timeout leva a hora do primário (ms) até à qual o backup recebeu todas as
+// alterações; o backup usa-a para medir o seu atraso.
+//
+// A ligação é registada como ChangeListener antes da cópia inicial: as alterações concorrentes
+// com a cópia ficam na fila e são repetidas por cima dela (os valores são completos, pelo que
+// repetir uma alteração é inofensivo). A replicação é assíncrona: as escritas não esperam pelos
+// backups; um backup que acumule mais de maxQueue alterações por enviar é desligado (volta a ligar
+// e recomeça com uma cópia nova).
+public class ReplicationSource implements MapAccess.ChangeListener {
+    static final long HEARTBEAT_MILLIS = 100;
+    private static final int SYNC_BATCH = 512;
+    private static final int STREAM_BATCH = 1024;
+
+    private enum Kind { DATA, CLEAR, USER }
+
+    private static final class Change {
+        final Kind kind;
+        final String key;
+        final byte[] value;
+
+        Change(Kind kind, String key, byte[] value) {
+            this.kind = kind;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final class Link implements Runnable {
+        final Connection connection;
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition changed = lock.newCondition();
+        final ArrayDeque<Change> queue = new ArrayDeque<>(); // Protegida pelo lock
+        final BiConsumer<String, String> userListener = (user, credential) ->
+                enqueue(new Change(Kind.USER, user, credential.getBytes(StandardCharsets.UTF_8)));
+        volatile boolean closed = false;
+
+        Link(Connection connection) {
+            this.connection = connection;
+        }
+
+        void enqueue(Change change) {
+            lock.lock();
+            try {
+                if (closed) return;
+                if (queue.size() >= maxQueue) {
+                    Log.warn("Replication backup {} fell too far behind, disconnecting", connection.getSocket().getRemoteSocketAddress());
+                    closed = true;
+                    queue.clear();
+                    changed.signal();
+                    return;
+                }
+                queue.add(change);
+                if (queue.size() == 1) changed.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Map<String, byte[]> batch = new LinkedHashMap<>();
+                for (Map.Entry<String, String> user : users.subscribe(userListener).entrySet()) {
+                    batch.put(user.getKey(), user.getValue().getBytes(StandardCharsets.UTF_8));
+                }
+                send("users", batch, 0);
+                batch.clear();
+                IOException[] error = new IOException[1];
+                mapAccess.forEachEntry((key, value) -> {
+                    if (error[0] != null) return;
+                    batch.put(key, value);
+                    if (batch.size() < SYNC_BATCH) return;
+                    try {
+                        send("sync", batch, 0);
+                    } catch (IOException e) {
+                        error[0] = e;
+                    }
+                    batch.clear();
+                });
+                if (error[0] != null) throw error[0];
+                if (!batch.isEmpty()) send("sync", batch, 0);
+                stream();
+            } catch (IOException e) {
+                Log.warn("Replication to {} stopped: {}", connection.getSocket().getRemoteSocketAddress(), e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                detach(this);
+                connection.close();
+            }
+        }
+
+        // Envia as alterações da fila em lotes do mesmo tipo, pela ordem da fila
+        private void stream() throws IOException, InterruptedException {
+            long caughtUp = 0; // Ainda nada garantido: a fila pode ter alterações de antes
+            while (!closed) {
+                Kind kind;
+                Map<String, byte[]> batch = new LinkedHashMap<>();
+                lock.lock();
+                try {
+                    if (queue.isEmpty()) {
+                        caughtUp = System.currentTimeMillis(); // Tudo o que foi aplicado até aqui já seguiu
+                        changed.await(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                    if (closed) return;
+                    kind = queue.isEmpty() ? Kind.DATA : queue.peek().kind;
+                    while (!queue.isEmpty() && queue.peek().kind == kind && batch.size() < STREAM_BATCH) {
+                        Change change = queue.poll();
+                        batch.remove(change.key); // Fica a última alteração, na posição dela
+                        batch.put(change.key, change.value);
+                        if (kind == Kind.CLEAR) break;
+                    }
+                    if (queue.isEmpty() && kind == Kind.DATA) caughtUp = System.currentTimeMillis();
+                } finally {
+                    lock.unlock();
+                }
+                if (kind == Kind.CLEAR) send("clear", null, caughtUp);
+                else send(kind == Kind.USER ? "users" : "data", batch, caughtUp);
+                sent.add(batch.size());
+            }
+        }
+
+        private void send(String what, Map<String, byte[]> entries, long caughtUp) throws IOException {
+            Message message = new Message(Message.Type.REPLICATE);
+            message.setPayload(what);
+            message.setEntries(entries);
+            message.setTimeout(caughtUp);
+            connection.sendMessage(message);
+        }
+    }
+
+    private final MapAccess mapAccess;
+    private final UserManager users;
+    private final int maxQueue;
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+    private final LongAdder sent = new LongAdder();
+
+    public ReplicationSource(MapAccess mapAccess, UserManager users, int maxQueue) {
+        this.mapAccess = mapAccess;
+        this.users = users;
+        this.maxQueue = maxQueue;
+        mapAccess.addChangeListener(this);
+    }
+
+    // Passa a replicar para o backup nesta ligação (depois de lhe responder ao REPLICATE)
+    public void attach(Connection connection) {
+        Link link = new Link(connection);
+        links.add(link); // Antes da cópia inicial
+        Threads.newThread("replication-", link).start();
+        Log.info("Replicating to backup {}", connection.getSocket().getRemoteSocketAddress());
+    }
+
+    // A ligação terminou (ou a thread de envio desistiu)
+    public void detach(Connection connection) {
+        for (Link link : links) {
+            if (link.connection == connection) detach(link);
+        }
+    }
+
+    private void detach(Link link) {
+        if (!links.remove(link)) return;
+        users.unsubscribe(link.userListener);
+        link.lock.lock();
+        try {
+            link.closed = true;
+            link.queue.clear();
+            link.changed.signal();
+        } finally {
+            link.lock.unlock();
+        }
+    }
+
+    @Override
+    public void changed(String key, byte[] value, long version) {
+        if (links.isEmpty()) return;
+        Change change = new Change(Kind.DATA, key, value);
+        for (Link link : links) {
+            link.enqueue(change);
+        }
+    }
+
+    @Override
+    public void cleared() {
+        Change change = new Change(Kind.CLEAR, "", null);
+        for (Link link : links) {
+            link.enqueue(change);
+        }
+    }
+
+    public int getBackups() {
+        return links.size();
+    }
+
+    // Alterações por enviar, somadas por todos os backups
+    public int getQueued() {
+        int n = 0;
+        for (Link link : links) {
+            link.lock.lock();
+            try {
+                n += link.queue.size();
+            } finally {
+                link.lock.unlock();
+            }
+        }
+        return n;
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+}
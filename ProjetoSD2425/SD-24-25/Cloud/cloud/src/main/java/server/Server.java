@@ -1,31 +1,190 @@
 package server;
 
+import common.Threads;
+import common.WriteCoalescing;
+import manager.LogReplayer;
 import manager.MapAccess;
+import manager.SlabValueStore;
+import manager.Snapshot;
 import manager.UserManager;
+import manager.WriteAheadLog;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.concurrent.*;
 
 public class Server {
-    private static final int PORT = 8080;
-    private final UserManager users = new UserManager(); // Agora o UserManager gerencia o socketUserMap
-    private final MapAccess mapAccess = new MapAccess();
-    private final ExecutorService threadPool = Executors.newCachedThreadPool();
+    // Porta de escuta (-Dcloud.port=N)
+    private static final int PORT = Integer.getInteger("cloud.port", 8080);
+    // Número de segmentos do MapAccess (-Dcloud.segments=N)
+    private static final int SEGMENTS = Integer.getInteger("cloud.segments", MapAccess.DEFAULT_SEGMENTS);
+    // Onde ficam os bytes dos valores (-Dcloud.store): "heap" ou "offheap" (slabs em memória direta,
+    // limitada por -XX:MaxDirectMemorySize)
+    private static final String STORE = System.getProperty("cloud.store", "heap");
+    // Modo do servidor (-Dcloud.server.mode): "threads" (uma thread por ligação) ou "nio"
+    private static final String MODE = System.getProperty("cloud.server.mode", "threads");
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static final int NIO_LOOPS = Integer.getInteger("cloud.nio.loops", Math.max(1, CORES / 2));
+    private static final int NIO_WORKERS = Integer.getInteger("cloud.nio.workers", CORES * 2);
+    // Persistência (-Dcloud.wal.dir=DIR): sem diretório os dados ficam só em memória.
+    // -Dcloud.wal.fsync=always|group|async|none, group commit a cada groupMillis ou groupBytes
+    // (ver WriteAheadLog.FsyncPolicy; só em "async" e "none" as escritas não esperam pelo fsync).
+    private static final String WAL_DIR = System.getProperty("cloud.wal.dir");
+    private static final String WAL_FSYNC = System.getProperty("cloud.wal.fsync", "group");
+    private static final long WAL_GROUP_MILLIS = Long.getLong("cloud.wal.groupMillis", 2);
+    private static final int WAL_GROUP_BYTES = Integer.getInteger("cloud.wal.groupBytes", 1024 * 1024);
+    private static final long WAL_SEGMENT_BYTES = Long.getLong("cloud.wal.segmentBytes", WriteAheadLog.DEFAULT_SEGMENT_BYTES);
+    // Snapshot no diretório do log a cada N segundos (-Dcloud.snapshot.intervalSeconds, 0 = só ao terminar)
+    private static final long SNAPSHOT_INTERVAL_SECONDS = Long.getLong("cloud.snapshot.intervalSeconds", 300);
+    // Métricas também escritas num ficheiro (-Dcloud.metrics.file) a cada cloud.metrics.intervalSeconds
+    private static final String METRICS_FILE = System.getProperty("cloud.metrics.file");
+    private static final long METRICS_INTERVAL_SECONDS = Long.getLong("cloud.metrics.intervalSeconds", 10);
+    // Logins simultâneos no servidor e ligações autenticadas ao mesmo tempo por utilizador
+    // (-Dcloud.maxLogins, -Dcloud.sessionsPerUser; um pool de ligações precisa de uma sessão por ligação).
+    // Sem vaga, os logins esperam numa fila FIFO de até cloud.login.maxQueued pedidos, no máximo
+    // cloud.login.timeoutMillis (ou o timeout do pedido; 0 = sem limite)
+    private static final int MAX_LOGINS = Integer.getInteger("cloud.maxLogins", 2);
+    private static final int SESSIONS_PER_USER = Integer.getInteger("cloud.sessionsPerUser", 1);
+    private static final int LOGIN_MAX_QUEUED = Integer.getInteger("cloud.login.maxQueued", UserManager.DEFAULT_MAX_QUEUED);
+    private static final long LOGIN_TIMEOUT_MILLIS = Long.getLong("cloud.login.timeoutMillis", UserManager.DEFAULT_LOGIN_TIMEOUT_MILLIS);
+    private final UserManager users = new UserManager(MAX_LOGINS, SESSIONS_PER_USER,
+            LOGIN_MAX_QUEUED, LOGIN_TIMEOUT_MILLIS); // As sessões ficam em cada ligação (ClientHandler)
+    private final MapAccess mapAccess = new MapAccess(SEGMENTS, "offheap".equals(STORE) ? new SlabValueStore() : null);
+    // Uma ligação com mais chaves lidas do que isto recebe uma invalidação de tudo (-Dcloud.tracking.maxKeys)
+    private static final int TRACKING_MAX_KEYS = Integer.getInteger("cloud.tracking.maxKeys", 100000);
+    private final InvalidationRegistry invalidations = new InvalidationRegistry(mapAccess, TRACKING_MAX_KEYS);
+    // Alterações por enviar a uma subscrição WATCH antes de serem descartadas (-Dcloud.watch.maxPending)
+    private static final int WATCH_MAX_PENDING = Integer.getInteger("cloud.watch.maxPending", 10000);
+    private final WatchRegistry watches = new WatchRegistry(mapAccess, WATCH_MAX_PENDING);
+    // Replicação: com -Dcloud.replicaOf=host:porta este servidor é um backup desse primário. O primário
+    // e os backups partilham -Dcloud.replication.secret, pedido no REPLICATE e no PROMOTE; sem segredo
+    // a replicação fica desligada. Os backups recusam leituras quando estão mais de
+    // cloud.replica.maxStalenessMillis atrasados (0 = sem limite); um backup que acumule
+    // cloud.replication.maxQueue alterações por enviar é desligado e recomeça.
+    private static final String REPLICA_OF = System.getProperty("cloud.replicaOf");
+    private static final String REPLICATION_SECRET = System.getProperty("cloud.replication.secret", "");
+    private static final long REPLICA_MAX_STALENESS_MILLIS = Long.getLong("cloud.replica.maxStalenessMillis", 1000);
+    private static final int REPLICATION_MAX_QUEUE = Integer.getInteger("cloud.replication.maxQueue", 1_000_000);
+    private final Replication replication = new Replication(
+            new ReplicationSource(mapAccess, users, REPLICATION_MAX_QUEUE), newReplica(), REPLICATION_SECRET,
+            REPLICA_MAX_STALENESS_MILLIS);
+    // Cluster (ver Cluster): -Dcloud.cluster.self=host:porta é o nome deste nó no anel e
+    // -Dcloud.cluster.secret o segredo partilhado pelos nós e pelo ClusterAdmin; sem segredo o nó
+    // não entra em nenhum cluster
+    private static final String CLUSTER_SELF = System.getProperty("cloud.cluster.self", "localhost:" + PORT);
+    private static final String CLUSTER_SECRET = System.getProperty("cloud.cluster.secret", "");
+    private final Cluster cluster = new Cluster(CLUSTER_SELF, CLUSTER_SECRET, mapAccess, users);
+    // Respostas a pedidos seguidos da mesma ligação seguem juntas, no máximo cloud.flush.delayMicros
+    // depois da primeira (ver WriteCoalescing; 0 = um flush por resposta)
+    private static final long FLUSH_DELAY_MICROS = Long.getLong("cloud.flush.delayMicros", 200);
+    private final ServerMetrics metrics = new ServerMetrics(users, mapAccess, invalidations, watches, replication, cluster,
+            new WriteCoalescing(TimeUnit.MICROSECONDS.toNanos(FLUSH_DELAY_MICROS)));
+    // Uma thread por ligação; virtual threads com -Dcloud.threads=virtual (perfil jdk21)
+    private final ExecutorService threadPool = Threads.newConnectionExecutor("client-handler-");
     
     public void start() {
+        try {
+            openLog();
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Could not open write-ahead log: " + e.getMessage());
+            return;
+        }
+        if (METRICS_FILE != null) {
+            metrics.startDump(Paths.get(METRICS_FILE), METRICS_INTERVAL_SECONDS);
+        }
+        if (replication.getReplica() != null) {
+            replication.getReplica().start();
+        }
+
+        if ("nio".equals(MODE)) {
+            try {
+                new NioServer(PORT, users, mapAccess, metrics, invalidations, watches, replication, cluster,
+                        NIO_LOOPS, NIO_WORKERS).start();
+            } catch (IOException e) {
+                System.err.println("Server error: " + e.getMessage());
+            }
+            return;
+        }
+
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server started on port " + PORT);
+            System.out.println("Server started on port " + PORT + " (" + mapAccess.getSegmentCount() + " segments"
+                    + (Threads.isVirtual() ? ", virtual threads" : "")
+                    + (mapAccess.getSlabs() != null ? ", off-heap values" : "") + ")");
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                threadPool.execute(new ClientHandler(clientSocket, users, mapAccess));
+                threadPool.execute(new ClientHandler(clientSocket, users, mapAccess, threadPool, metrics,
+                        invalidations, watches, replication, cluster));
             }
         } catch (IOException e) {
             System.err.println("Server error: " + e.getMessage());
         }
     }
 
+    private Replica newReplica() {
+        if (REPLICA_OF == null) return null;
+        int colon = REPLICA_OF.lastIndexOf(':');
+        return new Replica(REPLICA_OF.substring(0, colon), Integer.parseInt(REPLICA_OF.substring(colon + 1)),
+                REPLICATION_SECRET, mapAccess, users);
+    }
+
+    // Carrega o último snapshot, repete por cima o resto do log e passa a registar as escritas seguintes
+    private void openLog() throws IOException {
+        if (WAL_DIR == null) return;
+
+        Path dir = Paths.get(WAL_DIR);
+        long start = System.nanoTime();
+        long snapshotLsn = Snapshot.load(dir, mapAccess, users);
+        int fromSnapshot = mapAccess.size();
+        long loaded = System.nanoTime();
+
+        WriteAheadLog.FsyncPolicy policy = WriteAheadLog.FsyncPolicy.valueOf(WAL_FSYNC.toUpperCase());
+        WriteAheadLog wal = WriteAheadLog.open(dir, policy,
+                WAL_GROUP_MILLIS, WAL_GROUP_BYTES, WAL_SEGMENT_BYTES, snapshotLsn,
+                new LogReplayer(mapAccess, users));
+        mapAccess.attachLog(wal);
+        users.attachLog(wal);
+        System.out.printf("Recovered %d keys from %s: %d from snapshot (LSN %d) in %d ms, log replay in %d ms (fsync %s)%n",
+                mapAccess.size(), WAL_DIR, fromSnapshot, snapshotLsn, (loaded - start) / 1_000_000,
+                (System.nanoTime() - loaded) / 1_000_000, policy);
+
+        if (SNAPSHOT_INTERVAL_SECONDS > 0) {
+            ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "snapshotter");
+                t.setDaemon(true);
+                return t;
+            });
+            snapshotter.scheduleWithFixedDelay(() -> snapshot(dir, wal),
+                    SNAPSHOT_INTERVAL_SECONDS, SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+
+        // Ao terminar faz um último snapshot
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            snapshot(dir, wal);
+            try {
+                wal.close();
+            } catch (IOException e) {
+                System.err.println("Error closing write-ahead log: " + e.getMessage());
+            }
+        }));
+    }
+
+    // Snapshot sem parar as escritas; os segmentos do log que nenhum snapshot guardado precisa são apagados a seguir
+    private synchronized void snapshot(Path dir, WriteAheadLog wal) {
+        try {
+            long start = System.nanoTime();
+            long lsn = wal.checkpoint();
+            long entries = Snapshot.write(dir, lsn, mapAccess, users);
+            int removed = wal.truncateBefore(Snapshot.oldestLsn(dir)); // O log do snapshot anterior fica
+            System.out.printf("Snapshot at LSN %d: %d keys in %d ms, %d log segments removed%n",
+                    lsn, entries, (System.nanoTime() - start) / 1_000_000, removed);
+        } catch (IOException e) {
+            System.err.println("Snapshot failed: " + e.getMessage());
+        }
+    }
+
     public static void main(String[] args) {
         new Server().start();
     }
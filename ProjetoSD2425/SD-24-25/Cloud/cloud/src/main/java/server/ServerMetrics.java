@@ -0,0 +1,191 @@
+package server;
+
+import common.BufferPool;
+import common.HashRing;
+import common.Histogram;
+import common.Log;
+import common.WriteCoalescing;
+import manager.MapAccess;
+import manager.Message;
+import manager.UserManager;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Métricas do servidor: número de pedidos e histograma de latências por tipo de mensagem, e o estado
+// atual (ligações, utilizadores autenticados, GETWHEN à espera, tamanho do MapAccess, esperas pelos
+// locks). São exportadas em texto, uma métrica por linha ("nome{etiquetas} valor"), na resposta a
+// STATS e, se configurado, num ficheiro reescrito periodicamente.
+public class ServerMetrics {
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private final UserManager users;
+    private final MapAccess mapAccess;
+    private final InvalidationRegistry invalidations;
+    private final WatchRegistry watches;
+    private final Replication replication;
+    private final Cluster cluster;
+    private final WriteCoalescing writes;
+    private final EnumMap<Message.Type, LongAdder> requests = new EnumMap<>(Message.Type.class);
+    private final EnumMap<Message.Type, Histogram> latencies = new EnumMap<>(Message.Type.class);
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder totalConnections = new LongAdder();
+    private final long startMillis = System.currentTimeMillis();
+
+    public ServerMetrics(UserManager users, MapAccess mapAccess, InvalidationRegistry invalidations,
+                         WatchRegistry watches, Replication replication, Cluster cluster, WriteCoalescing writes) {
+        this.users = users;
+        this.mapAccess = mapAccess;
+        this.invalidations = invalidations;
+        this.watches = watches;
+        this.replication = replication;
+        this.cluster = cluster;
+        this.writes = writes;
+        for (Message.Type type : Message.Type.values()) {
+            requests.put(type, new LongAdder());
+            latencies.put(type, new Histogram());
+        }
+    }
+
+    // Agrupamento e contagem dos flushes das respostas, partilhado pelas ligações
+    WriteCoalescing getWrites() {
+        return writes;
+    }
+
+    void connectionOpened() {
+        activeConnections.incrementAndGet();
+        totalConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    // Tempo desde a receção do pedido até a resposta ter sido enviada
+    void record(Message.Type type, long nanos) {
+        requests.get(type).increment();
+        latencies.get(type).record(nanos);
+    }
+
+    public String render() {
+        StringBuilder out = new StringBuilder(4096);
+        line(out, "uptime_seconds", (System.currentTimeMillis() - startMillis) / 1000);
+        line(out, "connections_active", activeConnections.get());
+        line(out, "connections_total", totalConnections.sum());
+        line(out, "users_logged_in", users.getCurrentLogins());
+        line(out, "login_queue_length", users.getQueuedLogins());
+        line(out, "login_queued_total", users.getLoginsQueued());
+        line(out, "login_queue_timeouts", users.getLoginTimeouts());
+        line(out, "login_queue_rejected", users.getLoginsRejected());
+        latency(out, "login_queue_wait_us", "", users.getLoginWaits());
+        line(out, "getwhen_waiters", mapAccess.getWaiterCount());
+        line(out, "store_keys", mapAccess.size());
+        line(out, "store_value_bytes", mapAccess.getValueBytes());
+        if (mapAccess.getSlabs() != null) {
+            line(out, "store_offheap_reserved_bytes", mapAccess.getSlabs().getReservedBytes());
+        }
+        Histogram lockWaits = mapAccess.getLockWaits();
+        line(out, "store_lock_waits", lockWaits.getCount());
+        line(out, "store_lock_wait_seconds_total", String.format(Locale.ROOT, "%.6f", lockWaits.getSum() / 1e9));
+        latency(out, "store_lock_wait_us", "", lockWaits);
+        line(out, "log_dropped_events", Log.getDropped());
+        line(out, "write_flushes", writes.getFlushes());
+        line(out, "write_flushed_messages", writes.getMessages());
+        distribution(out, "write_messages_per_flush", writes.getMessagesPerFlush());
+        line(out, "codec_buffers_allocated{pool=\"heap\"}", BufferPool.HEAP.getAllocated());
+        line(out, "codec_buffers_reused{pool=\"heap\"}", BufferPool.HEAP.getReused());
+        line(out, "codec_buffers_allocated{pool=\"direct\"}", BufferPool.DIRECT.getAllocated());
+        line(out, "codec_buffers_reused{pool=\"direct\"}", BufferPool.DIRECT.getReused());
+        line(out, "tracking_connections", invalidations.getTrackingConnections());
+        line(out, "tracking_keys", invalidations.getTrackedKeys());
+        line(out, "invalidations_sent", invalidations.getInvalidationsSent());
+        line(out, "watch_subscriptions", watches.getSubscriptions());
+        line(out, "watch_events_sent", watches.getEventsSent());
+        line(out, "watch_events_coalesced", watches.getCoalesced());
+        line(out, "watch_overflows", watches.getOverflows());
+        line(out, "replication_backups", replication.getSource().getBackups());
+        line(out, "replication_queued", replication.getSource().getQueued());
+        line(out, "replication_sent", replication.getSource().getSent());
+        Replica replica = replication.getReplica();
+        if (replica != null) {
+            long staleness = replica.getStalenessMillis();
+            line(out, "replica_promoted", replica.isPromoted() ? 1 : 0);
+            line(out, "replica_staleness_ms", staleness == Long.MAX_VALUE ? -1 : staleness);
+            line(out, "replica_applied", replica.getApplied());
+            line(out, "replica_resyncs", replica.getResyncs());
+        }
+        HashRing ring = cluster.getRing();
+        if (ring != null) {
+            line(out, "cluster_epoch", ring.getEpoch());
+            line(out, "cluster_nodes", ring.getNodes().size());
+            line(out, "cluster_import_sources", cluster.getImportSources());
+            line(out, "cluster_keys_pushed", cluster.getPushed());
+            line(out, "cluster_keys_pulled", cluster.getPulled());
+            line(out, "cluster_moved", cluster.getMoved());
+        }
+
+        for (Message.Type type : Message.Type.values()) {
+            if (type == Message.Type.RESPONSE || type == Message.Type.INVALIDATE
+                    || type == Message.Type.EVENT || type == Message.Type.QUEUED) continue; // Só enviadas pelo servidor
+            String labels = "type=\"" + type + "\"";
+            line(out, "requests{" + labels + "}", requests.get(type).sum());
+            latency(out, "request_latency_us", labels + ",", latencies.get(type));
+        }
+        return out.toString();
+    }
+
+    private static void latency(StringBuilder out, String name, String labels, Histogram histogram) {
+        if (histogram.getCount() == 0) return;
+        for (double q : QUANTILES) {
+            line(out, name + "{" + labels + "quantile=\"" + q + "\"}", micros(histogram.getPercentile(q)));
+        }
+        line(out, name + "{" + labels + "quantile=\"max\"}", micros(histogram.getMax()));
+        line(out, name + "{" + labels + "quantile=\"mean\"}", micros((long) histogram.getMean()));
+    }
+
+    // Como latency, para valores que não são tempos
+    private static void distribution(StringBuilder out, String name, Histogram histogram) {
+        if (histogram.getCount() == 0) return;
+        for (double q : QUANTILES) {
+            line(out, name + "{quantile=\"" + q + "\"}", histogram.getPercentile(q));
+        }
+        line(out, name + "{quantile=\"max\"}", histogram.getMax());
+        line(out, name + "{quantile=\"mean\"}", String.format(Locale.ROOT, "%.2f", histogram.getMean()));
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+    }
+
+    private static void line(StringBuilder out, String name, Object value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    // Reescreve 'file' a cada 'intervalSeconds' com o conteúdo de render()
+    public void startDump(Path file, long intervalSeconds) {
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try {
+                Files.write(tmp, render().getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Log.warn("Could not write metrics to {}: {}", file, e.getMessage());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+}
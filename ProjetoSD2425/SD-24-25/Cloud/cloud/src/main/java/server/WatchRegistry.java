@@ -0,0 +1,246 @@
+package server;
+
+import common.Connection;
+import common.Log;
+import manager.MapAccess;
+import manager.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Subscrições WATCH: cada ligação (Subscriber) pode subscrever chaves exatas ou prefixos e recebe
+// mensagens EVENT com as alterações, pela ordem em que foram aplicadas ao MapAccess.
+//
+// Quem escreve só acrescenta a alteração às pendentes da subscrição; o envio é feito pelo executor
+// da ligação. Enquanto o cliente não lê (envio bloqueado, ou escritas ainda por sair no NIO) as
+// alterações da mesma chave juntam-se numa só, com o valor mais recente: um cliente lento recebe
+// menos eventos mas nunca atrasa quem escreve. Se mesmo assim ficarem mais de maxPending chaves
+// por enviar, são descartadas e o cliente recebe um EVENT sem entries (tem de voltar a ler).
+//
+// EVENT: payload "id:v1,v2,..." com as versões de cada chave, pela ordem das entries (chave ->
+// valor novo, null se foi removida).
+public class WatchRegistry implements MapAccess.ChangeListener {
+    // Enquanto a ligação tem escritas pendentes o envio é adiado este tempo (e as alterações juntam-se)
+    private static final long BACKED_UP_RETRY_MILLIS = 5;
+
+    private static final ScheduledExecutorService RETRIES = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "watch-retry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final class Change {
+        final byte[] value;
+        final long version;
+
+        Change(byte[] value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+
+    private static final class Watch {
+        final Subscriber subscriber;
+        final String id;
+        final String key;
+        final boolean prefix;
+        LinkedHashMap<String, Change> pending = new LinkedHashMap<>(); // Protegido pelo subscriber
+        boolean overflow = false;
+
+        Watch(Subscriber subscriber, String id, String key, boolean prefix) {
+            this.subscriber = subscriber;
+            this.id = id;
+            this.key = key;
+            this.prefix = prefix;
+        }
+    }
+
+    public final class Subscriber {
+        private final Connection connection;
+        private final Executor executor;
+        private final Map<String, Watch> watches = new ConcurrentHashMap<>(); // Por id
+        private boolean scheduled = false; // Protegido por this
+        private volatile boolean closed = false;
+
+        private Subscriber(Connection connection, Executor executor) {
+            this.connection = connection;
+            this.executor = executor;
+        }
+
+        private void add(Watch watch, String key, Change change) {
+            if (closed) return;
+            synchronized (this) {
+                if (!watch.overflow) {
+                    if (watch.pending.put(key, change) != null) coalesced.increment();
+                    if (watch.pending.size() > maxPending) {
+                        overflows.increment();
+                        watch.pending = new LinkedHashMap<>();
+                        watch.overflow = true;
+                    }
+                }
+                if (scheduled) return;
+                scheduled = true;
+            }
+            executor.execute(this::flush);
+        }
+
+        // Um EVENT por subscrição com alterações pendentes. Só há um flush de cada vez por ligação
+        // (scheduled fica verdadeiro até não haver nada por enviar), para os eventos não trocarem de ordem.
+        private void flush() {
+            while (!closed) {
+                if (connection.isBackedUp()) {
+                    RETRIES.schedule(() -> executor.execute(this::flush), BACKED_UP_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                List<Message> messages = new ArrayList<>();
+                synchronized (this) {
+                    for (Watch watch : watches.values()) {
+                        if (watch.pending.isEmpty() && !watch.overflow) continue;
+                        messages.add(event(watch));
+                        watch.pending = new LinkedHashMap<>();
+                        watch.overflow = false;
+                    }
+                    if (messages.isEmpty()) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    for (Message message : messages) {
+                        connection.sendMessage(message);
+                        eventsSent.add(message.getEntries().size());
+                    }
+                } catch (IOException e) {
+                    Log.debug("Could not send watch events: {}", e.getMessage());
+                    return; // A ligação vai terminar
+                }
+            }
+        }
+    }
+
+    private static Message event(Watch watch) {
+        Map<String, byte[]> entries = new LinkedHashMap<>(watch.pending.size() * 2);
+        StringBuilder payload = new StringBuilder(watch.id).append(':');
+        for (Map.Entry<String, Change> entry : watch.pending.entrySet()) {
+            if (!entries.isEmpty()) payload.append(',');
+            entries.put(entry.getKey(), entry.getValue().value);
+            payload.append(entry.getValue().version);
+        }
+        Message message = new Message(Message.Type.EVENT);
+        message.setPayload(payload.toString());
+        message.setEntries(entries); // Vazio depois de um overflow
+        return message;
+    }
+
+    private final ConcurrentHashMap<String, Set<Watch>> byKey = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<Watch>> byPrefix = new ConcurrentHashMap<>();
+    private final int maxPending;
+    private final LongAdder eventsSent = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+
+    public WatchRegistry(MapAccess mapAccess, int maxPending) {
+        this.maxPending = maxPending;
+        mapAccess.addChangeListener(this);
+    }
+
+    public Subscriber register(Connection connection, Executor executor) {
+        return new Subscriber(connection, executor);
+    }
+
+    // Falso se o id já estiver em uso nesta ligação
+    public boolean watch(Subscriber subscriber, String id, String key, boolean prefix) {
+        Watch watch = new Watch(subscriber, id, key, prefix);
+        if (subscriber.watches.putIfAbsent(id, watch) != null) return false;
+        (prefix ? byPrefix : byKey).compute(key, (k, set) -> {
+            if (set == null) set = ConcurrentHashMap.newKeySet();
+            set.add(watch);
+            return set;
+        });
+        return true;
+    }
+
+    public boolean unwatch(Subscriber subscriber, String id) {
+        Watch watch = subscriber.watches.remove(id);
+        if (watch == null) return false;
+        (watch.prefix ? byPrefix : byKey).computeIfPresent(watch.key, (k, set) -> {
+            set.remove(watch);
+            return set.isEmpty() ? null : set;
+        });
+        return true;
+    }
+
+    // A ligação terminou
+    public void unregister(Subscriber subscriber) {
+        subscriber.closed = true;
+        for (String id : new ArrayList<>(subscriber.watches.keySet())) {
+            unwatch(subscriber, id);
+        }
+    }
+
+    @Override
+    public void changed(String key, byte[] value, long version) {
+        Change change = null;
+        Set<Watch> exact = byKey.get(key);
+        if (exact != null) {
+            change = new Change(value, version);
+            for (Watch watch : exact) {
+                watch.subscriber.add(watch, key, change);
+            }
+        }
+        if (byPrefix.isEmpty()) return;
+        for (Map.Entry<String, Set<Watch>> entry : byPrefix.entrySet()) {
+            if (!key.startsWith(entry.getKey())) continue;
+            if (change == null) change = new Change(value, version);
+            for (Watch watch : entry.getValue()) {
+                watch.subscriber.add(watch, key, change);
+            }
+        }
+    }
+
+    // Não se sabe que chaves existiam: todas as subscrições recebem um EVENT de eventos perdidos
+    @Override
+    public void cleared() {
+        List<Set<Watch>> all = new ArrayList<>(byKey.values());
+        all.addAll(byPrefix.values());
+        for (Set<Watch> watches : all) {
+            for (Watch watch : watches) {
+                synchronized (watch.subscriber) {
+                    watch.pending = new LinkedHashMap<>();
+                    watch.overflow = true;
+                }
+                watch.subscriber.add(watch, null, null);
+            }
+        }
+    }
+
+    public int getSubscriptions() {
+        int n = 0;
+        for (Set<Watch> watches : byKey.values()) n += watches.size();
+        for (Set<Watch> watches : byPrefix.values()) n += watches.size();
+        return n;
+    }
+
+    public long getEventsSent() {
+        return eventsSent.sum();
+    }
+
+    // Alterações substituídas por uma mais recente da mesma chave antes de serem enviadas
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getOverflows() {
+        return overflows.sum();
+    }
+}
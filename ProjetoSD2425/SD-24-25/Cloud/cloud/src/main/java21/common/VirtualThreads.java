@@ -0,0 +1,19 @@
+package common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Só é compilado com o perfil jdk21 (mvn -Pjdk21, ativo por omissão num JDK >= 21).
+// O resto do projeto continua em Java 8 e chega aqui por reflexão, através de Threads.
+public final class VirtualThreads {
+    private VirtualThreads() {}
+
+    public static ThreadFactory factory(String prefix) {
+        return Thread.ofVirtual().name(prefix, 0).factory();
+    }
+
+    public static ExecutorService newExecutor(String prefix) {
+        return Executors.newThreadPerTaskExecutor(factory(prefix));
+    }
+}